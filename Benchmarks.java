@@ -0,0 +1,357 @@
+/**
+ * Benchmarks.java
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks of the hot paths of the Chord DHT - routing data, building finger
+ * tables, assigning node ids, storing and moving node data, storing keys and values and
+ * counting hot keys. Every benchmark runs for a few warmup iterations and then a few
+ * measured ones at each of its data sizes, and reports throughput along with the bytes
+ * allocated and the garbage collections per iteration, so regressions show up before
+ * they are deployed.
+ *
+ * Usage: java Benchmarks [name regex] - tuned with -Dbench.warmup, -Dbench.iterations,
+ * -Dbench.time (ms per iteration) and -Dbench.sizes (comma separated, overrides the
+ * sizes of every benchmark)
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class Benchmarks {
+
+	private static int WARMUP = Integer.getInteger("bench.warmup", 3);
+	private static int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	private static long ITERATION_TIME = Long.getLong("bench.time", 1000);
+	private static String SIZES = System.getProperty("bench.sizes");
+
+	private static int[] RING_SIZES = {1 << 2, 1 << 4, 1 << 8, 1 << 12, 1 << 16};
+	private static int[] DATA_SIZES = {10_000, 1_000_000};
+	private static int[] KEY_SIZES = {10_000, 200_000};
+
+	// results are folded into this so the JIT cannot drop the work being measured
+	static volatile long sink;
+
+	/**
+	 * One invocation of a benchmark - does its work and returns the number of operations done
+	 */
+	interface Operation {
+		long run() throws Exception;
+	}
+
+	/**
+	 * A named benchmark and the sizes it runs at - setUp prepares the state for a size
+	 * outside of the measurement and returns the operation to measure
+	 */
+	private static class Benchmark {
+		String name;
+		String unit;
+		int[] sizes;
+		IntFunction<Operation> setUp;
+
+		Benchmark(String name, String unit, int[] sizes, IntFunction<Operation> setUp) {
+			this.name = name;
+			this.unit = unit;
+			this.sizes = sizes;
+			this.setUp = setUp;
+		}
+	}
+
+	private static List<Benchmark> benchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<>();
+		// SuperNode.routeData - owner of each value out of the current routing snapshot
+		benchmarks.add(new Benchmark("routeData", "values", RING_SIZES, ringSize -> {
+			RoutingSnapshot snapshot = new RoutingSnapshot(ringSize, halfRing(ringSize), addresses(ringSize), true);
+			int[] values = randomValues(4096, 1);
+			return () -> {
+				long owners = 0;
+				for (int value : values)
+					owners += snapshot.ownerOf(value);
+				sink += owners;
+				return values.length;
+			};
+		}));
+		// SuperNode.publishRouting - a new snapshot on every membership change
+		benchmarks.add(new Benchmark("routingSnapshot", "snapshots", RING_SIZES, ringSize -> {
+			NavigableSet<Integer> ring = halfRing(ringSize);
+			Map<Integer, List<String>> addresses = addresses(ringSize);
+			return () -> {
+				sink += new RoutingSnapshot(ringSize, ring, addresses, true).ownerOf(0);
+				return 1;
+			};
+		}));
+		// SuperNode.UpdateFingerTables - every table of the ring rebuilt from scratch
+		benchmarks.add(new Benchmark("updateFingerTables", "tables", RING_SIZES, ringSize -> {
+			NavigableSet<Integer> ring = halfRing(ringSize);
+			return () -> {
+				for (int k=0; k<ringSize; k++)
+					sink += SuperNode.fingerTable(ringSize, ring, k).size();
+				return ringSize;
+			};
+		}));
+		// SuperNode.registerNode - SHA-1 of a node address onto the ring
+		benchmarks.add(new Benchmark("registerNode", "ids", RING_SIZES, ringSize -> {
+			String[] ips = new String[256];
+			for (int i=0; i<ips.length; i++)
+				ips[i] = "172.17." + (i / 256) + "." + (i % 256);
+			return () -> {
+				for (int i=0; i<ips.length; i++)
+					sink += SuperNode.hashId(ips[i], Integer.toString(40000 + i), ringSize);
+				return ips.length;
+			};
+		}));
+		// DHTNodeListener.nodeData - storing values into an empty store
+		benchmarks.add(new Benchmark("nodeDataInsert", "values", DATA_SIZES, size -> {
+			int[] values = randomValues(size, 2);
+			return () -> {
+				PartitionedIntStore store = new PartitionedIntStore(4);
+				for (int value : values)
+					store.add(value);
+				sink += store.size();
+				return values.length;
+			};
+		}));
+		// DHTNodeListener.nodeData - looking values up, half of them present
+		benchmarks.add(new Benchmark("nodeDataContains", "values", DATA_SIZES, size -> {
+			PartitionedIntStore store = new PartitionedIntStore(4);
+			int[] values = randomValues(size, 3);
+			for (int i=0; i<values.length; i+=2)
+				store.add(values[i]);
+			return () -> {
+				long found = 0;
+				for (int value : values)
+					found += store.contains(value) ? 1 : 0;
+				sink += found;
+				return values.length;
+			};
+		}));
+		// DHTNodeListener.nodeData on an ordered ring - storing values into sorted runs
+		benchmarks.add(new Benchmark("nodeDataOrderedInsert", "values", DATA_SIZES, size -> {
+			int[] values = randomValues(size, 2);
+			return () -> {
+				PartitionedIntStore store = new PartitionedIntStore(4, value -> (value ^ Integer.MIN_VALUE) >>> 30, true);
+				for (int value : values)
+					store.add(value);
+				sink += store.size();
+				return values.length;
+			};
+		}));
+		// DHTNodeListener.range - visiting the values of a partition in order, a page at a time
+		benchmarks.add(new Benchmark("nodeDataRange", "values", DATA_SIZES, size -> {
+			PartitionedIntStore store = new PartitionedIntStore(4, value -> (value ^ Integer.MIN_VALUE) >>> 30, true);
+			for (int value : randomValues(size, 3))
+				store.add(value);
+			int[] last = new int[1];
+			return () -> {
+				// partition 0 holds the lowest quarter of the values
+				int visited = 0;
+				int page = 1024;
+				for (int from=Integer.MIN_VALUE; page == 1024; from=last[0] + 1) {
+					page = store.forEachInRange(0, from, Integer.MIN_VALUE / 2 - 1, 1024, value -> last[0] = value);
+					visited += page;
+				}
+				sink += last[0];
+				return Math.max(1, visited);
+			};
+		}));
+		// DHTNodeListener.offline and dropPartition - detaching a partition, here putting it back
+		benchmarks.add(new Benchmark("nodeDataRehash", "values moved", DATA_SIZES, size -> {
+			PartitionedIntStore store = new PartitionedIntStore(4);
+			for (int value : randomValues(size, 4))
+				store.add(value);
+			return () -> {
+				IntSet[] moved = store.takePartition(1);
+				store.addAll(moved);
+				int values = (int) PartitionedIntStore.size(moved);
+				sink += values;
+				return values;
+			};
+		}));
+		// DHTNodeListener.keyValues - overwriting 1 KB values, each freeing the slot of the one before
+		benchmarks.add(new Benchmark("keyValuePut", "values", KEY_SIZES, size -> {
+			KeyValueStore store = new KeyValueStore(4, value -> Math.floorMod(value, 4), new SlabAllocator(1 << 20, 1L << 30));
+			byte[][] keys = keys(size);
+			long[] hashes = new long[size];
+			for (int i=0; i<size; i++)
+				hashes[i] = KeyValueStore.hash(keys[i], 0, keys[i].length);
+			byte[] value = new byte[1024];
+			return () -> {
+				for (int i=0; i<keys.length; i++)
+					store.put(hashes[i], keys[i], 0, keys[i].length, value, 0, value.length, true);
+				sink += store.size();
+				return keys.length;
+			};
+		}));
+		// DHTNodeListener.keyValues - copying 1 KB values out
+		benchmarks.add(new Benchmark("keyValueGet", "values", KEY_SIZES, size -> {
+			KeyValueStore store = new KeyValueStore(4, value -> Math.floorMod(value, 4), new SlabAllocator(1 << 20, 1L << 30));
+			byte[][] keys = keys(size);
+			long[] hashes = new long[size];
+			byte[] value = new byte[1024];
+			for (int i=0; i<size; i++) {
+				hashes[i] = KeyValueStore.hash(keys[i], 0, keys[i].length);
+				store.put(hashes[i], keys[i], 0, keys[i].length, value, 0, value.length, true);
+			}
+			return () -> {
+				for (int i=0; i<keys.length; i++)
+					sink += store.get(hashes[i], keys[i], 0, keys[i].length).length;
+				return keys.length;
+			};
+		}));
+		// DHTNodeListener.hotKeys - counting reads of which a third go to 10 hot values
+		benchmarks.add(new Benchmark("hotKeysOffer", "reads", KEY_SIZES, size -> {
+			HotKeys hotKeys = new HotKeys(128, 0.01, 10_000, 16);
+			int[] reads = randomValues(size, 6);
+			for (int i=0; i<size; i+=3)
+				reads[i] = Math.floorMod(reads[i], 10);
+			return () -> {
+				for (int read : reads)
+					sink += hotKeys.offer(read) ? 1 : 0;
+				return reads.length;
+			};
+		}));
+		// Frame - encoding and decoding a storebatch frame
+		benchmarks.add(new Benchmark("frameCodec", "values", new int[] {1, 4096}, size -> {
+			Frame frame = new Frame().reset(Frame.STORE_BATCH, 1);
+			for (int value : randomValues(size, 5))
+				frame.add(value);
+			Frame decoded = new Frame();
+			ByteBuffer buffer = ByteBuffer.allocate(frame.maxEncodedSize());
+			return () -> {
+				buffer.clear();
+				frame.encode(buffer);
+				decoded.decode(buffer.array(), 0);
+				sink += decoded.count();
+				return size;
+			};
+		}));
+		return benchmarks;
+	}
+
+	/**
+	 * Every other position of a ring online
+	 */
+	private static NavigableSet<Integer> halfRing(int ringSize) {
+		NavigableSet<Integer> ring = new TreeSet<>();
+		for (int id=0; id<ringSize; id+=2)
+			ring.add(id);
+		return ring;
+	}
+
+	private static Map<Integer, List<String>> addresses(int ringSize) {
+		Map<Integer, List<String>> addresses = new HashMap<>();
+		for (int id=0; id<ringSize; id+=2)
+			addresses.put(id, Arrays.asList("127.0.0.1", Integer.toString(40000 + id % 20000)));
+		return addresses;
+	}
+
+	private static byte[][] keys(int count) {
+		byte[][] keys = new byte[count][];
+		for (int i=0; i<count; i++)
+			keys[i] = ("session-" + i).getBytes();
+		return keys;
+	}
+
+	private static int[] randomValues(int count, long seed) {
+		Random random = new Random(seed);
+		int[] values = new int[count];
+		for (int i=0; i<count; i++)
+			values[i] = random.nextInt();
+		return values;
+	}
+
+	/**
+	 * Result of one iteration
+	 */
+	private static class Sample {
+		double opsPerSecond;
+		double allocatedPerOp;
+		long gcCount;
+		long gcTime;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+
+	/**
+	 * Runs an operation over and over for one iteration
+	 */
+	private static Sample iteration(Operation operation) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+		long gcCountBefore = gcCount();
+		long gcTimeBefore = gcTime();
+		long ops = 0;
+		long start = System.nanoTime();
+		long deadline = start + ITERATION_TIME * 1_000_000;
+		long now;
+		do {
+			ops += operation.run();
+			now = System.nanoTime();
+		} while (now < deadline);
+		Sample sample = new Sample();
+		sample.opsPerSecond = ops / ((now - start) / 1e9);
+		sample.allocatedPerOp = (threads.getThreadAllocatedBytes(thread) - allocatedBefore) / (double) ops;
+		sample.gcCount = gcCount() - gcCountBefore;
+		sample.gcTime = gcTime() - gcTimeBefore;
+		return sample;
+	}
+
+	private static void run(Benchmark benchmark, int size) throws Exception {
+		Operation operation = benchmark.setUp.apply(size);
+		for (int i=0; i<WARMUP; i++)
+			iteration(operation);
+		double[] throughput = new double[ITERATIONS];
+		double allocated = 0;
+		long gcCount = 0, gcTime = 0;
+		for (int i=0; i<ITERATIONS; i++) {
+			Sample sample = iteration(operation);
+			throughput[i] = sample.opsPerSecond;
+			allocated += sample.allocatedPerOp;
+			gcCount += sample.gcCount;
+			gcTime += sample.gcTime;
+		}
+		double mean = Arrays.stream(throughput).average().orElse(0);
+		double deviation = Math.sqrt(Arrays.stream(throughput).map(t -> (t - mean) * (t - mean)).sum()
+			/ Math.max(1, ITERATIONS - 1));
+		System.out.printf("%-20s %9d %16.0f +- %-12.0f %-13s %10.1f %8.1f %8.1f%n", benchmark.name, size, mean,
+			deviation, benchmark.unit + "/s", allocated / ITERATIONS, (double) gcCount / ITERATIONS,
+			(double) gcTime / ITERATIONS);
+	}
+
+	/**
+	 * Runs every benchmark whose name matches the optional regex argument
+	 */
+	public static void main(String[] args) throws Exception {
+		Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+		int[] sizes = SIZES == null || SIZES.isEmpty() ? null : Arrays.stream(SIZES.split(",")).mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+		System.out.printf("%d warmup and %d measured iterations of %d ms%n", WARMUP, ITERATIONS, ITERATION_TIME);
+		System.out.printf("%-20s %9s %32s %-13s %10s %8s %8s%n", "benchmark", "size", "throughput", "",
+			"bytes/op", "gc/iter", "gc ms");
+		for (Benchmark benchmark : benchmarks()) {
+			if (!filter.matcher(benchmark.name).find())
+				continue;
+			for (int size : sizes == null ? benchmark.sizes : sizes)
+				run(benchmark, size);
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * BulkTransfer.java
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Streams whole partitions of node data straight to another node over one connection.
+ * Values go out in chunks of "firefly bulk <transferID> <lender> <value> ..." - lender is
+ * the id of a node handing its data off before going offline, -1 otherwise - and the stream ends
+ * with "firefly bulkend <transferID> <count>", which the receiver acknowledges with
+ * "firefly bulkack <transferID> <received>" once every value is stored.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class BulkTransfer {
+
+	private static String SECRET_KEY = "firefly";
+	private static int CHUNK_SIZE = 4096;
+
+	/**
+	 * Sends the values of the given sets - partitions, or the stripes of them - to the node at ip and port - returns the number of bytes
+	 * sent if the receiver acknowledged every value, so the caller can safely drop its
+	 * copy, and -1 otherwise
+	 */
+	public static long send(ConnectionPool connections, String ip, int port, int lender,
+							   IntSet... partitions) {
+		String transferId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		String header = SECRET_KEY + " bulk " + transferId + " " + lender;
+		ConnectionPool.Connection connection = null;
+		int count = 0;
+		long bytes = 0;
+		try {
+			connection = connections.acquire(ip, port);
+			StringBuilder chunk = new StringBuilder(header);
+			int chunked = 0;
+			for (IntSet partition : partitions) {
+				for (int value : partition.toArray()) {
+					chunk.append(' ').append(value);
+					count++;
+					if (++chunked == CHUNK_SIZE) {
+						connection.send(chunk.toString());
+						bytes += chunk.length() + 1;
+						chunk.setLength(header.length());
+						chunked = 0;
+					}
+				}
+			}
+			if (chunked > 0) {
+				connection.send(chunk.toString());
+				bytes += chunk.length() + 1;
+			}
+			String end = SECRET_KEY + " bulkend " + transferId + " " + count;
+			connection.send(end);
+			bytes += end.length() + 1;
+			String reply = connection.receive();
+			connections.release(ip, port, connection);
+			// firefly bulkack <transferID> <received>
+			String[] replyChunks = reply.split("\\s+");
+			boolean complete = replyChunks[1].equals("bulkack") && replyChunks[2].equals(transferId)
+				&& Integer.parseInt(replyChunks[3]) == count;
+			if (!complete) {
+				System.out.println("Bulk transfer " + transferId + " incomplete: " + reply);
+				return -1;
+			}
+			return bytes;
+		} catch (IOException e) {
+			System.out.println("Bulk transfer to " + ip + ":" + port + " failed");
+			if (connection != null)
+				connection.close();
+			return -1;
+		}
+	}
+
+}
@@ -4,6 +4,10 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Class representing any client using the Chord DHT - handles requests to hash data
@@ -12,13 +16,36 @@ import java.net.Socket;
  *
  */
 public class Client {
-	// address of the supernode - change based on ip
-	private static String DHT_ADDRESS = "172.17.0.2";
-	private static int DHT_PORT = 5000;
+	// address of the supernode - change based on ip, or with -Ddht.supernode.host and -Ddht.supernode.port
+	private static String DHT_ADDRESS = System.getProperty("dht.supernode.host", "172.17.0.2");
+	private static int DHT_PORT = Integer.getInteger("dht.supernode.port", 5000);
 	private static String SECRET_KEY = "firefly";
+	private static int DHT_SIZE = (int)Math.pow(2, 2);
+	// values per storebatch message and batches sent ahead of their acknowledgements on import
+	private static int BATCH_SIZE = Integer.getInteger("dht.batchSize", 4096);
+	private static int IN_FLIGHT = Integer.getInteger("dht.inFlight", 8);
+	// pause before a batch a busy node turned away is sent again, doubling while it stays busy
+	private static long BACKOFF = 100;
+	private static long MAX_BACKOFF = 2000;
+	// values asked for per page of a range scan
+	private static int RANGE_PAGE = Integer.getInteger("dht.rangePage", 1024);
+	// imports are sent to nodes in binary frames - "-Ddht.protocol=text" sends the text form
+	// of the same messages instead, which is easier to debug
+	private static boolean BINARY = !System.getProperty("dht.protocol", "binary").equals("text");
+	// per request console lines, turned on with -Ddht.verbose=true
+	private static boolean VERBOSE = Boolean.getBoolean("dht.verbose");
 
+	// connections to the SuperNode are shared by all clients of this process
+	private static ConnectionPool connections = new ConnectionPool();
+	// online DHT nodes learned from the SuperNode - data can enter the DHT at any of them
+	private static volatile List<String[]> entryNodes = new ArrayList<>();
+
+	// stores and lookups, acknowledged by the DHT
+	private DHTClient dht = new DHTClient();
 	private int listenPort;
 	private BufferedReader stdIn;
+	// current pause of an import for busy nodes, 0 while they take its batches
+	private long importPause = 0;
 
 	/**
 	 * Constructor of the Client class - starts the client and initializes port to listen to
@@ -33,11 +60,112 @@ public class Client {
 	}
 
 	/**
-	 * Hash data into the Chord DHT
+	 * Asks the SuperNode which nodes are online and how data is replicated on them
+	 */
+	private void refreshEntryNodes() {
+		List<String[]> nodes = new ArrayList<>();
+		ReplicaRing known = this.dht.ring();
+		if (known != null) {
+			for (int nodeId : known.nodes())
+				nodes.add(new String[] {nodeId + "", known.ip(nodeId), known.port(nodeId) + ""});
+		}
+		entryNodes = nodes;
+	}
+
+	/**
+	 * Ask the DHT whether it holds a value
+	 */
+	private void startLookup() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		System.out.println("Enter data to look up: ");
+		try {
+			int data = Integer.parseInt(in.readLine());
+			DHTClient.Ack ack = this.dht.contains(data).get();
+			System.out.println(data + (ack.found ? " is" : " is not") + " stored on node " + ack.node);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid data format. Only integer supported.");
+		} catch (IOException e) {
+			System.out.println("IOException occurred");
+		} catch (ExecutionException e) {
+			System.out.println("Lookup failed: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ask for two bounds and print the values stored between them in order, a page at a time
+	 */
+	private void startRange() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			System.out.println("Enter lowest value: ");
+			int from = Integer.parseInt(in.readLine().trim());
+			System.out.println("Enter highest value: ");
+			int to = Integer.parseInt(in.readLine().trim());
+			StringBuilder line = new StringBuilder();
+			long count = this.dht.range(from, to, RANGE_PAGE, value -> {
+				line.append(value).append(' ');
+				if (line.length() > 72) {
+					System.out.println(line.toString().trim());
+					line.setLength(0);
+				}
+			}).get();
+			if (line.length() > 0)
+				System.out.println(line.toString().trim());
+			System.out.println(count + " value(s) between " + from + " and " + to);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid data format. Only integer supported.");
+		} catch (IOException e) {
+			System.out.println("IOException occurred");
+		} catch (ExecutionException e) {
+			System.out.println("Range scan failed: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ask for a key and a value and store them - both as text
+	 */
+	private void startPut() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			System.out.println("Enter key: ");
+			String key = in.readLine();
+			System.out.println("Enter value: ");
+			String value = in.readLine();
+			DHTClient.Ack ack = this.dht.put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8)).get();
+			System.out.println("Stored " + key + " on node " + ack.node);
+		} catch (IOException e) {
+			System.out.println("IOException occurred");
+		} catch (ExecutionException e) {
+			System.out.println("Could not store key: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ask for a key and print its value
 	 */
-	protected void hashData(int data, String flag) {
-		String message = SECRET_KEY + " store " + data + " " + flag; 
-		this.sendMessage(message);
+	private void startFetch() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			System.out.println("Enter key to look up: ");
+			String key = in.readLine();
+			DHTClient.Ack ack = this.dht.fetch(key.getBytes(StandardCharsets.UTF_8)).get();
+			if (ack.found)
+				System.out.println(key + " = " + new String(ack.value, StandardCharsets.UTF_8) + " on node " + ack.node);
+			else
+				System.out.println(key + " is not stored on node " + ack.node);
+		} catch (IOException e) {
+			System.out.println("IOException occurred");
+		} catch (ExecutionException e) {
+			System.out.println("Lookup failed: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -50,14 +178,159 @@ public class Client {
 		int data = 0;
 		try {
 			data = Integer.parseInt(stdIn.readLine());
-			// contact SuperNode to hash data
-			this.hashData(data, "false");
-			System.out.println("DONE HASHDATA");
+			// wait for the DHT to acknowledge the value
+			DHTClient.Ack ack = this.dht.store(data).get();
+			System.out.println("Stored " + data + " on node " + ack.node);
 		} catch (NumberFormatException e) {
 			System.out.println("Invalid data format. Only integer supported.");
 		} catch (IOException e) {
 			System.out.println("Something went wrong in client input. ");
 			e.printStackTrace();
+		} catch (ExecutionException e) {
+			System.out.println("Could not store " + data + ": " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Streams every integer of a file (one per line) into the DHT in storebatch messages,
+	 * keeping up to IN_FLIGHT batches outstanding on one connection, and reports throughput.
+	 * The SuperNode only speaks text, so batches sent to it are always text.
+	 */
+	protected void importFile(String path) {
+		if (entryNodes.isEmpty())
+			this.refreshEntryNodes();
+		List<String> target = Arrays.asList(DHT_ADDRESS, DHT_PORT + "");
+		List<String[]> nodes = entryNodes;
+		if (!nodes.isEmpty()) {
+			String[] node = nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+			target = Arrays.asList(node[1], node[2]);
+		}
+		String ip = target.get(0);
+		int port = Integer.parseInt(target.get(1));
+		boolean binary = BINARY && !nodes.isEmpty();
+		long start = System.nanoTime();
+		long sent = 0, stored = 0, skipped = 0;
+		int batches = 0, pending = 0, resent = 0;
+		// copies of the batches waiting for their acknowledgements, by request id
+		Map<Long, Frame> outstanding = new HashMap<>();
+		ConnectionPool.Connection connection = null;
+		try (BufferedReader fileReader = new BufferedReader(new FileReader(path))) {
+			connection = connections.acquire(ip, port);
+			Frame batch = new Frame();
+			Frame reply = new Frame();
+			int batched = 0;
+			String line;
+			while (true) {
+				line = fileReader.readLine();
+				if (line != null) {
+					line = line.trim();
+					if (line.isEmpty())
+						continue;
+					int data;
+					try {
+						data = Integer.parseInt(line);
+					} catch (NumberFormatException e) {
+						skipped++;
+						continue;
+					}
+					// request ids start at 1, 0 means no reply is wanted
+					if (batched == 0)
+						batch.reset(Frame.STORE_BATCH, batches + 1);
+					batch.add(data);
+					batched++;
+				}
+				if (batched == BATCH_SIZE || (line == null && batched > 0)) {
+					if (binary)
+						connection.send(batch);
+					else
+						connection.send(batch.toText());
+					outstanding.put(batch.requestId, new Frame().copy(batch));
+					sent += batched;
+					batches++;
+					pending++;
+					batched = 0;
+					// wait for the oldest batch once the window is full
+					while (pending == IN_FLIGHT) {
+						int count = this.storedCount(connection, binary, reply, outstanding);
+						if (count < 0) {
+							resent++;
+							continue;
+						}
+						stored += count;
+						pending--;
+					}
+				}
+				if (line == null)
+					break;
+			}
+			while (pending > 0) {
+				int count = this.storedCount(connection, binary, reply, outstanding);
+				if (count < 0) {
+					resent++;
+					continue;
+				}
+				stored += count;
+				pending--;
+			}
+			connections.release(ip, port, connection);
+		} catch (FileNotFoundException e) {
+			System.out.println("No such file: " + path);
+			return;
+		} catch (IOException e) {
+			System.out.println("Import interrupted after " + stored + " values");
+			if (connection != null)
+				connection.close();
+			return;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Imported " + stored + " of " + sent + " values in " + batches + " batches ("
+			+ skipped + " invalid lines skipped, " + resent + " batches sent again to busy nodes)");
+		System.out.printf("%.2f s, %.0f values/s%n", seconds, stored / seconds);
+	}
+
+	/**
+	 * Reads the next Frame.STORED acknowledgement and returns the number of values stored -
+	 * or, if the node was too busy to take the batch, sends it again after a pause and
+	 * returns -1, the batch being outstanding again
+	 */
+	private int storedCount(ConnectionPool.Connection connection, boolean binary, Frame reply,
+							Map<Long, Frame> outstanding) throws IOException {
+		if (binary)
+			connection.receive(reply);
+		else if (!reply.parseText(connection.receive().split("\\s+")))
+			return 0;
+		Frame batch = outstanding.get(reply.requestId);
+		if (reply.opcode == Frame.BUSY && batch != null) {
+			this.importPause = Math.min(MAX_BACKOFF, Math.max(BACKOFF, this.importPause * 2));
+			try {
+				Thread.sleep(this.importPause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Import interrupted");
+			}
+			if (binary)
+				connection.send(batch);
+			else
+				connection.send(batch.toText());
+			return -1;
+		}
+		this.importPause = 0;
+		outstanding.remove(reply.requestId);
+		return reply.opcode == Frame.STORED ? reply.get(0) : 0;
+	}
+
+	/**
+	 * Ask for a file of values to import
+	 */
+	private void startImport() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		System.out.println("Enter file to import: ");
+		try {
+			this.importFile(in.readLine().trim());
+		} catch (IOException e) {
+			System.out.println("IOException occurred");
 		}
 	}
 
@@ -68,9 +341,29 @@ public class Client {
 		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 		System.out.println("Enter node to make offline: ");
 		try {
-			int node = Integer.parseInt(in.readLine());
-			String msg = SECRET_KEY + " off " + node;
-			this.sendMessage(msg);
+			this.offline(Integer.parseInt(in.readLine()));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid input");
+		} catch (IOException e) {
+			System.out.println("IOException occurred");
+		}
+	}
+
+	/**
+	 * Tell the SuperNode to take a node offline
+	 */
+	protected void offline(int node) {
+		this.sendMessage(SECRET_KEY + " off " + node);
+	}
+
+	/**
+	 * Tell a particular node to leave the DHT for good
+	 */
+	private void leave() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		System.out.println("Enter node to remove: ");
+		try {
+			this.leave(Integer.parseInt(in.readLine()));
 		} catch (NumberFormatException e) {
 			System.out.println("Invalid input");
 		} catch (IOException e) {
@@ -78,6 +371,39 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Tell the SuperNode to remove a node - it hands off its data, forgets its id and stops
+	 */
+	protected void leave(int node) {
+		this.sendMessage(SECRET_KEY + " leave " + node);
+	}
+
+	/**
+	 * Prints the metrics of the SuperNode and of every online node, and how many lookups
+	 * of this client the near cache answered
+	 */
+	private void stats() {
+		int prefix = (SECRET_KEY + " stats ").length();
+		try {
+			String reply = connections.request(DHT_ADDRESS, DHT_PORT, SECRET_KEY + " stats");
+			System.out.println("SuperNode: " + reply.substring(Math.min(reply.length(), prefix)));
+		} catch (IOException e) {
+			System.out.println("Could not reach the SuperNode for its statistics");
+		}
+		this.refreshEntryNodes();
+		for (String[] node : entryNodes) {
+			// <nodeID>:<ip>:<port>
+			try {
+				String reply = connections.request(node[1], Integer.parseInt(node[2]), SECRET_KEY + " stats");
+				System.out.println("Node " + node[0] + ": "
+					+ reply.substring(Math.min(reply.length(), prefix)));
+			} catch (IOException e) {
+				System.out.println("Could not reach node " + node[0] + " for its statistics");
+			}
+		}
+		System.out.println("Client: " + this.dht.nearCache());
+	}
+
 	/**
 	 * Show the client the menu and choose subroutine based on it
 	 */
@@ -87,6 +413,13 @@ public class Client {
 		while(true) {
 			System.out.println("1. Enter data to store");
 			System.out.println("2. Make node offline");
+			System.out.println("3. Look up data");
+			System.out.println("4. Import data from file");
+			System.out.println("5. Show DHT statistics");
+			System.out.println("6. Remove node from the DHT");
+			System.out.println("7. Scan a range of data");
+			System.out.println("8. Store a key and value");
+			System.out.println("9. Look up a key");
 			System.out.println("Enter selection: ");
 			try {
 				choice = Integer.parseInt(menuIn.readLine());
@@ -100,6 +433,34 @@ public class Client {
 						this.offline();
 						break;
 					}
+					case 3: {
+						this.startLookup();
+						break;
+					}
+					case 4: {
+						this.startImport();
+						break;
+					}
+					case 5: {
+						this.stats();
+						break;
+					}
+					case 6: {
+						this.leave();
+						break;
+					}
+					case 7: {
+						this.startRange();
+						break;
+					}
+					case 8: {
+						this.startPut();
+						break;
+					}
+					case 9: {
+						this.startFetch();
+						break;
+					}
 					default: {
 						System.out.println("Invalid choice - try again.");
 					}
@@ -118,22 +479,25 @@ public class Client {
 	 * Send message to the Chord DHT
 	 */
 	private void sendMessage(String message) {
-		try (
-			Socket socket = new Socket(DHT_ADDRESS, DHT_PORT);
-			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			) {
-			out.println(message);
+		try {
+			connections.send(DHT_ADDRESS, DHT_PORT, message);
 		} catch (IOException e) {
 			System.out.println("Something went wrong while sending data to SuperNode");
 			e.printStackTrace();
 		}
-		System.out.println("sent data hash request to the SuperNode");
+		if (VERBOSE)
+			System.out.println("sent data hash request to the SuperNode");
 	}
 
 	/**
-	 * Main method of the Client class - starts the client menu
+	 * Main method of the Client class - starts the client menu, or imports a file
+	 * straight away with "import <file>"
 	 */
 	public static void main(String[] args) {
+		if (args.length == 2 && args[0].equals("import")) {
+			new Client().importFile(args[1]);
+			System.exit(0);
+		}
 		new Client().menu();
 	}
 
@@ -0,0 +1,252 @@
+/**
+ * Cluster.java
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs a whole Chord DHT in one process on loopback - the SuperNode and every node, each
+ * node in a data directory of its own - for trying the DHT out and for load tests. Nodes
+ * can be taken offline and brought back online again to simulate churn, and new nodes can
+ * join the running ring or existing ones leave it for good.
+ *
+ * Only one cluster can run in a process, since the SuperNode keeps its state in statics.
+ *
+ * Usage: java Cluster [nodes] [data directory] [SuperNode port]
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class Cluster {
+
+	private static String HOST = "127.0.0.1";
+	private static String SECRET_KEY = "firefly";
+	// nodes started when no count is given
+	private static int DHT_SIZE = (int)Math.pow(2, 2);
+	private static long STARTUP_TIMEOUT = 30_000;
+
+	private int nodeCount;
+	private File baseDirectory;
+	private int superNodePort;
+	// running nodes and the directories of all nodes, by node id
+	private Map<Integer, DHTNode> nodes = new ConcurrentHashMap<>();
+	private Map<Integer, File> directories = new ConcurrentHashMap<>();
+	// node directories created so far - each new node gets the next one
+	private int launched = 0;
+	private ConnectionPool connections = new ConnectionPool();
+
+	/**
+	 * Constructor - points every part of the DHT in this process at the SuperNode on
+	 * loopback, so it must run before any of them is used
+	 */
+	public Cluster(int nodeCount, File baseDirectory, int superNodePort) {
+		this.nodeCount = nodeCount;
+		this.baseDirectory = baseDirectory;
+		this.superNodePort = superNodePort;
+		System.setProperty("dht.supernode.host", HOST);
+		System.setProperty("dht.supernode.port", superNodePort + "");
+	}
+
+	/**
+	 * Starts the SuperNode and registers fresh nodes with it, then waits until the ring
+	 * is up
+	 */
+	public void start() throws IOException {
+		Thread superNode = new Thread(() -> new SuperNode().startDHT(), "supernode");
+		superNode.setDaemon(true);
+		superNode.start();
+		this.awaitPort(this.superNodePort);
+		for (int i=0; i<this.nodeCount; i++)
+			this.launchFresh();
+		// nodes registering after the first -Ddht.minNodes join the ring one by one
+		this.awaitOnline(this.nodeCount);
+	}
+
+	/**
+	 * Starts a node in the next unused directory, emptied of whatever an earlier run left
+	 * behind - returns its id
+	 */
+	private synchronized int launchFresh() throws IOException {
+		File directory = new File(this.baseDirectory, "node" + this.launched++);
+		directory.mkdirs();
+		for (File file : Objects.requireNonNull(directory.listFiles()))
+			file.delete();
+		DHTNode node = this.launch(directory);
+		this.directories.put(node.getNodeId(), directory);
+		return node.getNodeId();
+	}
+
+	/**
+	 * Adds a new node to the running ring - returns its id once the SuperNode has it online
+	 */
+	public int join() throws IOException {
+		int nodeId = this.launchFresh();
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (!this.onlineNodes().contains(nodeId)) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException("Node " + nodeId + " did not join the ring");
+			this.pause(20);
+		}
+		return nodeId;
+	}
+
+	/**
+	 * Removes a node for good - it hands off its data, deletes its files and stops. Returns
+	 * false if it did not stop in time.
+	 */
+	public boolean leave(int nodeId) throws IOException {
+		DHTNode node = this.nodes.get(nodeId);
+		if (node == null)
+			return false;
+		this.connections.send(HOST, this.superNodePort, SECRET_KEY + " leave " + nodeId);
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (!node.isStopped()) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			this.pause(20);
+		}
+		this.nodes.remove(nodeId);
+		this.directories.remove(nodeId).delete();
+		return true;
+	}
+
+	/**
+	 * Starts a node in a directory - it registers, or comes back online if the directory
+	 * holds the id of an earlier run
+	 */
+	private DHTNode launch(File directory) throws IOException {
+		DHTNode node = new DHTNode(directory);
+		node.onShutdown(node::stop);
+		this.nodes.put(node.getNodeId(), node);
+		return node;
+	}
+
+	/**
+	 * Waits until something listens on a local port
+	 */
+	private void awaitPort(int port) throws IOException {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (true) {
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress(HOST, port), 1000);
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw new IOException("Nothing listening on port " + port);
+				this.pause(50);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the SuperNode lists the given number of online nodes
+	 */
+	private void awaitOnline(int count) throws IOException {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (this.onlineNodes().size() != count) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException("Only " + this.onlineNodes().size() + " of " + count + " nodes came online");
+			this.pause(50);
+		}
+	}
+
+	/**
+	 * Ids of the nodes the SuperNode has online
+	 */
+	public List<Integer> onlineNodes() throws IOException {
+		String reply = this.connections.request(HOST, this.superNodePort, SECRET_KEY + " nodes");
+		String[] replyChunks = reply.split("\\s+");
+		List<Integer> online = new ArrayList<>();
+		for (int i=2; i<replyChunks.length; i++)
+			online.add(Integer.parseInt(replyChunks[i].split(":")[0]));
+		return online;
+	}
+
+	/**
+	 * Ids of every node of the cluster, online or not
+	 */
+	public List<Integer> nodeIds() {
+		return new ArrayList<>(new TreeSet<>(this.directories.keySet()));
+	}
+
+	public boolean isRunning(int nodeId) {
+		DHTNode node = this.nodes.get(nodeId);
+		return node != null && !node.isStopped();
+	}
+
+	/**
+	 * Takes a node offline the way a client does - it hands its data to its successor
+	 * and stops. Returns false if it did not stop in time.
+	 */
+	public boolean offline(int nodeId) throws IOException {
+		DHTNode node = this.nodes.get(nodeId);
+		if (node == null)
+			return false;
+		this.connections.send(HOST, this.superNodePort, SECRET_KEY + " off " + nodeId);
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (!node.isStopped()) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			this.pause(20);
+		}
+		this.nodes.remove(nodeId);
+		return true;
+	}
+
+	/**
+	 * Stops a node without telling anyone, as if it failed - the SuperNode finds out when
+	 * its heartbeats stop
+	 */
+	public boolean crash(int nodeId) {
+		DHTNode node = this.nodes.remove(nodeId);
+		if (node == null)
+			return false;
+		node.stop();
+		return true;
+	}
+
+	/**
+	 * Brings an offline node back online from its directory
+	 */
+	public void online(int nodeId) throws IOException {
+		if (this.isRunning(nodeId))
+			return;
+		this.launch(this.directories.get(nodeId));
+	}
+
+	/**
+	 * Stops every running node, without handing off data
+	 */
+	public void stop() {
+		for (DHTNode node : this.nodes.values())
+			node.stop();
+		this.nodes.clear();
+	}
+
+	private void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Main method of the Cluster class - starts a cluster and keeps it running
+	 */
+	public static void main(String[] args) throws IOException {
+		int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : DHT_SIZE;
+		File directory = new File(args.length > 1 ? args[1] : "cluster");
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+		Cluster cluster = new Cluster(nodeCount, directory, port);
+		cluster.start();
+		System.out.println("Cluster of " + nodeCount + " nodes running - SuperNode at " + HOST + ":" + port
+			+ ", data in " + directory.getAbsolutePath());
+		System.out.println("Clients connect with -Ddht.supernode.host=" + HOST + " -Ddht.supernode.port=" + port);
+	}
+
+}
@@ -0,0 +1,478 @@
+/**
+ * ConnectionPool.java
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived connections to the peers of the Chord DHT. Every connection
+ * carries many newline framed commands or binary frames, so a peer is only connected
+ * to once instead of once per message. Frames whose replies are waited for without
+ * blocking go out on one pipelined connection per peer instead, written by a thread of
+ * its own so the caller never blocks on a peer that stopped reading.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class ConnectionPool {
+
+	private static int MAX_IDLE_PER_PEER = 4;
+	// frames waiting to be written on a pipelined connection at most
+	private static int PIPELINE_QUEUE = 4096;
+	// how long connecting to a peer and waiting on its reply may take - -Ddht.connectTimeout
+	// and -Ddht.readTimeout change them, in milliseconds
+	static int CONNECT_TIMEOUT = Integer.getInteger("dht.connectTimeout", 5000);
+	static int READ_TIMEOUT = Integer.getInteger("dht.readTimeout", 30_000);
+
+	private int readTimeout;
+	// pipelined connections, one per peer, keyed by "ip:port"
+	private Map<String, Pipeline> pipelines = new ConcurrentHashMap<>();
+
+	// idle connections of each peer, keyed by "ip:port"
+	private Map<String, BlockingQueue<Connection>> idle = new ConcurrentHashMap<>();
+
+	/**
+	 * A single persistent connection to a peer
+	 */
+	static class Connection {
+		private SocketChannel channel;
+		private OutputStream out;
+		private InputStream in;
+		private ByteBuffer probe = ByteBuffer.allocate(1);
+		// reused to read lines and to decode frames, and to encode frames - apart, so one
+		// thread can send while another receives
+		private byte[] lineBuffer = new byte[256];
+		private ByteBuffer frameBuffer = ByteBuffer.allocate(1024);
+		private ByteBuffer sendBuffer = ByteBuffer.allocate(1024);
+
+		Connection(String ip, int port) throws IOException {
+			this(ip, port, READ_TIMEOUT);
+		}
+
+		/**
+		 * Connects to a peer, giving up on a read after readTimeout milliseconds - 0 waits
+		 * for as long as it takes
+		 */
+		Connection(String ip, int port, int readTimeout) throws IOException {
+			this.channel = SocketChannel.open();
+			try {
+				this.channel.socket().connect(new InetSocketAddress(InetAddress.getByName(ip), port), CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				this.channel.close();
+				throw e;
+			}
+			this.channel.socket().setSoTimeout(readTimeout);
+			this.channel.socket().setTcpNoDelay(true);
+			this.channel.socket().setKeepAlive(true);
+			// the socket's streams lock reads and writes apart, unlike Channels.newInputStream
+			// and newOutputStream, so a thread blocked reading does not hold up one writing
+			this.out = new BufferedOutputStream(this.channel.socket().getOutputStream(), 64 * 1024);
+			this.in = new BufferedInputStream(this.channel.socket().getInputStream(), 64 * 1024);
+		}
+
+		/**
+		 * Checks without blocking that the peer has not closed the connection while it sat
+		 * idle - writing to a connection whose peer restarted would silently lose the message
+		 */
+		boolean isAlive() {
+			try {
+				if (this.in.available() > 0)
+					return false;
+				this.channel.configureBlocking(false);
+				this.probe.clear();
+				int read = this.channel.read(this.probe);
+				this.channel.configureBlocking(true);
+				// unread data means the connection is out of step with its replies
+				return read == 0;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Writes one command on the connection
+		 */
+		void send(String message) throws IOException {
+			this.out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+			this.out.flush();
+		}
+
+		/**
+		 * Writes one binary frame on the connection
+		 */
+		void send(Frame frame) throws IOException {
+			int size = frame.maxEncodedSize();
+			if (this.sendBuffer.capacity() < size)
+				this.sendBuffer = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+			this.sendBuffer.clear();
+			frame.encode(this.sendBuffer);
+			this.out.write(this.sendBuffer.array(), 0, this.sendBuffer.position());
+			this.out.flush();
+		}
+
+		/**
+		 * Reads one reply line from the connection
+		 */
+		String receive() throws IOException {
+			int length = 0;
+			int b;
+			while ((b = this.in.read()) != '\n') {
+				if (b == -1)
+					throw new IOException("Connection to " + this.channel.socket().getRemoteSocketAddress() + " closed");
+				if (length == this.lineBuffer.length)
+					this.lineBuffer = Arrays.copyOf(this.lineBuffer, length * 2);
+				this.lineBuffer[length++] = (byte) b;
+			}
+			if (length > 0 && this.lineBuffer[length - 1] == '\r')
+				length--;
+			return new String(this.lineBuffer, 0, length, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Reads one binary reply frame from the connection into the given frame
+		 */
+		void receive(Frame frame) throws IOException {
+			int header = Frame.headerSize();
+			this.readFully(0, header);
+			byte[] array = this.frameBuffer.array();
+			if (array[0] != Frame.MAGIC)
+				throw new IOException("Connection to " + this.channel.socket().getRemoteSocketAddress() + " out of step");
+			int length = Frame.bodyLength(array, 0);
+			if (length < 0)
+				throw new IOException("Bad frame from " + this.channel.socket().getRemoteSocketAddress());
+			if (this.frameBuffer.capacity() < header + length) {
+				this.frameBuffer = ByteBuffer.allocate(Integer.highestOneBit(header + length) << 1);
+				System.arraycopy(array, 0, this.frameBuffer.array(), 0, header);
+			}
+			this.readFully(header, length);
+			if (!frame.decode(this.frameBuffer.array(), 0))
+				throw new IOException("Bad frame from " + this.channel.socket().getRemoteSocketAddress());
+		}
+
+		private void readFully(int offset, int length) throws IOException {
+			byte[] array = this.frameBuffer.array();
+			while (length > 0) {
+				int read = this.in.read(array, offset, length);
+				if (read == -1)
+					throw new IOException("Connection to " + this.channel.socket().getRemoteSocketAddress() + " closed");
+				offset += read;
+				length -= read;
+			}
+		}
+
+		void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	public ConnectionPool() {
+		this(READ_TIMEOUT);
+	}
+
+	/**
+	 * Pool whose connections give up on a reply after readTimeout milliseconds
+	 */
+	public ConnectionPool(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * A frame waiting to be written on a pipelined connection, and the reply to it
+	 */
+	private static class Request {
+		Frame frame;
+		CompletableFuture<Frame> reply;
+		volatile boolean written = false;
+
+		Request(Frame frame, CompletableFuture<Frame> reply) {
+			this.frame = frame;
+			this.reply = reply;
+		}
+	}
+
+	/**
+	 * A connection frames are sent on without waiting for the replies before them - a
+	 * writer thread sends the frames in the order they were queued, and a reader thread
+	 * completes each request as its reply comes, matched by request id
+	 */
+	private class Pipeline implements Runnable {
+		private String address;
+		private Connection connection;
+		private Map<Long, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+		private BlockingQueue<Request> writes = new LinkedBlockingQueue<>(PIPELINE_QUEUE);
+		private AtomicLong requestIds = new AtomicLong();
+		private volatile boolean open = true;
+		private Thread writer;
+
+		Pipeline(String ip, int port) throws IOException {
+			this.address = key(ip, port);
+			// the reader waits on replies for as long as the connection is open, requests time out apart
+			this.connection = new Connection(ip, port, 0);
+			Thread reader = new Thread(this, "peer-" + this.address);
+			reader.setDaemon(true);
+			reader.start();
+			this.writer = new Thread(this::write, "peer-writer-" + this.address);
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+
+		/**
+		 * Queues a copy of a frame to go out under a request id of this connection - a
+		 * request not even written by its timeout means the peer stopped reading, and the
+		 * connection is given up along with every request waiting on it
+		 */
+		CompletableFuture<Frame> request(Frame frame, long timeoutMillis) {
+			CompletableFuture<Frame> reply = new CompletableFuture<>();
+			long id = this.requestIds.incrementAndGet();
+			Frame copy = new Frame().copy(frame);
+			copy.requestId = id;
+			Request request = new Request(copy, reply);
+			this.pending.put(id, reply);
+			reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((r, failure) -> {
+				this.pending.remove(id);
+				if (failure instanceof TimeoutException && !request.written)
+					this.close();
+			});
+			if (!this.writes.offer(request))
+				reply.completeExceptionally(new IOException("Too many frames waiting for " + this.address));
+			else if (!this.open)
+				reply.completeExceptionally(new IOException("Connection to " + this.address + " lost"));
+			return reply;
+		}
+
+		/**
+		 * Writes the queued frames, skipping those whose requests timed out meanwhile
+		 */
+		private void write() {
+			try {
+				while (this.open) {
+					Request request = this.writes.take();
+					if (request.reply.isDone())
+						continue;
+					this.connection.send(request.frame);
+					request.written = true;
+				}
+			} catch (IOException e) {
+				this.close();
+			} catch (InterruptedException e) {
+				// closed
+			}
+		}
+
+		public void run() {
+			try {
+				while (this.open) {
+					Frame reply = new Frame();
+					this.connection.receive(reply);
+					CompletableFuture<Frame> request = this.pending.remove(reply.requestId);
+					// a reply that came after its request timed out has nobody waiting for it
+					if (request != null)
+						request.complete(reply);
+				}
+			} catch (IOException e) {
+				this.close();
+			}
+		}
+
+		/**
+		 * Closes the connection and fails every request still waiting on it
+		 */
+		void close() {
+			this.open = false;
+			pipelines.remove(this.address, this);
+			this.connection.close();
+			this.writer.interrupt();
+			IOException lost = new IOException("Connection to " + this.address + " lost");
+			for (CompletableFuture<Frame> request : this.pending.values())
+				request.completeExceptionally(lost);
+			this.writes.clear();
+		}
+	}
+
+	private static String key(String ip, int port) {
+		return ip + ":" + port;
+	}
+
+	/**
+	 * Takes an idle connection to the peer or opens a new one
+	 */
+	public Connection acquire(String ip, int port) throws IOException {
+		BlockingQueue<Connection> queue = this.idle.get(key(ip, port));
+		if (queue != null) {
+			Connection connection;
+			while ((connection = queue.poll()) != null) {
+				if (connection.isAlive())
+					return connection;
+				connection.close();
+			}
+		}
+		return new Connection(ip, port, this.readTimeout);
+	}
+
+	/**
+	 * Hands a healthy connection back to the pool
+	 */
+	public void release(String ip, int port, Connection connection) {
+		BlockingQueue<Connection> queue = this.idle.computeIfAbsent(key(ip, port),
+			k -> new LinkedBlockingQueue<>(MAX_IDLE_PER_PEER));
+		if (!queue.offer(connection))
+			connection.close();
+	}
+
+	/**
+	 * Sends a message to the peer - a stale pooled connection is replaced by a fresh
+	 * one transparently
+	 */
+	public void send(String ip, int port, String message) throws IOException {
+		Connection connection = this.acquire(ip, port);
+		try {
+			connection.send(message);
+		} catch (IOException e) {
+			connection.close();
+			this.invalidate(ip, port);
+			connection = new Connection(ip, port, this.readTimeout);
+			connection.send(message);
+		}
+		this.release(ip, port, connection);
+	}
+
+	/**
+	 * Sends a message to the peer and waits for its one line reply - only a message that
+	 * could not be written is sent again on a fresh connection, a reply that fails to come
+	 * is the caller's to handle
+	 */
+	public String request(String ip, int port, String message) throws IOException {
+		Connection connection = this.acquire(ip, port);
+		try {
+			connection.send(message);
+		} catch (IOException e) {
+			connection.close();
+			this.invalidate(ip, port);
+			connection = new Connection(ip, port, this.readTimeout);
+			try {
+				connection.send(message);
+			} catch (IOException retry) {
+				connection.close();
+				throw retry;
+			}
+		}
+		String reply;
+		try {
+			reply = connection.receive();
+		} catch (IOException e) {
+			// the peer may have acted on the command already, so it is not sent again
+			connection.close();
+			throw e;
+		}
+		this.release(ip, port, connection);
+		return reply;
+	}
+
+	/**
+	 * Sends a binary frame to the peer
+	 */
+	public void send(String ip, int port, Frame frame) throws IOException {
+		Connection connection = this.acquire(ip, port);
+		try {
+			connection.send(frame);
+		} catch (IOException e) {
+			connection.close();
+			this.invalidate(ip, port);
+			connection = new Connection(ip, port, this.readTimeout);
+			connection.send(frame);
+		}
+		this.release(ip, port, connection);
+	}
+
+	/**
+	 * Sends a binary frame to the peer and reads its reply frame into reply
+	 */
+	public void request(String ip, int port, Frame request, Frame reply) throws IOException {
+		Connection connection = this.acquire(ip, port);
+		try {
+			connection.send(request);
+		} catch (IOException e) {
+			connection.close();
+			this.invalidate(ip, port);
+			connection = new Connection(ip, port, this.readTimeout);
+			try {
+				connection.send(request);
+			} catch (IOException retry) {
+				connection.close();
+				throw retry;
+			}
+		}
+		try {
+			connection.receive(reply);
+		} catch (IOException e) {
+			// the peer may have acted on the frame already, so it is not sent again
+			connection.close();
+			throw e;
+		}
+		this.release(ip, port, connection);
+	}
+
+	/**
+	 * Sends a binary frame to the peer without waiting for its reply - the future completes
+	 * with the reply, or fails if none comes within the timeout. The frame is given a
+	 * request id of its own, and requests to a peer share one pipelined connection.
+	 */
+	public CompletableFuture<Frame> requestAsync(String ip, int port, Frame request, long timeoutMillis) {
+		Pipeline pipeline;
+		try {
+			pipeline = this.pipeline(ip, port);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return pipeline.request(request, timeoutMillis);
+	}
+
+	private Pipeline pipeline(String ip, int port) throws IOException {
+		String address = key(ip, port);
+		Pipeline pipeline = this.pipelines.get(address);
+		if (pipeline != null)
+			return pipeline;
+		synchronized (this.pipelines) {
+			pipeline = this.pipelines.get(address);
+			if (pipeline == null) {
+				pipeline = new Pipeline(ip, port);
+				this.pipelines.put(address, pipeline);
+			}
+			return pipeline;
+		}
+	}
+
+	/**
+	 * Closes all pooled connections to a peer, e.g. once it has moved to a new address
+	 */
+	public void invalidate(String ip, int port) {
+		Pipeline pipeline = this.pipelines.get(key(ip, port));
+		if (pipeline != null)
+			pipeline.close();
+		BlockingQueue<Connection> queue = this.idle.remove(key(ip, port));
+		if (queue == null)
+			return;
+		Connection connection;
+		while ((connection = queue.poll()) != null)
+			connection.close();
+	}
+
+}
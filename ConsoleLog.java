@@ -0,0 +1,118 @@
+/**
+ * ConsoleLog.java
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Console output of a DHT node, written by a background thread so request handling never
+ * waits on the console. Lines are queued up to a bound; past it they are dropped and
+ * counted rather than slowing the data path down. Per request lines are only logged in
+ * verbose mode, which "-Ddht.verbose=true" turns on.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class ConsoleLog implements Runnable {
+
+	private static int MAX_QUEUED = 64 * 1024;
+	private static boolean VERBOSE = Boolean.getBoolean("dht.verbose");
+
+	private BlockingQueue<String> lines = new LinkedBlockingQueue<>(MAX_QUEUED);
+	private AtomicLong dropped = new AtomicLong();
+	private ReentrantLock consoleLock;
+	private Thread writer;
+
+	/**
+	 * Constructor - prints under the console lock the node shares with its other threads
+	 */
+	public ConsoleLog(ReentrantLock consoleLock) {
+		this.consoleLock = consoleLock;
+		this.writer = new Thread(this, "console");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * True if per request lines are logged - check it before building an expensive line
+	 */
+	public boolean verbose() {
+		return VERBOSE;
+	}
+
+	/**
+	 * Queues a per request line to print in verbose mode
+	 */
+	public void debug(String line) {
+		if (VERBOSE)
+			this.println(line);
+	}
+
+	/**
+	 * Queues a line to print
+	 */
+	public void println(String line) {
+		if (!this.lines.offer(line))
+			this.dropped.incrementAndGet();
+	}
+
+	/**
+	 * Prints whatever is still queued right away, e.g. before the node exits
+	 */
+	public void flush() {
+		List<String> batch = new ArrayList<>();
+		this.lines.drainTo(batch);
+		this.print(batch);
+	}
+
+	/**
+	 * Number of lines waiting to be printed
+	 */
+	public int queued() {
+		return this.lines.size();
+	}
+
+	/**
+	 * Prints what is left and stops the writer thread
+	 */
+	public void close() {
+		this.writer.interrupt();
+		this.flush();
+	}
+
+	/**
+	 * Prints queued lines in batches
+	 */
+	public void run() {
+		List<String> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(this.lines.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			this.lines.drainTo(batch);
+			this.print(batch);
+			batch.clear();
+		}
+	}
+
+	private void print(List<String> batch) {
+		this.consoleLock.lock();
+		try {
+			long dropped = this.dropped.getAndSet(0);
+			if (dropped > 0)
+				System.out.println("(" + dropped + " log lines dropped)");
+			for (String line : batch)
+				System.out.println(line);
+		} finally {
+			this.consoleLock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,715 @@
+/**
+ * DHTClient.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client library of the Chord DHT for embedding in other programs. Stores and lookups
+ * return a CompletableFuture that completes with an Ack once the DHT answered, or
+ * exceptionally once every attempt failed. Every request carries an id and replies are
+ * matched to requests by id as they arrive, so many requests can be outstanding on each
+ * connection. A node handles the requests of one connection in order, so the client keeps
+ * -Ddht.connectionsPerNode connections to every node (4) and sends the requests for a
+ * value or key on the connection it hashes to - requests for different ones are handled
+ * side by side, those for the same one in the order they were sent. A request that times
+ * out, finds its node unreachable or is not acknowledged is retried against a freshly
+ * fetched ring, with a growing pause between attempts. The ring is fetched from the
+ * SuperNode on a thread of its own, once for all the attempts waiting for it.
+ *
+ * How many requests are outstanding at once is limited, and the limit adapts to what the
+ * nodes can take: it grows by one for every limit of requests answered and halves when a
+ * node is busy or does not answer in time, between 1 and -Ddht.maxInFlight (1024). Requests
+ * over the limit wait their turn, -Ddht.maxWaiting of them (65536) at most, beyond which
+ * new ones fail right away. A node too busy to take a request answers busy, and the
+ * request is sent again - to another replica, if it is a lookup - after a pause that
+ * grows while the nodes stay busy, without using up one of its attempts.
+ *
+ * Keys and values of any bytes are put, fetched and deleted the same way, placed on the
+ * ring by a hash of the key. On an ordered ring a range scan pages through the values
+ * between two bounds in order, asking a replica of the partition it has got to for each
+ * next page.
+ *
+ * Nodes mark their answers to lookups of hot values and keys with how long they may be
+ * cached, and the client keeps those answers in a near cache of -Ddht.nearCache entries
+ * (1024 by default, 0 for none), answering lookups of them without asking a node until
+ * they expire - so a lookup may miss a write by other clients that is that recent. A store,
+ * put or delete drops the answer cached for its value or key.
+ *
+ * Futures complete on the thread reading replies from a node, so callbacks attached to
+ * them without an executor must not block.
+ *
+ * Settings: -Ddht.timeout=2000 (ms per attempt), -Ddht.retries=3 (attempts after the first)
+ * and -Ddht.connectionsPerNode=4.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class DHTClient implements Closeable {
+
+	private static String SECRET_KEY = "firefly";
+	private static int DHT_SIZE = (int)Math.pow(2, 2);
+	// redirects a lookup may follow in one attempt
+	private static int MAX_HOPS = DHT_SIZE;
+	private static long BACKOFF = 100;
+	private static long MAX_BACKOFF = 2000;
+	// failed requests fetch the ring again at most this often
+	private static long RING_REFRESH_INTERVAL = 100;
+	private static int MAX_IN_FLIGHT = Math.max(1, Integer.getInteger("dht.maxInFlight", 1024));
+	private static int MAX_WAITING = Integer.getInteger("dht.maxWaiting", 65536);
+	private static int CONNECTIONS_PER_NODE = Math.max(1, Integer.getInteger("dht.connectionsPerNode", 4));
+
+	/**
+	 * Answer of the DHT to a request
+	 */
+	static class Ack {
+		long requestId;
+		int data;
+		// true for a store, and for a lookup of a value that is stored
+		boolean found;
+		// node that answered
+		int node;
+		int attempts;
+		// for one page of a range scan - its values, and the value to go on from if more follow
+		int[] values;
+		int next;
+		boolean more;
+		// value of a fetched key
+		byte[] value;
+		// true if the answer came from the near cache
+		boolean cached;
+
+		Ack(long requestId, int data, boolean found, int node, int attempts) {
+			this.requestId = requestId;
+			this.data = data;
+			this.found = found;
+			this.node = node;
+			this.attempts = attempts;
+		}
+
+		public String toString() {
+			if (this.values != null)
+				return this.values.length + " value(s) from " + this.data + " on node " + this.node
+					+ (this.more ? ", more from " + this.next : "");
+			return this.data + (this.found ? " on node " : " not on node ") + this.node
+				+ (this.cached ? " (cached)" : " after " + this.attempts + " attempt(s)");
+		}
+
+		/**
+		 * This answer as given from the near cache - with a value of its own, which the
+		 * caller may change
+		 */
+		Ack fromCache() {
+			Ack ack = new Ack(0, this.data, this.found, this.node, 0);
+			ack.value = this.value == null ? null : this.value.clone();
+			ack.cached = true;
+			return ack;
+		}
+	}
+
+	/**
+	 * A store or lookup and the state of its current attempt
+	 */
+	private static class Request {
+		byte opcode;
+		int data;
+		// bound and page size of a range scan
+		int to;
+		int limit;
+		// key and value of a put, fetch or delete, whose data is the placement of the key
+		byte[] key;
+		byte[] value;
+		CompletableFuture<Ack> future = new CompletableFuture<>();
+		int attempts;
+		int hops;
+		// busy replies in a row
+		int busy;
+		// replica a lookup starts at, moving on to the next one with every attempt
+		int firstReplica = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+		// id, node and connection of the current attempt
+		long id;
+		int node;
+		NodeConnection sentOn;
+		ScheduledFuture<?> timeout;
+
+		Request(byte opcode, int data) {
+			this.opcode = opcode;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * One of the connections to a node - requests are written under a lock and a reader
+	 * thread completes them as their replies arrive
+	 */
+	private class NodeConnection implements Runnable {
+		private String address;
+		private ConnectionPool.Connection connection;
+		private volatile boolean open = true;
+
+		NodeConnection(String ip, int port, int slot) throws IOException {
+			this.address = ip + ":" + port + "/" + slot;
+			// the reader waits on replies for as long as the connection is open, attempts time out apart
+			this.connection = new ConnectionPool.Connection(ip, port, 0);
+			Thread reader = new Thread(this, "dht-client-" + this.address);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		synchronized void send(Frame frame) throws IOException {
+			this.connection.send(frame);
+		}
+
+		public void run() {
+			Frame reply = new Frame();
+			try {
+				while (this.open) {
+					this.connection.receive(reply);
+					Request request = pending.remove(reply.requestId);
+					// a reply that came after its attempt timed out has nobody waiting for it
+					if (request != null)
+						handleReply(request, reply);
+				}
+			} catch (IOException e) {
+				if (this.open)
+					this.close();
+			}
+		}
+
+		/**
+		 * Closes the connection and retries every request still waiting on it
+		 */
+		void close() {
+			this.open = false;
+			connections.remove(this.address, this);
+			this.connection.close();
+			for (Request request : pending.values()) {
+				if (request.sentOn == this && pending.remove(request.id, request))
+					retry(request, new IOException("Connection to " + this.address + " lost"));
+			}
+		}
+	}
+
+	private String superNodeHost;
+	private int superNodePort;
+	private long timeout;
+	private int retries;
+	// text requests to the SuperNode
+	private ConnectionPool superNode = new ConnectionPool();
+	private Map<String, NodeConnection> connections = new ConcurrentHashMap<>();
+	private Map<Long, Request> pending = new ConcurrentHashMap<>();
+	private AtomicLong requestIds = new AtomicLong();
+	private ScheduledExecutorService timer;
+	private volatile ReplicaRing ring;
+	private volatile boolean ringStale = false;
+	private volatile long ringFetched;
+	// the fetch of the ring under way, if any, and the thread fetching it
+	private CompletableFuture<ReplicaRing> ringFetch;
+	private ExecutorService ringFetcher = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "dht-client-ring");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private volatile boolean closed = false;
+	// answers for hot values, by Integer, and for hot keys, by a ByteBuffer wrapping the key
+	private NearCache<Object, Ack> nearCache = new NearCache<>(Integer.getInteger("dht.nearCache", 1024));
+	// requests allowed in flight, requests in flight and requests waiting for their turn
+	private Object admission = new Object();
+	private double inFlightLimit = Math.min(64, MAX_IN_FLIGHT);
+	private int inFlight = 0;
+	private Deque<Request> waiting = new ArrayDeque<>();
+	private long lastDecrease;
+	// true while this thread starts waiting requests
+	private ThreadLocal<Boolean> admitting = ThreadLocal.withInitial(() -> false);
+	private AtomicLong busyReplies = new AtomicLong();
+
+	/**
+	 * Constructor - a client of the DHT whose SuperNode is at -Ddht.supernode.host and port
+	 */
+	public DHTClient() {
+		this(System.getProperty("dht.supernode.host", "172.17.0.2"), Integer.getInteger("dht.supernode.port", 5000),
+			Long.getLong("dht.timeout", 2000), Integer.getInteger("dht.retries", 3));
+	}
+
+	public DHTClient(String superNodeHost, int superNodePort, long timeoutMillis, int retries) {
+		this.superNodeHost = superNodeHost;
+		this.superNodePort = superNodePort;
+		this.timeout = timeoutMillis;
+		this.retries = retries;
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "dht-client-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Stores a value - the Ack comes once as many replicas as the DHT's write
+	 * acknowledgement level asks for have it
+	 */
+	public CompletableFuture<Ack> store(int data) {
+		this.nearCache.invalidate(data);
+		return this.submit(new Request(Frame.STORE_BATCH, data));
+	}
+
+	/**
+	 * Looks a value up on any of its replicas, or in the near cache
+	 */
+	public CompletableFuture<Ack> get(int data) {
+		return this.lookup(new Request(Frame.GET, data), data);
+	}
+
+	public CompletableFuture<Ack> contains(int data) {
+		return this.lookup(new Request(Frame.CONTAINS, data), data);
+	}
+
+	/**
+	 * Stores a value under a key, replacing the value it had - acknowledged like a store
+	 */
+	public CompletableFuture<Ack> put(byte[] key, byte[] value) {
+		Request request = this.keyRequest(Frame.PUT, key);
+		request.value = value;
+		this.nearCache.invalidate(ByteBuffer.wrap(key));
+		return this.submit(request);
+	}
+
+	/**
+	 * Looks a key up on any of its replicas, or in the near cache - the Ack holds its value
+	 * if it was found
+	 */
+	public CompletableFuture<Ack> fetch(byte[] key) {
+		return this.lookup(this.keyRequest(Frame.FETCH, key), ByteBuffer.wrap(key));
+	}
+
+	public CompletableFuture<Ack> delete(byte[] key) {
+		this.nearCache.invalidate(ByteBuffer.wrap(key));
+		return this.submit(this.keyRequest(Frame.DELETE, key));
+	}
+
+	/**
+	 * Answers a lookup from the near cache if it holds the answer, or sends it
+	 */
+	private CompletableFuture<Ack> lookup(Request request, Object cacheKey) {
+		Ack cached = this.nearCache.get(cacheKey);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached.fromCache());
+		return this.submit(request);
+	}
+
+	/**
+	 * Hits and misses of the near cache - every hit is a lookup no node had to answer
+	 */
+	NearCache<Object, Ack> nearCache() {
+		return this.nearCache;
+	}
+
+	private Request keyRequest(byte opcode, byte[] key) {
+		Request request = new Request(opcode, KeyValueStore.placement(KeyValueStore.hash(key, 0, key.length)));
+		request.key = key;
+		return request;
+	}
+
+	/**
+	 * Fetches one page of the values from..to in order, limit of them at most - the nodes
+	 * may send fewer, and the Ack says where the next page starts. Needs an ordered ring.
+	 */
+	public CompletableFuture<Ack> rangePage(int from, int to, int limit) {
+		Request request = new Request(Frame.RANGE, from);
+		request.to = to;
+		request.limit = limit;
+		if (!Placement.isOrdered()) {
+			request.future.completeExceptionally(new UnsupportedOperationException("Range scans need -Ddht.placement=ordered"));
+			return request.future;
+		}
+		return this.submit(request);
+	}
+
+	/**
+	 * Visits every value from..to in order, fetching pages of pageSize values at most one
+	 * after the other - completes with the number of values visited. The visitor runs on
+	 * the thread reading replies, so it must not block.
+	 */
+	public CompletableFuture<Long> range(int from, int to, int pageSize, IntHashSet.IntVisitor visitor) {
+		return this.range(from, to, pageSize, visitor, 0);
+	}
+
+	private CompletableFuture<Long> range(int from, int to, int pageSize, IntHashSet.IntVisitor visitor, long visited) {
+		return this.rangePage(from, to, pageSize).thenCompose(page -> {
+			for (int value : page.values)
+				visitor.visit(value);
+			long total = visited + page.values.length;
+			return page.more ? this.range(page.next, to, pageSize, visitor, total) : CompletableFuture.completedFuture(total);
+		});
+	}
+
+	/**
+	 * Online nodes and the replicas of each partition, fetched from the SuperNode when not known
+	 * yet or after a request failed - null if the SuperNode cannot be reached. Waits for the
+	 * fetch, so it must not be called from a callback.
+	 */
+	ReplicaRing ring() {
+		return this.ringAsync().join();
+	}
+
+	/**
+	 * The ring, completed right away while it is known and fresh - otherwise once the one
+	 * fetch of it under way, started if there is none, is done
+	 */
+	private CompletableFuture<ReplicaRing> ringAsync() {
+		ReplicaRing known = this.ring;
+		if (known != null && !(this.ringStale && System.currentTimeMillis() - this.ringFetched > RING_REFRESH_INTERVAL))
+			return CompletableFuture.completedFuture(known);
+		synchronized (this) {
+			if (this.ring != known)
+				return CompletableFuture.completedFuture(this.ring);
+			if (this.ringFetch == null) {
+				CompletableFuture<ReplicaRing> fetch = new CompletableFuture<>();
+				this.ringFetch = fetch;
+				try {
+					this.ringFetcher.execute(() -> {
+						ReplicaRing fetched = this.fetchRing();
+						synchronized (this) {
+							this.ringFetch = null;
+						}
+						fetch.complete(fetched);
+					});
+				} catch (RejectedExecutionException e) {
+					// the client is closing
+					this.ringFetch = null;
+					fetch.complete(this.ring);
+				}
+			}
+			return this.ringFetch;
+		}
+	}
+
+	/**
+	 * Asks the SuperNode for the ring - runs on the ring fetching thread only
+	 */
+	private ReplicaRing fetchRing() {
+		try {
+			// firefly ring <replicas> <writeAck> <placement> <nodeID>:<ip>:<port> ...
+			String reply = this.superNode.request(this.superNodeHost, this.superNodePort, SECRET_KEY + " ring");
+			this.ring = ReplicaRing.parse(reply.split("\\s+"));
+			this.ringStale = false;
+		} catch (IOException e) {
+			System.out.println("Could not reach the SuperNode for the ring");
+		}
+		// a failed fetch is not tried again right away either, while there is a ring to use
+		this.ringFetched = System.currentTimeMillis();
+		return this.ring;
+	}
+
+	/**
+	 * Sends a request if the limit of requests in flight allows, or has it wait its turn
+	 */
+	private CompletableFuture<Ack> submit(Request request) {
+		if (this.closed) {
+			request.future.completeExceptionally(new IOException("Client closed"));
+			return request.future;
+		}
+		synchronized (this.admission) {
+			if (this.inFlight >= this.inFlightLimit) {
+				if (this.waiting.size() >= MAX_WAITING)
+					request.future.completeExceptionally(new RejectedExecutionException(MAX_WAITING
+						+ " requests already waiting to be sent"));
+				else
+					this.waiting.add(request);
+				return request.future;
+			}
+			this.inFlight++;
+		}
+		this.start(request);
+		return request.future;
+	}
+
+	private void start(Request request) {
+		request.future.whenComplete((ack, failure) -> {
+			synchronized (this.admission) {
+				this.inFlight--;
+			}
+			this.admit();
+		});
+		this.attempt(request);
+	}
+
+	/**
+	 * Starts waiting requests while the limit allows - a request that completes right away
+	 * only frees its place for the loop further up its thread's stack to fill
+	 */
+	private void admit() {
+		if (this.admitting.get())
+			return;
+		this.admitting.set(true);
+		try {
+			while (true) {
+				Request next;
+				synchronized (this.admission) {
+					if (this.inFlight >= this.inFlightLimit || this.waiting.isEmpty())
+						return;
+					next = this.waiting.poll();
+					this.inFlight++;
+				}
+				this.start(next);
+			}
+		} finally {
+			this.admitting.set(false);
+		}
+	}
+
+	/**
+	 * Raises the limit of requests in flight by one over as many answers as the limit is
+	 */
+	private void answered() {
+		synchronized (this.admission) {
+			this.inFlightLimit = Math.min(MAX_IN_FLIGHT, this.inFlightLimit + 1 / this.inFlightLimit);
+		}
+	}
+
+	/**
+	 * Halves the limit of requests in flight - once per backoff interval, since the
+	 * requests in flight when the nodes got busy all hear about it
+	 */
+	private void overloaded() {
+		synchronized (this.admission) {
+			long now = System.nanoTime();
+			if (now - this.lastDecrease < BACKOFF * 1_000_000L)
+				return;
+			this.lastDecrease = now;
+			this.inFlightLimit = Math.max(1, this.inFlightLimit / 2);
+		}
+	}
+
+	/**
+	 * Requests allowed in flight at the moment
+	 */
+	int inFlightLimit() {
+		synchronized (this.admission) {
+			return (int) this.inFlightLimit;
+		}
+	}
+
+	/**
+	 * Busy replies received so far
+	 */
+	long busyReplies() {
+		return this.busyReplies.get();
+	}
+
+	/**
+	 * Starts an attempt - stores go to the owner of the value, lookups to one of its replicas,
+	 * a different one on every attempt
+	 */
+	private void attempt(Request request) {
+		this.ringAsync().thenAccept(known -> this.attempt(request, known)).exceptionally(failure -> {
+			request.future.completeExceptionally(failure);
+			return null;
+		});
+	}
+
+	private void attempt(Request request, ReplicaRing known) {
+		if (this.closed) {
+			request.future.completeExceptionally(new IOException("Client closed"));
+			return;
+		}
+		request.attempts++;
+		request.hops = 0;
+		if (known == null || known.size() == 0) {
+			// the SuperNode is unreachable, or the ring has not started yet
+			this.retry(request, new IOException("No DHT nodes online"));
+			return;
+		}
+		int[] replicas = known.replicasOf(request.data);
+		int node = replicas[0];
+		// writes go to the owner
+		if (request.opcode != Frame.STORE_BATCH && request.opcode != Frame.PUT && request.opcode != Frame.DELETE)
+			node = replicas[(request.firstReplica + request.attempts) % replicas.length];
+		request.node = node;
+		this.send(request, known.ip(node), known.port(node));
+	}
+
+	/**
+	 * Sends the current attempt of a request to a node and starts its timeout
+	 */
+	private void send(Request request, String ip, int port) {
+		long id = this.requestIds.incrementAndGet();
+		request.id = id;
+		Frame frame = new Frame().reset(request.opcode, id);
+		if (request.opcode == Frame.PUT)
+			frame.add(request.key.length).add(Frame.FROM_CLIENT).addBytes(request.key).addBytes(request.value);
+		else if (request.opcode == Frame.FETCH)
+			frame.addBytes(request.key);
+		else if (request.opcode == Frame.DELETE)
+			frame.add(Frame.FROM_CLIENT).addBytes(request.key);
+		else
+			frame.add(request.data);
+		if (request.opcode == Frame.RANGE)
+			frame.add(request.to).add(request.limit);
+		this.pending.put(id, request);
+		request.timeout = this.timer.schedule(() -> {
+			if (this.pending.remove(id, request)) {
+				this.overloaded();
+				this.retry(request, new TimeoutException("No reply to request " + id + " in " + this.timeout + " ms"));
+			}
+		}, this.timeout, TimeUnit.MILLISECONDS);
+		try {
+			// the requests for a value or key all go on one of the connections to the node
+			NodeConnection connection = this.connection(ip, port, Math.floorMod(request.data, CONNECTIONS_PER_NODE));
+			request.sentOn = connection;
+			connection.send(frame);
+		} catch (IOException e) {
+			if (this.pending.remove(id, request)) {
+				request.timeout.cancel(false);
+				this.retry(request, e);
+			}
+		}
+	}
+
+	private NodeConnection connection(String ip, int port, int slot) throws IOException {
+		String address = ip + ":" + port + "/" + slot;
+		NodeConnection connection = this.connections.get(address);
+		if (connection != null)
+			return connection;
+		synchronized (this.connections) {
+			connection = this.connections.get(address);
+			if (connection == null) {
+				connection = new NodeConnection(ip, port, slot);
+				this.connections.put(address, connection);
+			}
+			return connection;
+		}
+	}
+
+	/**
+	 * Completes a request from its reply, follows a redirect, or retries if the reply
+	 * says the request did not succeed
+	 */
+	private void handleReply(Request request, Frame reply) {
+		request.timeout.cancel(false);
+		if (reply.opcode != Frame.BUSY && reply.opcode != Frame.REDIRECT) {
+			request.busy = 0;
+			this.answered();
+		}
+		switch (reply.opcode) {
+			case Frame.STORED:	// count
+				if (reply.get(0) == 1)
+					request.future.complete(new Ack(request.id, request.data, true, request.node, request.attempts));
+				else if (request.key != null)
+					this.retry(request, new IOException("Write of key not acknowledged"));
+				else
+					this.retry(request, new IOException("Store of " + request.data + " not acknowledged"));
+				break;
+			case Frame.VALUE: {	// placement of the key, node[, cache ttl]; value
+				Ack ack = new Ack(request.id, request.data, true, reply.get(1), request.attempts);
+				ack.value = reply.bytes(0, reply.payloadLength());
+				if (reply.count() > 2)
+					this.nearCache.put(ByteBuffer.wrap(request.key.clone()), ack.fromCache(), reply.get(2));
+				request.future.complete(ack);
+				break;
+			}
+			case Frame.FOUND:	// data, node, predecessor[, cache ttl]
+			case Frame.MISSING: {
+				Ack ack = new Ack(request.id, request.data, reply.opcode == Frame.FOUND, reply.get(1), request.attempts);
+				if (reply.count() > 3)
+					this.nearCache.put(request.key == null ? (Object) request.data : ByteBuffer.wrap(request.key.clone()),
+						ack.fromCache(), reply.get(3));
+				request.future.complete(ack);
+				break;
+			}
+			case Frame.PAGE: {	// next, more flag, value ...
+				Ack page = new Ack(request.id, request.data, true, request.node, request.attempts);
+				page.values = new int[reply.count() - 2];
+				for (int i=0; i<page.values.length; i++)
+					page.values[i] = reply.get(i + 2);
+				page.next = reply.get(0);
+				page.more = reply.get(1) == 1;
+				request.future.complete(page);
+				break;
+			}
+			case Frame.REDIRECT:	// data, node, ipv4 address, port
+				if (++request.hops < MAX_HOPS) {
+					request.node = reply.get(1);
+					this.send(request, Frame.unpackAddress(reply.get(2)), reply.get(3));
+				} else {
+					this.retry(request, new IOException("Lookup of " + request.data + " did not reach a replica"));
+				}
+				break;
+			case Frame.BUSY:
+				this.busyReplies.incrementAndGet();
+				this.overloaded();
+				this.backOff(request);
+				break;
+			default:
+				this.retry(request, new IOException("Unexpected reply " + reply.toText()));
+		}
+	}
+
+	/**
+	 * Sends a request a node was too busy to take again after a pause, without using up an
+	 * attempt - a lookup goes to the next replica. The pause doubles while the request keeps
+	 * being turned away, and is drawn at random from its upper half so that the requests
+	 * turned away together do not all come back together.
+	 */
+	private void backOff(Request request) {
+		request.busy++;
+		request.attempts--;
+		request.firstReplica++;
+		long pause = Math.min(MAX_BACKOFF, BACKOFF << Math.min(request.busy - 1, 10));
+		pause = ThreadLocalRandom.current().nextLong(pause / 2, pause + 1);
+		try {
+			this.timer.schedule(() -> this.attempt(request), pause, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			request.future.completeExceptionally(new IOException("Client closed"));
+		}
+	}
+
+	/**
+	 * Tries a failed request again after a pause that doubles with every attempt, with the
+	 * ring fetched again - or fails it once it ran out of attempts
+	 */
+	private void retry(Request request, Exception cause) {
+		this.ringStale = true;
+		if (this.closed || request.attempts > this.retries) {
+			request.future.completeExceptionally(cause);
+			return;
+		}
+		long pause = Math.min(MAX_BACKOFF, BACKOFF << (request.attempts - 1));
+		try {
+			this.timer.schedule(() -> this.attempt(request), pause, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			request.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Fails whatever is still outstanding and closes every connection
+	 */
+	public void close() {
+		this.closed = true;
+		this.timer.shutdownNow();
+		this.ringFetcher.shutdownNow();
+		// attempts waiting for the ring fail as they start
+		synchronized (this) {
+			if (this.ringFetch != null)
+				this.ringFetch.complete(this.ring);
+		}
+		List<Request> waiting;
+		synchronized (this.admission) {
+			waiting = new ArrayList<>(this.waiting);
+			this.waiting.clear();
+		}
+		for (Request request : waiting)
+			request.future.completeExceptionally(new IOException("Client closed"));
+		for (NodeConnection connection : this.connections.values())
+			connection.close();
+		for (Request request : this.pending.values()) {
+			if (this.pending.remove(request.id, request))
+				request.future.completeExceptionally(new IOException("Client closed"));
+		}
+	}
+
+}
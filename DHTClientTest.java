@@ -0,0 +1,118 @@
+/**
+ * DHTClientTest.java
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The adaptive limit of requests in flight of a DHTClient, and how it retries requests a
+ * node was too busy for or did not answer - against a SuperNode and a one node ring that
+ * answer as each test tells them to.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class DHTClientTest {
+
+	private NioServer superNode;
+	private NioServer node;
+	private int superNodePort;
+	// requests the node answers busy before it stores any, and whether it answers at all
+	private AtomicInteger busyLeft = new AtomicInteger();
+	private volatile boolean silent = false;
+	private AtomicInteger received = new AtomicInteger();
+	private DHTClient client;
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	@BeforeEach
+	void startRing() throws IOException {
+		int nodePort = freePort();
+		this.node = new NioServer(nodePort, (message, from, later) -> null, (request, reply, later) -> {
+			this.received.incrementAndGet();
+			if (this.busyLeft.getAndDecrement() > 0) {
+				reply.reset(Frame.BUSY, request.requestId);
+				return true;
+			}
+			if (this.silent)
+				return false;
+			reply.reset(Frame.STORED, request.requestId).add(1);
+			return true;
+		}, 2);
+		String ring = "firefly ring 1 " + ReplicaRing.ONE + " " + Placement.describe() + " 0:127.0.0.1:" + nodePort;
+		this.superNodePort = freePort();
+		this.superNode = new NioServer(this.superNodePort, (message, from, later) -> ring, 1);
+		new Thread(this.node, "node").start();
+		new Thread(this.superNode, "supernode").start();
+	}
+
+	@AfterEach
+	void stopRing() {
+		if (this.client != null)
+			this.client.close();
+		this.node.close();
+		this.superNode.close();
+	}
+
+	private DHTClient client(long timeoutMillis, int retries) {
+		this.client = new DHTClient("127.0.0.1", this.superNodePort, timeoutMillis, retries);
+		return this.client;
+	}
+
+	@Test
+	void limitGrowsAsRequestsAreAnswered() {
+		DHTClient client = this.client(2000, 0);
+		int before = client.inFlightLimit();
+		for (int round=0; round<20; round++) {
+			List<CompletableFuture<DHTClient.Ack>> stores = new ArrayList<>();
+			for (int i=0; i<100; i++)
+				stores.add(client.store(round * 100 + i));
+			for (CompletableFuture<DHTClient.Ack> store : stores)
+				assertTrue(store.join().found);
+		}
+		// one more for every limit of answers - about 2000 / 64 of them
+		assertTrue(client.inFlightLimit() > before + 10, "limit " + client.inFlightLimit());
+		assertEquals(2000, this.received.get());
+	}
+
+	@Test
+	void busyNodeHalvesLimitAndIsAskedAgainWithoutUsingAnAttempt() {
+		DHTClient client = this.client(2000, 0);
+		int before = client.inFlightLimit();
+		this.busyLeft.set(3);
+		DHTClient.Ack ack = client.store(42).join();
+		assertTrue(ack.found);
+		assertEquals(1, ack.attempts);
+		assertEquals(3, client.busyReplies());
+		assertEquals(4, this.received.get());
+		assertTrue(client.inFlightLimit() <= before / 2, "limit " + client.inFlightLimit());
+	}
+
+	@Test
+	void timeoutHalvesLimitAndUsesUpTheAttempts() {
+		DHTClient client = this.client(200, 1);
+		int before = client.inFlightLimit();
+		this.silent = true;
+		CompletionException failure = assertThrows(CompletionException.class, () -> client.store(7).join());
+		assertInstanceOf(TimeoutException.class, failure.getCause());
+		assertEquals(2, this.received.get());
+		assertTrue(client.inFlightLimit() <= before / 2, "limit " + client.inFlightLimit());
+	}
+
+}
@@ -19,6 +19,9 @@ import java.net.ConnectException;
 import java.security.NoSuchAlgorithmException;
 import java.net.UnknownHostException;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -29,23 +32,41 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 class DHTNode {
 
-	private static String SUPERNODE_ADDRESS = "172.17.0.2";
-	private static int SUPERNODE_PORT = 5000;
+	// address of the supernode - change based on ip, or with -Ddht.supernode.host and -Ddht.supernode.port
+	private static String SUPERNODE_ADDRESS = System.getProperty("dht.supernode.host", "172.17.0.2");
+	private static int SUPERNODE_PORT = Integer.getInteger("dht.supernode.port", 5000);
 	private static String ID_FILE = "ChordNodeID";
+	private static String DATA_FILE = "ChordNodeData";
 	private static String SECRET_KEY = "firefly";
+	private static long HEARTBEAT_INTERVAL = 1000;
 
 	private int listenPort;
 	private int nodeId;
+	// directory holding the id file and data log of this node
+	private File directory;
+	private volatile boolean stopped = false;
 	private DHTNodeListener nodeListener;
+	// persistent connection to the SuperNode
+	private ConnectionPool connections = new ConnectionPool();
+	private ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
 
 	ReentrantLock consoleLock = new ReentrantLock(true);
     Object registerLock = new Object();
 
+    /**
+     * Constructor - spins up the Chord DHT node in the directory given by -Ddht.dataDir, the
+     * working directory by default
+     */
+	public DHTNode() throws IOException {
+		this(new File(System.getProperty("dht.dataDir", ".")));
+	}
+
     /**
      * Constructor - spins up the Chord DHT node - registers if node hasn't been registered before,
      * retrieves port and node id if coming back online
      */
-	public DHTNode() throws IOException {
+	public DHTNode(File directory) throws IOException {
+		this.directory = directory;
 		this.checkIdFile();
 
 		// select port to use
@@ -57,8 +78,10 @@ class DHTNode {
 			}
 		}
 
-		this.nodeListener = new DHTNodeListener(this.listenPort, ID_FILE, consoleLock, registerLock);
-		new Thread(nodeListener).start();
+		// a node coming back online recovers the data it held from its data log
+		this.nodeListener = new DHTNodeListener(this.listenPort, this.nodeId, this.file(ID_FILE), this.file(DATA_FILE),
+			consoleLock, registerLock);
+		new Thread(nodeListener, "node-" + this.listenPort).start();
 
 		if (this.nodeId == -1) {
 			// node has not been registered with the SuperNode of the DHT yet
@@ -66,18 +89,65 @@ class DHTNode {
 			System.out.println("registering DHT node..");
 			synchronized (registerLock) {
 				try {
-					registerLock.wait();				
+					// the id may have arrived before this thread got here
+					while (!this.nodeListener.isRegistered())
+						registerLock.wait();
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
 			System.out.println("node registered");
 			} 
+			// read the id the SuperNode assigned
+			this.checkIdFile();
 		} else {
 			System.out.println("Node back online. Updating SuperNode..");
 			// read node id file to update values of ip and port
 			this.checkIdFile();
 			this.updateSuperNode();
 		}
+		this.startHeartbeats();
+	}
+
+	/**
+	 * Path of a file in the directory of this node
+	 */
+	private String file(String name) {
+		return new File(this.directory, name).getPath();
+	}
+
+	public int getNodeId() {
+		return this.nodeId;
+	}
+
+	/**
+	 * Replaces exiting the process once the node has gone offline - see stop()
+	 */
+	public void onShutdown(Runnable shutdown) {
+		this.nodeListener.onShutdown(shutdown);
+	}
+
+	/**
+	 * Stops heartbeats and the listener without handing off data, e.g. once it has been
+	 * handed off when running in a process with other nodes
+	 */
+	public void stop() {
+		this.stopped = true;
+		this.heartbeats.shutdownNow();
+		this.nodeListener.close();
+	}
+
+	public boolean isStopped() {
+		return this.stopped;
+	}
+
+	/**
+	 * Lets the SuperNode know this node is alive at a fixed rate, so it never has to
+	 * probe the node itself
+	 */
+	private void startHeartbeats() {
+		String message = SECRET_KEY + " heartbeat " + this.nodeId;
+		this.heartbeats.scheduleAtFixedRate(() -> this.sendMessage(message), HEARTBEAT_INTERVAL,
+			HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -85,9 +155,7 @@ class DHTNode {
 	 */
 	public void sendMessage(String message) {
 		try {
-			Socket socket = new Socket(SUPERNODE_ADDRESS, SUPERNODE_PORT);
-			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			out.println(message);
+			this.connections.send(SUPERNODE_ADDRESS, SUPERNODE_PORT, message);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -115,7 +183,7 @@ class DHTNode {
 	 */
 	public void checkIdFile() {
 		try {
-			BufferedReader fileReader = new BufferedReader(new FileReader(ID_FILE));
+			BufferedReader fileReader = new BufferedReader(new FileReader(this.file(ID_FILE)));
 			this.nodeId = Integer.parseInt(fileReader.readLine());
 			this.listenPort = Integer.parseInt(fileReader.readLine());
 			fileReader.close();
@@ -3,59 +3,141 @@
  */
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Listener thread for each DHT node that listens for responses from the SuperNode
+ * Listener thread for each DHT node that listens for responses from the SuperNode.
+ * Requests are handled concurrently - the node's data is locked by stripe, and moving a
+ * partition only holds up stores to that partition.
  */
 class DHTNodeListener implements Runnable {
 
 	private int port;
+	// id the SuperNode assigned, -1 until it has
+	private volatile int nodeId;
 	private String idFile;
-	protected Set<Integer> nodeData = new HashSet<>();
+	protected PartitionedIntStore nodeData = new PartitionedIntStore(Placement.partitions(), Placement::partitionOf,
+		Placement.isOrdered());
+	// keys and values of any bytes, off the heap - they are not logged, so a node that
+	// restarts gets them back from the other replicas when it joins the ring again
+	private SlabAllocator slabs = new SlabAllocator();
+	private KeyValueStore keyValues = new KeyValueStore(Placement.partitions(), Placement::partitionOf, this.slabs);
+	// most read values and keys, whose lookup answers readers may cache for a while
+	private HotKeys hotKeys = new HotKeys();
+	// finger table of this node, published by the SuperNode on every membership change of a
+	// chord ring
+	private volatile FingerTable fingerTable;
+	// online nodes and the replicas of each partition, as published by the SuperNode
+	private volatile ReplicaRing ring;
+	// persistent connections to the other nodes data is forwarded to
+	private ConnectionPool connections = new ConnectionPool();
+	// values received so far by each incoming bulk transfer
+	private Map<String, Integer> transfers = new ConcurrentHashMap<>();
+	// values a node handed off to this one before going offline, by partition - that node
+	// keeps them on disk, so they need not be sent back when it returns to own them again
+	private Map<Integer, IntHashSet> borrowed = new ConcurrentHashMap<>();
+	// node that lent the values in borrowed, by partition
+	private Map<Integer, Integer> lenders = new ConcurrentHashMap<>();
+	// partitions being copied to a node about to join the ring - stores to them are passed
+	// on to it until the ring it joined arrives
+	private Map<Integer, Mirror> migrations = new ConcurrentHashMap<>();
+	// durable log of nodeData
+	private DataLog dataLog;
+	private IntHashSet.IntVisitor logAdd = value -> this.dataLog.append(DataLog.ADD, value);
+	// serializes finger table updates, which replace the table based on the current one
+	private Object fingerLock = new Object();
+	private NioServer server;
+	private ConsoleLog console;
+	private Metrics metrics = new Metrics();
+	// set once the SuperNode has assigned this node its id
+	private volatile boolean registered = false;
+	// what to do once all data is handed off on going offline
+	private Runnable shutdown = () -> System.exit(0);
+	// writes to the next replicas once the ones before them answered, off the threads reading replies
+	private ExecutorService replicators = Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "replicator");
+		thread.setDaemon(true);
+		return thread;
+	});
 	ReentrantLock consoleLock;
     Object registerLock;
 
-	private static int DHT_SIZE = (int)Math.pow(2, 2);
+	private static int WORKER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
 	private static String SECRET_KEY = "firefly";
+	// data path requests come in binary frames, signed - "-Ddht.protocol=text" takes their
+	// unsigned text form too, for debugging
+	private static boolean TEXT = System.getProperty("dht.protocol", "binary").equals("text");
+	// values per page of a range scan at most, whatever the client asks for
+	private static int RANGE_PAGE = Math.max(1, Integer.getInteger("dht.rangePage", 1024));
+	// puts sent ahead of their acknowledgements when keys move to another node
+	private static int KEY_WINDOW = 64;
+	// milliseconds readers may cache the answer for a hot value or key, 0 to not track them
+	private static int HOT_TTL = Integer.getInteger("dht.hotTtl", 1000);
+	// milliseconds a replica has to acknowledge a write before it counts as not having it
+	private static long REPLICA_TIMEOUT = Long.getLong("dht.replicaTimeout", 1000);
 
 	/**
-	 * Constructor - initializes listener thread of Chord DHT node
+	 * A joining node partitions are copied to
 	 */
-	public DHTNodeListener(int port, String idFile, ReentrantLock consoleLock, Object registerLock) {
+	private static class Mirror {
+		int node;
+		String ip;
+		int port;
+
+		Mirror(int node, String ip, int port) {
+			this.node = node;
+			this.ip = ip;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * Constructor - initializes listener thread of Chord DHT node, recovering the data
+	 * it held before if it is coming back online with a node id it was assigned before
+	 */
+	public DHTNodeListener(int port, int nodeId, String idFile, String dataFile,
+						   ReentrantLock consoleLock, Object registerLock) throws IOException {
+		boolean recover = nodeId != -1;
 		this.port = port;
+		this.nodeId = nodeId;
 		this.idFile = idFile;
 		this.consoleLock = consoleLock;
         this.registerLock = registerLock;
+		this.console = new ConsoleLog(consoleLock);
+		this.dataLog = new DataLog(dataFile, recover);
+		if (recover)
+			this.recover();
+		this.dataLog.start(this::compact);
+		this.server = new NioServer(port, (message, from, later) -> this.timedInput(message, later), this::timedFrame,
+			WORKER_THREADS);
+		this.metrics.gauge("keys", this.nodeData::size);
+		this.metrics.gauge("partitions.held", this::partitionsHeld);
+		this.metrics.gauge("kv.keys", this.keyValues::size);
+		this.metrics.gauge("kv.bytes", this.keyValues::bytes);
+		this.metrics.gauge("kv.tombstones", this.keyValues::tombstones);
+		this.metrics.gauge("offheap.used", this.slabs::used);
+		this.metrics.gauge("offheap.reserved", this.slabs::reserved);
+		this.metrics.gauge("hot.keys", () -> this.hotKeys.hot().size());
+		this.metrics.gauge("queue.requests", this.server::queuedCommands);
+		this.metrics.gauge("requests.busy", this.server::busyReplies);
+		this.metrics.gauge("queue.console", this.console::queued);
+		this.metrics.register("dht:type=Node,port=" + port);
 	}
 
 	/**
 	 * Run method defined for thread - constantly listens to the SuperNode for 
-	 * store/move/rehash instructions
+	 * store/migrate/rehash instructions
 	 */
 	public void run() {
-		try (ServerSocket listener = new ServerSocket(port)) {
-			consoleLock.lock();
-			System.out.println("Listening on port " + port + "...");
-			consoleLock.unlock();
-			while(true) {
-				Socket listenerSocket = listener.accept();
-				consoleLock.lock();
-				BufferedReader in = new BufferedReader(
-					new InputStreamReader(listenerSocket.getInputStream()));
-				String message = in.readLine();
-				// if not just a ping to check status
-				if (message != null)
-					this.handleInput(message);
-				listenerSocket.close();
-				consoleLock.unlock();
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		this.console.println("Listening on port " + port + "...");
+		this.server.run();
 	}
 
 	/**
@@ -70,84 +152,1192 @@ class DHTNodeListener implements Runnable {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		this.nodeId = Integer.parseInt(id);
 		synchronized (registerLock) {
+			this.registered = true;
         	registerLock.notify();
     	}
 	}
 
 	/**
-	 * Rehash values of a certain key
+	 * True once the id file has been written - checked under the register lock
+	 */
+	public boolean isRegistered() {
+		return this.registered;
+	}
+
+	/**
+	 * Replaces exiting the process as the last step of going offline, e.g. to stop just
+	 * this node when several run in one process
+	 */
+	public void onShutdown(Runnable shutdown) {
+		this.shutdown = shutdown;
+	}
+
+	/**
+	 * Stops serving and closes the data log
+	 */
+	public void close() {
+		this.server.close();
+		this.replicators.shutdown();
+		this.metrics.unregister();
+		try {
+			this.dataLog.close();
+		} catch (IOException e) {
+			this.console.println("Could not close data log");
+			e.printStackTrace();
+		}
+		this.console.close();
+	}
+
+	/**
+	 * Deletes the id file and the data log of a node that left the DHT, so it registers
+	 * as a new node if it is started again
+	 */
+	private void forget() {
+		try {
+			Files.deleteIfExists(Paths.get(this.idFile));
+			this.dataLog.delete();
+		} catch (IOException e) {
+			this.console.println("Could not delete node files");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads back the data held before the node went offline
+	 */
+	private void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		long records = this.dataLog.recover(new DataLog.Replayer() {
+			public void add(int value) {
+				nodeData.add(value);
+			}
+			public void dropPartition(int partition) {
+				nodeData.takePartition(partition);
+			}
+		});
+		this.console.println("Recovered " + this.nodeData.size() + " values from " + records + " records in "
+			+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Folds the data log into a new snapshot - stores wait until it is written
+	 */
+	private void compact() {
+		this.nodeData.lockAll();
+		try {
+			this.dataLog.compact(this.nodeData);
+		} catch (IOException e) {
+			this.console.println("Could not compact data log");
+			e.printStackTrace();
+		} finally {
+			this.nodeData.unlockAll();
+		}
+	}
+
+	/**
+	 * Stores a value and logs it if it is new
+	 */
+	private void store(int data) {
+		this.nodeData.add(data, this.logAdd);
+	}
+
+	/**
+	 * Number of partitions this node holds values of
+	 */
+	private int partitionsHeld() {
+		int held = 0;
+		for (int p=0; p<this.nodeData.partitionCount(); p++) {
+			if (this.nodeData.partitionSize(p) > 0)
+				held++;
+		}
+		return held;
+	}
+
+	/**
+	 * Parses a comma separated list of partitions
+	 */
+	private static int[] partitions(String list) {
+		return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+
+	/**
+	 * Token ring of the online nodes and the given one
+	 */
+	private Placement withNode(int nodeId) {
+		ReplicaRing ring = this.ring;
+		Set<Integer> nodes = ring == null ? new TreeSet<>() : ring.nodes();
+		nodes.add(nodeId);
+		return new Placement(nodes);
+	}
+
+	/**
+	 * Copies the values of some partitions to a node that just became one of their replicas,
+	 * keeping them here since this node remains a replica as well - only what it is missing
+	 */
+	public void copy(int[] partitions, String ip, int port) {
+		IntHashSet[] copies = this.differences(partitions, ip, port, -1);
+		long count = 0;
+		for (IntHashSet copy : copies)
+			count += copy.size();
+		long bytes = BulkTransfer.send(this.connections, ip, port, -1, copies);
+		if (bytes < 0) {
+			this.console.println("Could not copy " + partitions.length + " partition(s)");
+			return;
+		}
+		this.metrics.add("rehash.values", count);
+		this.metrics.add("rehash.bytes", bytes);
+		this.console.println("copied " + count + " values of " + partitions.length + " partition(s)");
+	}
+
+	/**
+	 * Copies partitions to a node about to join the ring as one of their replicas - only what
+	 * it is missing, so a node back from a short outage gets little more than what it missed,
+	 * and then their keys - and passes stores and key writes to them on to it from now until
+	 * the ring it joined arrives. Returns the number of values copied, -1 if the copy failed.
+	 */
+	public long migrate(int[] partitions, int nodeId, String ip, int port) {
+		Mirror mirror = new Mirror(nodeId, ip, port);
+		// a store from here on reaches the joining node in the copy, passed on, or both
+		for (int partition : partitions)
+			this.migrations.put(partition, mirror);
+		IntHashSet[] copies = this.differences(partitions, ip, port, nodeId);
+		long count = 0;
+		for (IntHashSet copy : copies)
+			count += copy.size();
+		long bytes = BulkTransfer.send(this.connections, ip, port, -1, copies);
+		if (bytes < 0) {
+			this.release(partitions, nodeId);
+			this.console.println("Could not copy " + partitions.length + " partition(s) to joining node " + nodeId);
+			return -1;
+		}
+		long keys = 0;
+		for (int partition : partitions) {
+			long sent = this.keyValues.partitionSize(partition) == 0 ? 0 : this.pushKeys(partition, ip, port);
+			if (sent < 0) {
+				this.release(partitions, nodeId);
+				this.console.println("Could not copy the keys of partition " + partition + " to joining node " + nodeId);
+				return -1;
+			}
+			keys += sent;
+		}
+		this.metrics.add("migrate.values", count);
+		this.metrics.add("migrate.bytes", bytes);
+		this.console.println("copied " + count + " values and " + keys + " keys of " + partitions.length
+			+ " partition(s) to joining node " + nodeId);
+		return count;
+	}
+
+	/**
+	 * Values of some partitions the node at ip and port is missing. It is asked for the
+	 * digest of each partition, and then of the leaves of those whose digests differ, and
+	 * only the values of leaves that differ are taken - a partition it holds nothing of, or
+	 * every partition if it cannot tell, is taken whole. Values the given node lent this one
+	 * are left out, it still has them.
+	 */
+	private IntHashSet[] differences(int[] partitions, String ip, int port, int lender) {
+		IntHashSet[] missing = new IntHashSet[partitions.length];
+		long[] remote = this.remoteDigests("digest", partitions, ip, port, 1);
+		List<Integer> compare = new ArrayList<>();
+		for (int i=0; i<partitions.length; i++) {
+			missing[i] = new IntHashSet();
+			if (remote == null || remote[i] == 0)
+				this.collect(partitions[i], null, lender, missing[i]);
+			else if (remote[i] != this.nodeData.partitionDigest(partitions[i]))
+				compare.add(i);
+		}
+		if (compare.isEmpty())
+			return missing;
+		int[] compared = compare.stream().mapToInt(i -> partitions[i]).toArray();
+		int leaves = this.nodeData.leaves();
+		long[] remoteLeaves = this.remoteDigests("leaves", compared, ip, port, leaves);
+		int differing = 0;
+		for (int c=0; c<compared.length; c++) {
+			long[] local = this.nodeData.leafDigests(compared[c]);
+			BitSet differ = new BitSet(leaves);
+			for (int l=0; l<leaves; l++) {
+				if (remoteLeaves == null || remoteLeaves[c * leaves + l] != local[l])
+					differ.set(l);
+			}
+			differing += differ.cardinality();
+			this.collect(compared[c], differ, lender, missing[compare.get(c)]);
+		}
+		this.metrics.add("digest.leaves.compared", (long) compared.length * leaves);
+		this.metrics.add("digest.leaves.differing", differing);
+		return missing;
+	}
+
+	/**
+	 * Adds the values of the given leaves of a partition, all of them for null, to a set -
+	 * leaving out values the lender lent this node
+	 */
+	private void collect(int partition, BitSet leaves, int lender, IntHashSet into) {
+		IntHashSet lent = lender != -1 && this.lenders.getOrDefault(partition, -1) == lender
+			? this.borrowed.get(partition) : null;
+		if (lent == null) {
+			this.visit(partition, leaves, into::add);
+			return;
+		}
+		// a bulk transfer may still be adding to it
+		synchronized (lent) {
+			this.visit(partition, leaves, value -> {
+				if (!lent.contains(value))
+					into.add(value);
+			});
+		}
+	}
+
+	private void visit(int partition, BitSet leaves, IntHashSet.IntVisitor visitor) {
+		if (leaves == null)
+			this.nodeData.forEachInPartition(partition, visitor);
+		else
+			this.nodeData.forEachInLeaves(partition, leaves, visitor);
+	}
+
+	/**
+	 * Asks a node for digests of some partitions - "digest" for one per partition, "leaves"
+	 * for those of every leaf of each - or null if it cannot tell
+	 */
+	private long[] remoteDigests(String command, int[] partitions, String ip, int port, int perPartition) {
+		StringBuilder message = new StringBuilder(SECRET_KEY + " " + command + " ");
+		for (int i=0; i<partitions.length; i++)
+			message.append(i == 0 ? "" : ",").append(partitions[i]);
+		try {
+			// firefly <command> <digest> ...
+			String[] replyChunks = this.connections.request(ip, port, message.toString()).split("\\s+");
+			if (replyChunks.length != 2 + partitions.length * perPartition)
+				return null;
+			long[] digests = new long[replyChunks.length - 2];
+			for (int i=0; i<digests.length; i++)
+				digests[i] = Long.parseLong(replyChunks[i + 2], 36);
+			return digests;
+		} catch (IOException | RuntimeException e) {
+			this.console.println("Could not get digests from " + ip + ":" + port + " - copying whole partitions");
+			return null;
+		}
+	}
+
+	/**
+	 * Stops passing stores on to a node whose join did not go through
+	 */
+	public void release(int[] partitions, int nodeId) {
+		for (int partition : partitions) {
+			Mirror mirror = this.migrations.get(partition);
+			if (mirror != null && mirror.node == nodeId)
+				this.migrations.remove(partition, mirror);
+		}
+	}
+
+	/**
+	 * Once the ring a joining node entered arrives, stops passing stores on to it and drops
+	 * the partitions this node no longer holds a replica of
+	 */
+	private void settleMigrations(ReplicaRing ring) {
+		int dropped = 0;
+		for (Map.Entry<Integer, Mirror> migration : this.migrations.entrySet()) {
+			int partition = migration.getKey();
+			if (!ring.isPartitionReplica(migration.getValue().node, partition))
+				continue;
+			this.migrations.remove(partition, migration.getValue());
+			if (!ring.isPartitionReplica(this.nodeId, partition)) {
+				this.dropPartition(partition);
+				dropped++;
+			}
+		}
+		if (dropped > 0)
+			this.console.println("Dropped " + dropped + " partition(s) now held by a joined node");
+	}
+
+	/**
+	 * Drops the values of a partition this node no longer holds a replica of
 	 */
-	public synchronized void rehash(int key) {
-		// remove all data where data % key is 0 and rehash those
-		Set<Integer> delete = new HashSet<>();
-		System.out.println("Moving data with hash mod " + key);
-		Iterator<Integer> it = this.nodeData.iterator();
-		while (it.hasNext()) {
-			Integer value = it.next();
-			if (value % DHT_SIZE == key) {
-				delete.add(value);
-				new Client().hashData(value, "false");
-				System.out.println("moved " + value);
+	private void dropPartition(int partition) {
+		this.nodeData.lockPartition(partition);
+		try {
+			this.nodeData.takePartition(partition);
+			this.dataLog.append(DataLog.DROP_PARTITION, partition);
+		} finally {
+			this.nodeData.unlockPartition(partition);
+		}
+		this.borrowed.remove(partition);
+		this.lenders.remove(partition);
+	}
+
+	/**
+	 * Passes values on to replicas a ring change gave them while this node handled them - a
+	 * joined node whose copy may have been taken before they were stored. Values this node
+	 * stored as their owner, by the ring before, go to the replicas that ring did not list.
+	 * Values replicated here, before null, are checked against the current ring every time,
+	 * since the node that sent them may not have seen the last change yet: if their
+	 * partition moved off this node they go to all of its replicas, and if this node owns it
+	 * now - the sender was its owner before - to the other replicas.
+	 */
+	private void passOn(Frame values, ReplicaRing before) {
+		ReplicaRing ring = this.ring;
+		// a node outside the ring is joining or leaving, and its data moves anyway
+		if (ring == before || ring == null || !ring.contains(this.nodeId))
+			return;
+		Map<Integer, Frame> frames = new HashMap<>();
+		for (int i=0; i<values.count(); i++) {
+			int data = values.get(i);
+			if (before == null && ring.isReplica(this.nodeId, data) && ring.ownerOf(data) != this.nodeId)
+				continue;
+			for (int node : ring.replicasOf(data)) {
+				if (node != this.nodeId && (before == null || !before.isReplica(node, data)))
+					frames.computeIfAbsent(node, n -> new Frame().reset(Frame.REPLICATE, 0)).add(data);
 			}
 		}
-		// remove the rehashed data from this node
-		Iterator<Integer> it_delete = delete.iterator();
-		while (it_delete.hasNext()) {
-			Integer data = it_delete.next();
-			this.nodeData.remove(data);
+		for (Map.Entry<Integer, Frame> frame : frames.entrySet()) {
+			int node = frame.getKey();
+			try {
+				this.connections.send(ring.ip(node), ring.port(node), frame.getValue());
+				this.metrics.add("passed.on", frame.getValue().count());
+			} catch (IOException e) {
+				this.console.println("Could not pass values on to node " + node);
+			}
 		}
 	}
 
 	/**
-	 * Move all data to a successor node since this one is going offline
+	 * Passes stored values of partitions being copied to a joining node on to it as well
 	 */
-	public synchronized void offline() {
-		// move all data to successor before going offline
-		System.out.println("shutting down - transferring data to successor..");
-		Iterator<Integer> it = this.nodeData.iterator();
-		while (it.hasNext()) {
-			Integer value = it.next();
-				//this.nodeData.remove(value);
-				new Client().hashData(value, "true");
+	private void mirror(Frame values) {
+		if (this.migrations.isEmpty())
+			return;
+		Map<Mirror, Frame> frames = new HashMap<>();
+		for (int i=0; i<values.count(); i++) {
+			Mirror mirror = this.migrations.get(this.nodeData.partitionOf(values.get(i)));
+			if (mirror != null)
+				frames.computeIfAbsent(mirror, m -> new Frame().reset(Frame.REPLICATE, 0)).add(values.get(i));
+		}
+		for (Map.Entry<Mirror, Frame> frame : frames.entrySet()) {
+			Mirror mirror = frame.getKey();
+			try {
+				this.connections.send(mirror.ip, mirror.port, frame.getValue());
+				this.metrics.add("mirrored", frame.getValue().count());
+			} catch (IOException e) {
+				this.console.println("Could not pass stores on to joining node " + mirror.node);
+			}
 		}
-		this.nodeData.clear();
 	}
 
 	/**
-	 * Handle all instructions from SuperNode of Chord DHT
+	 * Passes a put or delete of a key on to the node its partition is being copied to, if
+	 * any, as the owner's copy - so it replaces what the copy may have brought already
 	 */
-	public synchronized void handleInput(String message) {
-		System.out.println("message: " + message);
+	private void mirrorKey(Frame request, int data) {
+		Mirror mirror = this.migrations.get(this.nodeData.partitionOf(data));
+		if (mirror == null)
+			return;
+		Frame write = new Frame().copy(request);
+		write.requestId = 0;
+		write.set(request.opcode == Frame.PUT ? 1 : 0, Frame.FROM_OWNER);
+		try {
+			this.connections.send(mirror.ip, mirror.port, write);
+			this.metrics.increment("mirrored");
+		} catch (IOException e) {
+			this.console.println("Could not pass a key write on to joining node " + mirror.node);
+		}
+	}
+
+	/**
+	 * Move all data to other nodes since this one is going offline - each partition to the
+	 * node that owns it once this one is gone, or all of it to the given successor while
+	 * the ring is not known. The lender is this node when it comes back for the data, -1
+	 * when it leaves for good. Returns false if they did not take all of it.
+	 */
+	public boolean offline(String ip, int port, int lender) {
+		this.console.println("shutting down - transferring data to successor..");
+		ReplicaRing ring = this.ring;
+		Placement rest = null;
+		if (ring != null) {
+			Set<Integer> others = ring.nodes();
+			others.remove(this.nodeId);
+			if (!others.isEmpty()) {
+				rest = new Placement(others);
+				// stores arriving from now on go straight to the nodes taking over
+				this.ring = ring.without(this.nodeId);
+			}
+		}
+		// a second round hands off stores that got in while the first was under way
+		List<IntSet[][]> taken = new ArrayList<>();
+		boolean complete = true;
+		for (int round=0; round<2 && complete && (round == 0 || this.nodeData.size() > 0); round++) {
+			IntSet[][] partitions = this.nodeData.takeAll();
+			taken.add(partitions);
+			complete = this.handOff(partitions, rest, ring, ip, port, lender);
+		}
+		if (complete && this.handOffKeys(rest, ring, ip, port))
+			return true;
+		// stay online with all of the data - nodes that took some of it only hold extra copies
+		this.ring = ring;
+		for (IntSet[][] partitions : taken) {
+			for (IntSet[] partition : partitions)
+				this.nodeData.addAll(partition);
+		}
+		return false;
+	}
+
+	/**
+	 * Sends each partition to its owner on the rest of the ring, or all of them to the
+	 * given successor if there is none - returns false if a transfer failed
+	 */
+	private boolean handOff(IntSet[][] partitions, Placement rest, ReplicaRing ring, String ip, int port, int lender) {
+		Map<Integer, List<IntSet>> handoffs = new TreeMap<>();
+		for (int p=0; p<partitions.length; p++) {
+			if (PartitionedIntStore.size(partitions[p]) > 0)
+				handoffs.computeIfAbsent(rest == null ? -1 : rest.owner(p), n -> new ArrayList<>())
+					.addAll(Arrays.asList(partitions[p]));
+		}
+		// the data log keeps the data, so it is recovered locally when the node returns
+		for (Map.Entry<Integer, List<IntSet>> handoff : handoffs.entrySet()) {
+			int node = handoff.getKey();
+			IntSet[] values = handoff.getValue().toArray(new IntSet[0]);
+			long bytes = node == -1 ? BulkTransfer.send(this.connections, ip, port, lender, values)
+				: BulkTransfer.send(this.connections, ring.ip(node), ring.port(node), lender, values);
+			if (bytes < 0)
+				return false;
+			this.metrics.add("offline.values", PartitionedIntStore.size(values));
+			this.metrics.add("offline.bytes", bytes);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the keys of each partition to its owner on the rest of the ring, or all of them
+	 * to the given successor if there is none, then drops them - returns false if a transfer
+	 * failed, keeping them all
+	 */
+	private boolean handOffKeys(Placement rest, ReplicaRing ring, String ip, int port) {
+		for (int p=0; p<this.keyValues.partitionCount(); p++) {
+			if (this.keyValues.partitionSize(p) == 0)
+				continue;
+			int node = rest == null ? -1 : rest.owner(p);
+			if (this.pushKeys(p, node == -1 ? ip : ring.ip(node), node == -1 ? port : ring.port(node)) < 0)
+				return false;
+		}
+		for (int p=0; p<this.keyValues.partitionCount(); p++)
+			this.keyValues.dropPartition(p);
+		return true;
+	}
+
+	/**
+	 * Moves keys after a ring change. The keys of each partition go to the replicas the
+	 * change added, sent by the first replica from before the change that is still online,
+	 * or by this node if it was not a replica then - and nodes no longer holding a replica
+	 * drop them once the keys are on their way. A joined node got its keys while it joined,
+	 * so nothing goes to or comes from it here.
+	 */
+	private void settleKeys(ReplicaRing before, ReplicaRing ring) {
+		if (before == null || ring == before || !ring.contains(this.nodeId) || !before.contains(this.nodeId)
+				|| this.keyValues.size() == 0)
+			return;
+		for (int p=0; p<this.keyValues.partitionCount(); p++) {
+			if (this.keyValues.partitionSize(p) == 0)
+				continue;
+			boolean wasReplica = before.isPartitionReplica(this.nodeId, p);
+			int sender = -1;
+			for (int node : before.replicasOfPartition(p)) {
+				if (ring.contains(node)) {
+					sender = node;
+					break;
+				}
+			}
+			boolean moved = true;
+			if (!wasReplica || sender == this.nodeId) {
+				for (int node : ring.replicasOfPartition(p)) {
+					if (node == this.nodeId || !before.contains(node)
+							|| (wasReplica && before.isPartitionReplica(node, p)))
+						continue;
+					if (this.pushKeys(p, ring.ip(node), ring.port(node)) < 0) {
+						this.console.println("Could not move the keys of partition " + p + " to node " + node);
+						moved = false;
+					}
+				}
+			}
+			if (moved && !ring.isPartitionReplica(this.nodeId, p))
+				this.keyValues.dropPartition(p);
+		}
+	}
+
+	/**
+	 * Sends the keys of a partition to a node as moved copies, which never replace a value
+	 * it has already, a window of them at a time - returns the number sent, -1 if the node
+	 * did not take them all
+	 */
+	private long pushKeys(int partition, String ip, int port) {
+		List<byte[][]> entries = this.keyValues.entries(partition);
+		ConnectionPool.Connection connection = null;
+		try {
+			connection = this.connections.acquire(ip, port);
+			Frame put = new Frame();
+			Frame reply = new Frame();
+			long sent = 0;
+			long acknowledged = 0;
+			int pending = 0;
+			for (byte[][] entry : entries) {
+				// request ids start at 1, 0 means no reply is wanted
+				put.reset(Frame.PUT, ++sent).add(entry[0].length).add(Frame.MOVED)
+					.addBytes(entry[0]).addBytes(entry[1]);
+				connection.send(put);
+				this.metrics.add("kv.moved.bytes", entry[0].length + entry[1].length);
+				if (++pending == KEY_WINDOW) {
+					connection.receive(reply);
+					acknowledged += reply.opcode == Frame.STORED ? reply.get(0) : 0;
+					pending--;
+				}
+			}
+			for (; pending > 0; pending--) {
+				connection.receive(reply);
+				acknowledged += reply.opcode == Frame.STORED ? reply.get(0) : 0;
+			}
+			this.connections.release(ip, port, connection);
+			this.metrics.add("kv.moved", acknowledged);
+			return acknowledged == entries.size() ? acknowledged : -1;
+		} catch (IOException e) {
+			if (connection != null)
+				connection.close();
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes a put or delete of a key this node owns to the other replicas of the key. An
+	 * acknowledged write waits for as many replicas as the write acknowledgement level asks
+	 * for, nearest first, and reaches the rest without waiting. Completes with false if too
+	 * few replicas took it - one that does not answer in time counts as not having it.
+	 */
+	private CompletableFuture<Boolean> replicateKey(Frame request, int data) {
+		ReplicaRing ring = this.ring;
+		if (ring == null || ring.getReplicas() == 1)
+			return CompletableFuture.completedFuture(true);
+		int needed = request.requestId == 0 ? 1 : ring.acksNeeded();
+		Frame write = new Frame().copy(request);
+		write.set(request.opcode == Frame.PUT ? 1 : 0, Frame.FROM_OWNER);
+		return this.replicateKey(write, ring, ring.replicasOf(data), 0, 1, needed);
+	}
+
+	/**
+	 * Writes a key to the replicas from the given one on, waiting for the answer of each
+	 * while the write has fewer acks than needed
+	 */
+	private CompletableFuture<Boolean> replicateKey(Frame write, ReplicaRing ring, int[] replicas, int next,
+													int acks, int needed) {
+		for (int r=next; r<replicas.length; r++) {
+			int node = replicas[r];
+			if (node == this.nodeId)
+				continue;
+			if (acks < needed) {
+				int after = r + 1;
+				return this.connections.requestAsync(ring.ip(node), ring.port(node), write, REPLICA_TIMEOUT)
+					.handle((reply, failure) -> {
+						if (failure != null) {
+							this.metrics.increment("replication.failures");
+							this.console.println("Could not replicate key to node " + node);
+							return 0;
+						}
+						this.metrics.increment("kv.replicated");
+						return reply.opcode == Frame.STORED && reply.get(0) == 1 ? 1 : 0;
+					})
+					.thenComposeAsync(ack -> this.replicateKey(write, ring, replicas, after, acks + ack, needed),
+						this.replicators);
+			}
+			write.requestId = 0;
+			try {
+				this.connections.send(ring.ip(node), ring.port(node), write);
+				this.metrics.increment("kv.replicated");
+			} catch (IOException e) {
+				this.metrics.increment("replication.failures");
+				this.console.println("Could not replicate key to node " + node);
+			}
+		}
+		return CompletableFuture.completedFuture(acks >= needed);
+	}
+
+	/**
+	 * True if data belongs on this node - always the case until the SuperNode has
+	 * published the ring, since the SuperNode routes data itself until then
+	 */
+	private boolean isOwner(int data) {
+		return this.isOwner(this.ring, data);
+	}
+
+	private boolean isOwner(ReplicaRing ring, int data) {
+		return ring == null || ring.size() == 0 || ring.ownerOf(data) == this.nodeId;
+	}
+
+	/**
+	 * True if this node holds a copy of the data - its owner or one of the next replicas
+	 */
+	private boolean isReplica(int data) {
+		ReplicaRing ring = this.ring;
+		return this.isOwner(data) || ring.isReplica(this.nodeId, data);
+	}
+
+	/**
+	 * Node to pass data this node does not own on to - the next finger towards the owner on
+	 * a chord ring, the owner itself on a hashed ring, whose tokens are not in node id order -
+	 * or -1 while there is no ring to route by, as the finger table may come first
+	 */
+	private int nextNode(ReplicaRing ring, int data) {
+		if (ring == null || ring.size() == 0)
+			return -1;
+		FingerTable table = this.fingerTable;
+		if (Placement.isChord() && table != null) {
+			int hop = table.successorAt(table.nextHop(Placement.partitionOf(data)));
+			// fingers may still point at this node while it hands off its data
+			if (ring.contains(hop))
+				return hop;
+		}
+		return ring.ownerOf(data);
+	}
+
+	/**
+	 * Writes values this node owns to the other replicas of their partitions, one frame per
+	 * replica node. An acknowledged write waits for as many replicas of each value as the
+	 * write acknowledgement level asks for, nearest first - trying the next replica when one
+	 * fails or does not answer in time - and reaches the rest without waiting. Completes
+	 * with the number of values too few replicas took; no thread waits for the replicas
+	 * meanwhile.
+	 */
+	private CompletableFuture<Integer> replicate(Frame values, boolean acknowledged) {
+		ReplicaRing ring = this.ring;
+		if (ring == null || ring.getReplicas() == 1 || values.count() == 0)
+			return CompletableFuture.completedFuture(0);
+		int needed = acknowledged ? ring.acksNeeded() : 1;
+		// replicas that have each value, this node included
+		int[] acks = new int[values.count()];
+		Arrays.fill(acks, 1);
+		return this.replicate(values, ring, needed, acks, 1);
+	}
+
+	/**
+	 * Writes the r-th replica of every value, waited for while the value still needs acks,
+	 * and goes on with the next replicas once those answered
+	 */
+	private CompletableFuture<Integer> replicate(Frame values, ReplicaRing ring, int needed, int[] acks, int r) {
+		if (r == ring.getReplicas()) {
+			int failed = 0;
+			for (int ack : acks) {
+				if (ack < needed)
+					failed++;
+			}
+			return CompletableFuture.completedFuture(failed);
+		}
+		Map<Integer, Frame> waitFor = new HashMap<>();
+		Map<Integer, List<Integer>> waiting = new HashMap<>();
+		Map<Integer, Frame> sendTo = new HashMap<>();
+		for (int i=0; i<values.count(); i++) {
+			int[] replicas = ring.replicasOf(values.get(i));
+			if (r >= replicas.length || replicas[r] == this.nodeId)
+				continue;
+			if (acks[i] < needed) {
+				waitFor.computeIfAbsent(replicas[r], n -> new Frame().reset(Frame.REPLICATE, 0)).add(values.get(i));
+				waiting.computeIfAbsent(replicas[r], n -> new ArrayList<>()).add(i);
+			} else {
+				sendTo.computeIfAbsent(replicas[r], n -> new Frame().reset(Frame.REPLICATE, 0)).add(values.get(i));
+			}
+		}
+		List<CompletableFuture<Void>> answers = new ArrayList<>();
+		for (Map.Entry<Integer, Frame> frame : waitFor.entrySet()) {
+			int node = frame.getKey();
+			int count = frame.getValue().count();
+			answers.add(this.connections.requestAsync(ring.ip(node), ring.port(node), frame.getValue(), REPLICA_TIMEOUT)
+				.handle((reply, failure) -> {
+					if (failure != null) {
+						this.metrics.increment("replication.failures");
+						this.console.println("Could not replicate to node " + node);
+						return null;
+					}
+					this.metrics.add("replicated", count);
+					// every value has one r-th replica, so no two replies count the same value
+					if (reply.opcode == Frame.STORED && reply.get(0) == count) {
+						for (int i : waiting.get(node))
+							acks[i]++;
+					}
+					return null;
+				}));
+		}
+		for (Map.Entry<Integer, Frame> frame : sendTo.entrySet()) {
+			int node = frame.getKey();
+			try {
+				this.connections.send(ring.ip(node), ring.port(node), frame.getValue());
+				this.metrics.add("replicated", frame.getValue().count());
+			} catch (IOException e) {
+				this.metrics.increment("replication.failures");
+				this.console.println("Could not replicate to node " + node);
+			}
+		}
+		if (answers.isEmpty())
+			return this.replicate(values, ring, needed, acks, r + 1);
+		return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0]))
+			.thenComposeAsync(done -> this.replicate(values, ring, needed, acks, r + 1), this.replicators);
+	}
+
+	/**
+	 * Forwards a frame one hop closer to the node that owns the data
+	 */
+	private void forward(int data, Frame frame) {
+		ReplicaRing ring = this.ring;
+		int node = this.nextNode(ring, data);
+		if (node == -1) {
+			this.metrics.increment("forward.failures");
+			this.console.println("Could not forward " + data + " before the ring is known");
+			return;
+		}
+		try {
+			this.connections.send(ring.ip(node), ring.port(node), frame);
+			this.metrics.increment("forwarded");
+			this.console.debug("forwarded " + data + " to node " + node);
+		} catch (IOException e) {
+			this.console.println("Could not forward " + data + " to node " + node);
+		}
+	}
+
+	/**
+	 * Stores the values of a batch this node owns and forwards the rest, one message per
+	 * next node - completes with the number of values stored. The values of an acknowledged
+	 * batch count once enough replicas have them, and forwarded ones once the node they
+	 * were forwarded to acknowledged them in turn. That node may forward them again, so it
+	 * is given a replica timeout longer for every node that may still be in the way.
+	 */
+	private CompletableFuture<Integer> storeBatch(Frame request) {
+		ReplicaRing ring = this.ring;
+		boolean acknowledged = request.requestId != 0;
+		Map<Integer, Frame> batches = new HashMap<>();
+		// most hops after the next node, by next node
+		Map<Integer, Integer> hops = new HashMap<>();
+		Frame owned = new Frame().reset(Frame.REPLICATE, request.requestId);
+		for (int i=0; i<request.count(); i++) {
+			int data = request.get(i);
+			if (this.isOwner(ring, data)) {
+				this.store(data);
+				owned.add(data);
+				continue;
+			}
+			int next = this.nextNode(ring, data);
+			batches.computeIfAbsent(next, node -> new Frame().reset(Frame.STORE_BATCH, 0)).add(data);
+			hops.merge(next, ring.nodesBetween(next, ring.ownerOf(data)), Math::max);
+		}
+		List<CompletableFuture<Integer>> stored = new ArrayList<>();
+		for (Map.Entry<Integer, Frame> batch : batches.entrySet()) {
+			int node = batch.getKey();
+			int count = batch.getValue().count();
+			if (!acknowledged) {
+				// a batch nobody waits for is forwarded without a request id and gets no reply
+				try {
+					this.connections.send(ring.ip(node), ring.port(node), batch.getValue());
+					this.metrics.add("forwarded", count);
+				} catch (IOException e) {
+					this.console.println("Could not forward batch to node " + node);
+				}
+				continue;
+			}
+			// the node it reaches waits for its own replicas, and the hops after it, before it answers
+			long timeout = (2 + hops.get(node)) * REPLICA_TIMEOUT;
+			stored.add(this.connections.requestAsync(ring.ip(node), ring.port(node), batch.getValue(), timeout)
+				.handle((reply, failure) -> {
+					if (failure != null || reply.opcode != Frame.STORED) {
+						this.metrics.add("forward.failures", count);
+						this.console.println("Could not forward batch to node " + node);
+						return 0;
+					}
+					this.metrics.add("forwarded", count);
+					return reply.get(0);
+				}));
+		}
+		this.mirror(owned);
+		this.passOn(owned, ring);
+		int count = owned.count();
+		stored.add(this.replicate(owned, acknowledged).thenApply(failed -> count - failed));
+		if (stored.size() == 1)
+			return stored.get(0);
+		return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			int total = 0;
+			for (CompletableFuture<Integer> part : stored)
+				total += part.join();
+			return total;
+		});
+	}
+
+	/**
+	 * One page of a range scan - the values from..to in order, starting in a partition this
+	 * node holds and going on through the partitions after it as long as this node holds
+	 * them too. The page ends after limit values or at the first partition held elsewhere,
+	 * and names the value to go on from, if any is left.
+	 */
+	private void range(int from, int to, int limit, long requestId, Frame reply) {
+		ReplicaRing ring = this.ring;
+		reply.reset(Frame.PAGE, requestId).add(0).add(0);
+		int visited = 0;
+		for (int partition=Placement.partitionOf(from); ; partition++) {
+			int last = Math.min(to, Placement.lastValue(partition));
+			visited += this.nodeData.forEachInRange(partition, from, last, limit - visited, reply::add);
+			if (visited == limit) {
+				int next = reply.get(reply.count() - 1);
+				if (next < to)
+					reply.set(0, next + 1).set(1, 1);
+				break;
+			}
+			if (last == to)
+				break;
+			from = last + 1;
+			if (ring != null && ring.size() > 0 && !ring.isPartitionReplica(this.nodeId, partition + 1)) {
+				reply.set(0, from).set(1, 1);
+				break;
+			}
+		}
+		this.metrics.add("range.values", visited);
+	}
+
+	/**
+	 * Counts a read of a value, or of a key by its hash - returns how many milliseconds the
+	 * reader may cache the answer for, 0 unless it is one of the hot items of this node
+	 */
+	private int cacheTtl(long item) {
+		if (HOT_TTL <= 0 || !this.hotKeys.offer(item))
+			return 0;
+		this.metrics.increment("hot.advertised");
+		return HOT_TTL;
+	}
+
+	/**
+	 * Reply to a read of data this node does not own - names the next node towards the owner,
+	 * or asks to try again later while there is no ring to route by
+	 */
+	private void redirect(int data, long requestId, Frame reply) {
+		ReplicaRing ring = this.ring;
+		int node = this.nextNode(ring, data);
+		if (node == -1) {
+			reply.reset(Frame.BUSY, requestId);
+			return;
+		}
+		this.metrics.increment("redirects");
+		reply.reset(Frame.REDIRECT, requestId).add(data).add(node)
+			.add(Frame.packAddress(ring.ip(node))).add(ring.port(node));
+	}
+
+	/**
+	 * Handles a frame and records how long it took under its command name
+	 */
+	private boolean timedFrame(Frame request, Frame reply, NioServer.Responder later) {
+		long start = System.nanoTime();
+		String command = Frame.commandName(request.opcode);
+		boolean replied = this.handleFrame(request, reply, later);
+		this.metrics.record(command, start);
+		return replied;
+	}
+
+	/**
+	 * Handles a text message and records how long it took under its command name
+	 */
+	private String timedInput(String message, NioServer.Responder later) {
+		long start = System.nanoTime();
+		String reply = this.handleInput(message, later);
+		int from = message.indexOf(' ') + 1;
+		int to = message.indexOf(' ', from);
+		this.metrics.record(from == 0 ? "other" : message.substring(from, to < 0 ? message.length() : to), start);
+		return reply;
+	}
+
+	/**
+	 * Handle the data path requests - store, storebatch, get, contains, range and the puts,
+	 * fetches and deletes of keys - whether they
+	 * arrived as binary frames or as text. Returns true if reply holds a reply to send back;
+	 * an acknowledged write that waits on other replicas is answered through later instead.
+	 */
+	public boolean handleFrame(Frame request, Frame reply, NioServer.Responder later) {
+		switch (request.opcode) {
+			case Frame.STORE : {	// data, handoff flag
+				int data = request.get(0);
+				if (!this.isOwner(data)) {
+					this.forward(data, request);
+					return false;
+				}
+				ReplicaRing ring = this.ring;
+				this.store(data);
+				Frame stored = new Frame().reset(Frame.REPLICATE, 0).add(data);
+				this.replicate(stored, false);
+				this.mirror(stored);
+				this.passOn(stored, ring);
+				this.console.debug("Stored " + data);
+				if (this.console.verbose())
+					this.console.debug("Node data: " + this.nodeData);
+				return false;
+			}
+			case Frame.STORE_BATCH : {	// data ...
+				long requestId = request.requestId;
+				CompletableFuture<Integer> stored = this.storeBatch(request).whenComplete((count, failure) ->
+					this.console.debug("Stored batch of " + count));
+				if (requestId == 0)
+					return false;
+				return this.replyWhenDone(stored, requestId, reply, later);
+			}
+			case Frame.REPLICATE : {	// data ... - this node is a replica of all of it
+				for (int i=0; i<request.count(); i++)
+					this.store(request.get(i));
+				this.mirror(request);
+				this.passOn(request, null);
+				this.console.debug("Stored " + request.count() + " replicated values");
+				if (request.requestId == 0)
+					return false;
+				reply.reset(Frame.STORED, request.requestId).add(request.count());
+				return true;
+			}
+			case Frame.GET :
+			case Frame.CONTAINS : {	// data - any replica answers
+				int data = request.get(0);
+				if (!this.isReplica(data)) {
+					this.redirect(data, request.requestId, reply);
+					return true;
+				}
+				// the answering node names itself and, on a chord ring, its predecessor
+				FingerTable table = this.fingerTable;
+				reply.reset(this.nodeData.contains(data) ? Frame.FOUND : Frame.MISSING, request.requestId).add(data)
+					.add(this.nodeId).add(table == null ? -1 : table.getPredecessor());
+				int ttl = this.cacheTtl(data);
+				if (ttl > 0)
+					reply.add(ttl);
+				return true;
+			}
+			case Frame.PUT :		// key length, origin; key and value
+			case Frame.DELETE : {	// origin; key
+				boolean put = request.opcode == Frame.PUT;
+				byte[] bytes = request.payload();
+				int keyLength = put ? request.get(0) : request.payloadLength();
+				int origin = request.get(put ? 1 : 0);
+				long hash = KeyValueStore.hash(bytes, 0, keyLength);
+				int data = KeyValueStore.placement(hash);
+				if (origin == Frame.FROM_CLIENT && !this.isOwner(data)) {
+					if (request.requestId == 0) {
+						this.forward(data, request);
+						return false;
+					}
+					this.redirect(data, request.requestId, reply);
+					return true;
+				}
+				boolean written = true;
+				CompletableFuture<Boolean> replicated = null;
+				if (put) {
+					written = this.keyValues.put(hash, bytes, 0, keyLength, bytes, keyLength,
+						request.payloadLength() - keyLength, origin != Frame.MOVED);
+				} else {
+					this.keyValues.delete(hash, bytes, 0, keyLength);
+				}
+				if (!written) {
+					this.metrics.increment("kv.full");
+				} else if (origin != Frame.MOVED) {
+					this.mirrorKey(request, data);
+					if (origin == Frame.FROM_CLIENT)
+						replicated = this.replicateKey(request, data);
+				}
+				if (request.requestId == 0)
+					return false;
+				if (replicated != null)
+					return this.replyWhenDone(replicated.thenApply(acked -> acked ? 1 : 0), request.requestId, reply, later);
+				reply.reset(Frame.STORED, request.requestId).add(written ? 1 : 0);
+				return true;
+			}
+			case Frame.FETCH : {	// ; key - any replica answers
+				long hash = KeyValueStore.hash(request.payload(), 0, request.payloadLength());
+				int data = KeyValueStore.placement(hash);
+				if (!this.isReplica(data)) {
+					this.redirect(data, request.requestId, reply);
+					return true;
+				}
+				byte[] value = this.keyValues.get(hash, request.payload(), 0, request.payloadLength());
+				if (value == null)
+					reply.reset(Frame.MISSING, request.requestId).add(data).add(this.nodeId).add(-1);
+				else
+					reply.reset(Frame.VALUE, request.requestId).add(data).add(this.nodeId).addBytes(value);
+				int ttl = this.cacheTtl(hash);
+				if (ttl > 0)
+					reply.add(ttl);
+				return true;
+			}
+			case Frame.RANGE : {	// from, to, limit - any replica of the partition of from answers
+				int from = request.get(0);
+				int to = request.get(1);
+				if (!this.nodeData.isOrdered() || from > to) {
+					reply.reset(Frame.PAGE, request.requestId).add(0).add(0);
+					return true;
+				}
+				if (!this.isReplica(from)) {
+					this.redirect(from, request.requestId, reply);
+					return true;
+				}
+				this.range(from, to, Math.max(1, Math.min(request.get(2), RANGE_PAGE)), request.requestId, reply);
+				return true;
+			}
+			default :
+				return false;
+		}
+	}
+
+	/**
+	 * Answers a write with the number of values stored once its replicas have answered -
+	 * right away in reply if they already have, through later otherwise
+	 */
+	private boolean replyWhenDone(CompletableFuture<Integer> stored, long requestId, Frame reply,
+								  NioServer.Responder later) {
+		if (stored.isDone() && !stored.isCompletedExceptionally()) {
+			reply.reset(Frame.STORED, requestId).add(stored.join());
+			return true;
+		}
+		stored.whenComplete((count, failure) ->
+			later.reply(new Frame().reset(Frame.STORED, requestId).add(failure == null ? count : 0)));
+		return false;
+	}
+
+	/**
+	 * Handle all instructions from SuperNode of Chord DHT and read requests from clients,
+	 * returns the reply to send back to the caller, if any
+	 */
+	public String handleInput(String message, NioServer.Responder later) {
+		this.console.debug("message: " + message);
 		String[] messageChunks = message.split("\\s+");
 		if (!messageChunks[0].equals(SECRET_KEY))
-			return;
+			return null;
 		switch(messageChunks[1]) {
 			case "id" :		{ 	// firefly id <nodeID> 
 				String id = messageChunks[2];
 				this.writeIdFile(id);
-				System.out.println("Registered with Chord SuperNode");
+				this.console.println("Registered with Chord SuperNode");
 				break;
 			}
-			case "store" : {	// firefly store <data>
-				int data = Integer.parseInt(messageChunks[2]);
-				this.nodeData.add(data);
-				System.out.println("Stored " + data);
-				System.out.println("Node data: " + this.nodeData);
+			case "fingers" : {	// firefly fingers <nodeID> <predecessor> <start>:<successor>:<ip>:<port> ...
+				synchronized (this.fingerLock) {
+					this.fingerTable = FingerTable.parse(Placement.partitions(), messageChunks);
+				}
+				this.console.println("Finger table: " + this.fingerTable);
+				break;
+			}
+			case "fingerdelta" : {	// firefly fingerdelta <nodeID> <predecessor> <index>:<start>:<successor>:<ip>:<port> ...
+				// the full table always arrives first - a delta before it has nothing to apply to
+				synchronized (this.fingerLock) {
+					FingerTable table = this.fingerTable;
+					if (table == null)
+						break;
+					this.fingerTable = table.applyDelta(messageChunks);
+				}
+				this.console.println("Finger table: " + this.fingerTable);
+				break;
+			}
+			case "store" :		// firefly store <data> <flag>
+			case "storebatch" :	// firefly storebatch <requestID|-> <data> ...
+			case "replicate" :	// firefly replicate <requestID|-> <data> ...
+			case "get" :		// firefly get <data>
+			case "contains" :	// firefly contains <data>
+			case "range" :		// firefly range <from> <to> <limit>
+			case "put" :		// firefly put <requestID|-> <key> <value> [owner|moved]
+			case "fetch" :		// firefly fetch <key>
+			case "delete" : {	// firefly delete <requestID|-> <key> [owner]
+				// text form of the data path frames, kept for debugging - it carries no tag
+				if (!TEXT) {
+					this.metrics.increment("text.rejected");
+					this.console.debug("Text " + messageChunks[1] + " rejected, start with -Ddht.protocol=text to take it");
+					return null;
+				}
+				Frame request = new Frame();
+				Frame reply = new Frame();
+				request.parseText(messageChunks);
+				return this.handleFrame(request, reply, later) ? reply.toText() : null;
+			}
+			case "bulk" : {	// firefly bulk <transferID> <lender> <value> ...
+				int lender = Integer.parseInt(messageChunks[3]);
+				// only partitions the lender owns while it is online are ever asked back by it
+				Placement lenderRing = lender == -1 ? null : this.withNode(lender);
+				for (int i=4; i<messageChunks.length; i++) {
+					int data = Integer.parseInt(messageChunks[i]);
+					this.store(data);
+					int partition = this.nodeData.partitionOf(data);
+					if (lenderRing != null && lenderRing.owner(partition) == lender) {
+						this.lenders.put(partition, lender);
+						IntHashSet lent = this.borrowed.computeIfAbsent(partition, p -> new IntHashSet());
+						synchronized (lent) {
+							lent.add(data);
+						}
+					}
+				}
+				this.transfers.merge(messageChunks[2], messageChunks.length - 4, Integer::sum);
+				this.metrics.add("bulk.received.values", messageChunks.length - 4);
+				this.metrics.add("bulk.received.bytes", message.length() + 1);
+				break;
+			}
+			case "bulkend" : {	// firefly bulkend <transferID> <count>
+				Integer received = this.transfers.remove(messageChunks[2]);
+				this.console.println("Received " + received + " values in bulk");
+				return SECRET_KEY + " bulkack " + messageChunks[2] + " " + (received == null ? 0 : received);
+			}
+			case "ring" : {	// firefly ring <replicas> <writeAck> <placement> <nodeID>:<ip>:<port> ...
+				ReplicaRing ring = ReplicaRing.parse(messageChunks);
+				ReplicaRing before = this.ring;
+				this.ring = ring;
+				this.settleMigrations(ring);
+				this.settleKeys(before, ring);
+				this.console.println("Replicas: " + ring);
+				break;
+			}
+			case "stats" : {	// firefly stats
+				return SECRET_KEY + " stats " + this.metrics;
+			}
+			case "hot" : {	// firefly hot - answered with firefly hot <value or key hash>:<reads> ..., hottest first
+				StringBuilder hot = new StringBuilder(SECRET_KEY + " hot");
+				for (long[] item : this.hotKeys.hot())
+					hot.append(' ').append(item[0]).append(':').append(item[1]);
+				return hot.toString();
+			}
+			case "rehash" : {	// firefly rehash <partition>,<partition>... <ip> <port>
+				this.copy(partitions(messageChunks[2]), messageChunks[3], Integer.parseInt(messageChunks[4]));
+				break;
+			}
+			case "digest" : {	// firefly digest <partition>,<partition>...
+				StringBuilder reply = new StringBuilder(SECRET_KEY + " digest");
+				for (int partition : partitions(messageChunks[2]))
+					reply.append(' ').append(Long.toString(this.nodeData.partitionDigest(partition), 36));
+				return reply.toString();
+			}
+			case "leaves" : {	// firefly leaves <partition>,<partition>...
+				StringBuilder reply = new StringBuilder(SECRET_KEY + " leaves");
+				for (int partition : partitions(messageChunks[2])) {
+					for (long digest : this.nodeData.leafDigests(partition))
+						reply.append(' ').append(Long.toString(digest, 36));
+				}
+				return reply.toString();
+			}
+			case "migrate" : {	// firefly migrate <partition>,<partition>... <nodeID> <ip> <port>
+				long copied = this.migrate(partitions(messageChunks[2]), Integer.parseInt(messageChunks[3]),
+					messageChunks[4], Integer.parseInt(messageChunks[5]));
+				return SECRET_KEY + " migrated " + copied;
+			}
+			case "forget" : {	// firefly forget <nodeID> - the node left the DHT for good
+				int lender = Integer.parseInt(messageChunks[2]);
+				for (Map.Entry<Integer, Integer> lent : this.lenders.entrySet()) {
+					if (lent.getValue() == lender && this.lenders.remove(lent.getKey(), lender))
+						this.borrowed.remove(lent.getKey());
+				}
 				break;
 			}
-			case "rehash" : {	// firefly rehash <key>
-				int key = Integer.parseInt(messageChunks[2]);
-				this.rehash(key);
-				System.out.println("Moved data belonging to node " + key);
-				System.out.println("Node data: " + this.nodeData);
+			case "release" : {	// firefly release <partition>,<partition>... <nodeID>
+				this.release(partitions(messageChunks[2]), Integer.parseInt(messageChunks[3]));
 				break;
 			}
-			case "off" : {	// firefly off
-				// move all existing data
-				this.offline();
-				System.out.println("All data moved. Shutting down..");
-				System.exit(0);
+			case "off" :	// firefly off <successor> <ip> <port>, or firefly off replicas
+			case "leave" : {	// the same, leaving the DHT for good
+				boolean leave = messageChunks[1].equals("leave");
+				// the other replicas hold all of the data already - otherwise move all existing data
+				boolean replicated = messageChunks.length == 3 && messageChunks[2].equals("replicas");
+				if (!replicated && (messageChunks.length < 5 || !this.offline(messageChunks[3],
+						Integer.parseInt(messageChunks[4]), leave ? -1 : this.nodeId))) {
+					this.console.println("Could not move data to a successor - not shutting down");
+					break;
+				}
+				if (leave)
+					this.forget();
+				this.console.println(replicated ? "All data is on other replicas. Shutting down.." : "All data moved. Shutting down..");
+				this.console.flush();
+				this.shutdown.run();
 				break;
 			}
 			default: {
@@ -155,6 +1345,7 @@ class DHTNodeListener implements Runnable {
 			}
 		
 		}
+		return null;
 	}
 
 }
\ No newline at end of file
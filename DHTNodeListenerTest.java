@@ -0,0 +1,109 @@
+/**
+ * DHTNodeListenerTest.java
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+/**
+ * What the STORED reply to a STORE_BATCH counts - every value of the batch once the nodes
+ * owning them have it, and none of those forwarded to a node that is gone. Runs a cluster
+ * of three nodes in this process, one replica each, so the only cluster of this test run.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class DHTNodeListenerTest {
+
+	private static Cluster cluster;
+	private static int superNodePort;
+	private static ConnectionPool connections = new ConnectionPool();
+
+	@BeforeAll
+	static void startCluster() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			superNodePort = socket.getLocalPort();
+		}
+		File directory = Files.createTempDirectory("dht-listener-test").toFile();
+		cluster = new Cluster(3, directory, superNodePort);
+		cluster.start();
+	}
+
+	@AfterAll
+	static void stopCluster() {
+		cluster.stop();
+	}
+
+	private static ReplicaRing ring() throws IOException {
+		return ReplicaRing.parse(connections.request("127.0.0.1", superNodePort, "firefly ring").split("\\s+"));
+	}
+
+	private static Frame storeBatch(ReplicaRing ring, int node, int from, int to) throws IOException {
+		Frame batch = new Frame().reset(Frame.STORE_BATCH, 1);
+		for (int value=from; value<to; value++)
+			batch.add(value);
+		Frame reply = new Frame();
+		connections.request(ring.ip(node), ring.port(node), batch, reply);
+		return reply;
+	}
+
+	@Test
+	@Order(1)
+	void batchIsAcknowledgedInFullOnEveryNode() throws IOException {
+		ReplicaRing ring = ring();
+		assertEquals(1, ring.getReplicas());
+		int from = 0;
+		for (int node : ring.nodes()) {
+			Frame reply = storeBatch(ring, node, from, from + 1000);
+			assertEquals(Frame.STORED, reply.opcode);
+			assertEquals(1, reply.requestId);
+			assertEquals(1000, reply.get(0));
+			from += 1000;
+		}
+		// and each value is on its owner, wherever its batch went in
+		for (int value=0; value<from; value+=97) {
+			int owner = ring.ownerOf(value);
+			Frame contains = new Frame().reset(Frame.CONTAINS, 2).add(value);
+			Frame reply = new Frame();
+			connections.request(ring.ip(owner), ring.port(owner), contains, reply);
+			assertEquals(Frame.FOUND, reply.opcode, "value " + value);
+		}
+	}
+
+	@Test
+	@Order(2)
+	void valuesForwardedToAFailedNodeAreNotCounted() throws IOException {
+		ReplicaRing ring = ring();
+		int victim = cluster.nodeIds().get(1);
+		int target = -1;
+		for (int node : ring.nodes()) {
+			if (node != victim) {
+				target = node;
+				break;
+			}
+		}
+		int expected = 0;
+		for (int value=10_000; value<11_000; value++) {
+			if (ring.ownerOf(value) != victim)
+				expected++;
+		}
+		assertTrue(expected > 0 && expected < 1000);
+		// the batch goes in before the SuperNode finds out, so the ring still has the victim
+		assertTrue(cluster.crash(victim));
+		Frame reply = storeBatch(ring, target, 10_000, 11_000);
+		assertEquals(Frame.STORED, reply.opcode);
+		assertEquals(expected, reply.get(0));
+	}
+
+}
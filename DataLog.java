@@ -0,0 +1,210 @@
+/**
+ * DataLog.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable record of the data held by a DHT node - an append-only log of changes plus a
+ * periodically compacted snapshot. Appends are buffered and forced to disk in batches on
+ * a background schedule; on restart the snapshot and log are read back through memory
+ * mapped files, so a node recovers its data locally instead of over the network.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class DataLog {
+
+	static byte ADD = 1;
+	static byte DROP_PARTITION = 2;
+
+	private static int RECORD_SIZE = 5;
+	private static int SNAPSHOT_MAGIC = 0x43484f52;
+	private static long FSYNC_INTERVAL = 50;
+	// compact once the log holds this many bytes of changes
+	private static long COMPACT_AT = 64L * 1024 * 1024;
+
+	/**
+	 * Callback receiving recovered changes in order
+	 */
+	interface Replayer {
+		void add(int value);
+		void dropPartition(int partition);
+	}
+
+	private Path logPath;
+	private Path snapshotPath;
+	private FileChannel log;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+	private ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Constructor - keeps "<name>.log" and "<name>.snapshot"; existing files are only
+	 * kept if the node is going to recover from them
+	 */
+	public DataLog(String name, boolean keepExisting) throws IOException {
+		this.logPath = Paths.get(name + ".log");
+		this.snapshotPath = Paths.get(name + ".snapshot");
+		if (!keepExisting) {
+			Files.deleteIfExists(this.logPath);
+			Files.deleteIfExists(this.snapshotPath);
+		}
+		this.log = FileChannel.open(this.logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.READ);
+	}
+
+	/**
+	 * Replays the snapshot and then the log - returns the number of records read
+	 */
+	public long recover(Replayer replayer) throws IOException {
+		long records = 0;
+		if (Files.exists(this.snapshotPath)) {
+			try (FileChannel snapshot = FileChannel.open(this.snapshotPath, StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size());
+				if (mapped.remaining() >= 8 && mapped.getInt() == SNAPSHOT_MAGIC) {
+					int count = mapped.getInt();
+					for (int i=0; i<count && mapped.remaining() >= 4; i++)
+						replayer.add(mapped.getInt());
+					records += count;
+				}
+			}
+		}
+		long size = this.log.size();
+		// a record torn by a crash is ignored and overwritten by the next append
+		long complete = size - size % RECORD_SIZE;
+		if (complete > 0) {
+			MappedByteBuffer mapped = this.log.map(FileChannel.MapMode.READ_ONLY, 0, complete);
+			while (mapped.hasRemaining()) {
+				byte op = mapped.get();
+				int value = mapped.getInt();
+				if (op == ADD)
+					replayer.add(value);
+				else if (op == DROP_PARTITION)
+					replayer.dropPartition(value);
+				records++;
+			}
+		}
+		this.log.position(complete);
+		this.log.truncate(complete);
+		return records;
+	}
+
+	/**
+	 * Starts forcing appended changes to disk in batches - the compaction runs once the
+	 * log has grown past its threshold
+	 */
+	public void start(Runnable compaction) {
+		this.flusher.scheduleWithFixedDelay(() -> {
+			try {
+				this.flush();
+				if (this.log.size() >= COMPACT_AT)
+					compaction.run();
+			} catch (IOException e) {
+				System.out.println("Could not write data log");
+				e.printStackTrace();
+			}
+		}, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Appends a change - it is durable after the next flush
+	 */
+	public synchronized void append(byte op, int value) {
+		if (this.buffer.remaining() < RECORD_SIZE) {
+			try {
+				this.write();
+			} catch (IOException e) {
+				System.out.println("Could not write data log");
+				e.printStackTrace();
+			}
+		}
+		this.buffer.put(op).putInt(value);
+	}
+
+	private synchronized void write() throws IOException {
+		this.buffer.flip();
+		while (this.buffer.hasRemaining())
+			this.log.write(this.buffer);
+		this.buffer.clear();
+	}
+
+	/**
+	 * Writes out buffered changes and forces them to disk
+	 */
+	public synchronized void flush() throws IOException {
+		// nothing to write, or the log was deleted
+		if (this.buffer.position() == 0 || !this.log.isOpen())
+			return;
+		this.write();
+		this.log.force(false);
+	}
+
+	/**
+	 * Stops the background flushes and closes the log after a final flush
+	 */
+	public synchronized void close() throws IOException {
+		this.flusher.shutdown();
+		this.flush();
+		this.log.close();
+	}
+
+	/**
+	 * Closes the log and deletes it along with the snapshot, for a node that left the DHT
+	 * for good
+	 */
+	public synchronized void delete() throws IOException {
+		this.flusher.shutdown();
+		this.buffer.clear();
+		this.log.close();
+		Files.deleteIfExists(this.logPath);
+		Files.deleteIfExists(this.snapshotPath);
+	}
+
+	/**
+	 * Replaces the snapshot with the given data and empties the log - the caller must
+	 * make sure no changes are appended meanwhile
+	 */
+	public synchronized void compact(PartitionedIntStore data) throws IOException {
+		Path temporary = Paths.get(this.snapshotPath + ".tmp");
+		try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer out = ByteBuffer.allocateDirect(1024 * 1024);
+			out.putInt(SNAPSHOT_MAGIC).putInt(data.size());
+			IOException[] failure = new IOException[1];
+			data.forEach(value -> {
+				if (out.remaining() < 4) {
+					out.flip();
+					try {
+						while (out.hasRemaining())
+							snapshot.write(out);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+					out.clear();
+				}
+				out.putInt(value);
+			});
+			if (failure[0] != null)
+				throw failure[0];
+			out.flip();
+			while (out.hasRemaining())
+				snapshot.write(out);
+			snapshot.force(true);
+		}
+		Files.move(temporary, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		// changes up to now are in the snapshot
+		this.buffer.clear();
+		this.log.truncate(0);
+		this.log.position(0);
+		this.log.force(true);
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * FailureDetector.java
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phi accrual failure detector fed by the heartbeats DHT nodes push to the SuperNode.
+ * For every node it keeps a window of recent heartbeat intervals and, on a background
+ * schedule, computes how unlikely the current silence is (phi). A node whose phi
+ * crosses the threshold is reported as suspected, without any connection being made.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class FailureDetector {
+
+	private static int WINDOW_SIZE = 100;
+	// lower bound on the deviation, so a very regular node is not suspected on a small hiccup
+	private static double MIN_STD_DEVIATION_MILLIS = 100;
+
+	/**
+	 * Callback for nodes that stopped sending heartbeats
+	 */
+	interface Listener {
+		void suspected(int nodeId);
+	}
+
+	/**
+	 * Heartbeat history of one node
+	 */
+	private static class History {
+		private long[] intervals = new long[WINDOW_SIZE];
+		private int count = 0;
+		private int next = 0;
+		private double sum = 0;
+		private double squares = 0;
+		private long last;
+
+		History(long now, long expectedInterval) {
+			this.last = now;
+			// start from the expected interval until real samples come in
+			this.add(expectedInterval);
+		}
+
+		synchronized void heartbeat(long now) {
+			this.add(now - this.last);
+			this.last = now;
+		}
+
+		private void add(long interval) {
+			if (this.count == WINDOW_SIZE) {
+				long dropped = this.intervals[this.next];
+				this.sum -= dropped;
+				this.squares -= (double) dropped * dropped;
+			} else {
+				this.count++;
+			}
+			this.intervals[this.next] = interval;
+			this.next = (this.next + 1) % WINDOW_SIZE;
+			this.sum += interval;
+			this.squares += (double) interval * interval;
+		}
+
+		synchronized double phi(long now, long acceptablePause) {
+			double mean = this.sum / this.count + acceptablePause;
+			double variance = this.squares / this.count - (this.sum / this.count) * (this.sum / this.count);
+			double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION_MILLIS);
+			// logistic approximation of the normal distribution's tail
+			double y = (now - this.last - mean) / deviation;
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			if (now - this.last > mean)
+				return -Math.log10(e / (1.0 + e));
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+
+	private long interval;
+	private long acceptablePause;
+	private double threshold;
+	private Listener listener;
+	private Map<Integer, History> histories = new ConcurrentHashMap<>();
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Constructor - interval is how often nodes send heartbeats, acceptable pause how long
+	 * a node may stall (e.g. in garbage collection) on top of that before being suspected
+	 */
+	public FailureDetector(long interval, long acceptablePause, double threshold, Listener listener) {
+		this.interval = interval;
+		this.acceptablePause = acceptablePause;
+		this.threshold = threshold;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts checking all watched nodes in the background
+	 */
+	public void start() {
+		this.scheduler.scheduleAtFixedRate(this::check, this.interval, this.interval / 2,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records a heartbeat - starts watching the node if it isn't watched yet
+	 */
+	public void heartbeat(int nodeId) {
+		long now = now();
+		History history = this.histories.putIfAbsent(nodeId, new History(now, this.interval));
+		if (history != null)
+			history.heartbeat(now);
+	}
+
+	/**
+	 * Stops watching a node, e.g. once it went offline on purpose
+	 */
+	public void remove(int nodeId) {
+		this.histories.remove(nodeId);
+	}
+
+	public double phi(int nodeId) {
+		History history = this.histories.get(nodeId);
+		return history == null ? 0 : history.phi(now(), this.acceptablePause);
+	}
+
+	/**
+	 * Milliseconds on the monotonic clock - the wall clock may step, e.g. when NTP corrects
+	 * it, which would show up as a stall or a burst of heartbeats
+	 */
+	private static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+	/**
+	 * Reports every node whose phi crossed the threshold and stops watching it until its
+	 * next heartbeat
+	 */
+	private void check() {
+		long now = now();
+		for (Map.Entry<Integer, History> entry : this.histories.entrySet()) {
+			if (entry.getValue().phi(now, this.acceptablePause) < this.threshold)
+				continue;
+			this.histories.remove(entry.getKey());
+			try {
+				this.listener.suspected(entry.getKey());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
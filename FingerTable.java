@@ -0,0 +1,146 @@
+/**
+ * FingerTable.java
+ */
+
+import java.util.*;
+
+/**
+ * Finger table of a single Chord DHT node as computed by the SuperNode. Each entry
+ * holds the start of the interval it covers, the online successor of that start and
+ * the address of that successor, so the node can forward data hop by hop without
+ * asking the SuperNode.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class FingerTable {
+
+	private int dhtSize;
+	private int nodeId;
+	private int predecessor;
+	private int[] start;
+	private int[] successor;
+	private String[] ip;
+	private int[] port;
+
+	/**
+	 * Constructor - builds the table from the entries published by the SuperNode
+	 */
+	FingerTable(int dhtSize, int nodeId, int predecessor, int[] start, int[] successor,
+				String[] ip, int[] port) {
+		this.dhtSize = dhtSize;
+		this.nodeId = nodeId;
+		this.predecessor = predecessor;
+		this.start = start;
+		this.successor = successor;
+		this.ip = ip;
+		this.port = port;
+	}
+
+	/**
+	 * Parses a table out of "firefly fingers <nodeID> <predecessor> <start>:<successor>:<ip>:<port> ..."
+	 */
+	static FingerTable parse(int dhtSize, String[] messageChunks) {
+		int nodeId = Integer.parseInt(messageChunks[2]);
+		int predecessor = Integer.parseInt(messageChunks[3]);
+		int size = messageChunks.length - 4;
+		int[] start = new int[size];
+		int[] successor = new int[size];
+		String[] ip = new String[size];
+		int[] port = new int[size];
+		for (int i=0; i<size; i++) {
+			String[] entry = messageChunks[i + 4].split(":");
+			start[i] = Integer.parseInt(entry[0]);
+			successor[i] = Integer.parseInt(entry[1]);
+			ip[i] = entry[2];
+			port[i] = Integer.parseInt(entry[3]);
+		}
+		return new FingerTable(dhtSize, nodeId, predecessor, start, successor, ip, port);
+	}
+
+	/**
+	 * Returns a copy of this table with the entries of
+	 * "firefly fingerdelta <nodeID> <predecessor> <index>:<start>:<successor>:<ip>:<port> ..." applied
+	 */
+	FingerTable applyDelta(String[] messageChunks) {
+		int predecessor = Integer.parseInt(messageChunks[3]);
+		int[] start = this.start.clone();
+		int[] successor = this.successor.clone();
+		String[] ip = this.ip.clone();
+		int[] port = this.port.clone();
+		for (int i=4; i<messageChunks.length; i++) {
+			String[] entry = messageChunks[i].split(":");
+			int index = Integer.parseInt(entry[0]);
+			start[index] = Integer.parseInt(entry[1]);
+			successor[index] = Integer.parseInt(entry[2]);
+			ip[index] = entry[3];
+			port[index] = Integer.parseInt(entry[4]);
+		}
+		return new FingerTable(this.dhtSize, this.nodeId, predecessor, start, successor, ip, port);
+	}
+
+	/**
+	 * True if x lies in the ring interval (from, to] - the whole ring if from == to
+	 */
+	static boolean between(int from, int x, int to) {
+		if (from == to)
+			return true;
+		if (from < to)
+			return x > from && x <= to;
+		return x > from || x <= to;
+	}
+
+	public int getNodeId() {
+		return this.nodeId;
+	}
+
+	public int getPredecessor() {
+		return this.predecessor;
+	}
+
+	/**
+	 * True if this node is responsible for the given key
+	 */
+	public boolean owns(int key) {
+		return between(this.predecessor, key, this.nodeId);
+	}
+
+	/**
+	 * Index of the finger to forward a key to - the immediate successor if it owns the key,
+	 * otherwise the closest finger preceding the key
+	 */
+	public int nextHop(int key) {
+		if (between(this.nodeId, key, this.successor[0]))
+			return 0;
+		for (int i=this.successor.length-1; i>0; i--) {
+			int node = this.successor[i];
+			if (between(this.nodeId, node, key))
+				return i;
+		}
+		return 0;
+	}
+
+	public int successorAt(int i) {
+		return this.successor[i];
+	}
+
+	public String ipAt(int i) {
+		return this.ip[i];
+	}
+
+	public int portAt(int i) {
+		return this.port[i];
+	}
+
+	public int size() {
+		return this.successor.length;
+	}
+
+	public String toString() {
+		StringBuilder table = new StringBuilder("node " + this.nodeId + " pred " + this.predecessor);
+		for (int i=0; i<this.successor.length; i++)
+			table.append(" [" + this.start[i] + ", " + this.successor[i] + "]");
+		return table.toString();
+	}
+
+}
@@ -0,0 +1,549 @@
+/**
+ * Frame.java
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * One message of the binary wire protocol used on the data path. A frame is laid out as
+ *
+ *   MAGIC | length (4 bytes) | opcode | request id (varint) | count (varint) |
+ *   count values (zigzag varints) | [payload length (varint) | payload] | tag (8 bytes)
+ *
+ * where only the frames of the key/value store carry a payload of raw bytes, length counts
+ * the bytes after the length field and the tag is a SipHash-2-4 MAC of opcode through
+ * payload, keyed from the shared secret - the secret itself never goes
+ * over the wire. Frame objects are reused, so encoding and decoding allocate nothing.
+ * Every frame also has a text form, which keeps the text protocol available for debugging.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class Frame {
+
+	static final byte MAGIC = (byte) 0xB1;
+
+	// requests
+	static final byte STORE = 1;		// data, handoff flag
+	static final byte STORE_BATCH = 2;	// data ...
+	static final byte GET = 3;			// data
+	static final byte CONTAINS = 4;		// data
+	static final byte REPLICATE = 5;	// data ... - a primary's write to its replicas
+	static final byte RANGE = 6;		// from, to, limit - values from..to in order, on an ordered ring
+	static final byte PUT = 7;			// key length, origin; key and value
+	static final byte FETCH = 8;		// ; key
+	static final byte DELETE = 9;		// origin; key
+	// replies
+	static final byte FOUND = 10;		// data, owner, predecessor[, cache ttl]
+	static final byte MISSING = 11;		// data, owner, predecessor[, cache ttl]
+	static final byte REDIRECT = 12;	// data, node, ipv4 address, port
+	static final byte STORED = 13;		// count
+	static final byte PAGE = 14;		// next, more flag, value ... - one page of a range
+	static final byte VALUE = 15;		// placement of the key, node[, cache ttl]; value
+	static final byte BUSY = 16;		// - the node turned the request away, send it again later
+	// a lookup answer with a cache ttl is of a hot item, which the reader may keep for that
+	// many milliseconds
+
+	// origin of a put or delete - a client, the owner of the key writing to its replicas, or
+	// a node moving its keys after a ring change, whose copy never replaces a newer value
+	static final int FROM_CLIENT = 0;
+	static final int FROM_OWNER = 1;
+	static final int MOVED = 2;
+
+	private static String SECRET_KEY = "firefly";
+	private static int HEADER_SIZE = 5;
+	private static int TAG_SIZE = 8;
+	private static long KEY0;
+	private static long KEY1;
+
+	static {
+		// derive the 128 bit MAC key from the shared secret
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(SECRET_KEY.getBytes(StandardCharsets.UTF_8));
+			ByteBuffer key = ByteBuffer.wrap(digest);
+			KEY0 = key.getLong();
+			KEY1 = key.getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	byte opcode;
+	// 0 if the sender expects no reply
+	long requestId;
+	private int[] values = new int[16];
+	private int count;
+	private byte[] payload = new byte[64];
+	private int payloadLength;
+	// read position while decoding
+	private int[] cursor = new int[1];
+
+	/**
+	 * Starts a new message in this frame
+	 */
+	Frame reset(byte opcode, long requestId) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.count = 0;
+		this.payloadLength = 0;
+		return this;
+	}
+
+	/**
+	 * Appends bytes to the payload, which only key/value frames carry
+	 */
+	Frame addBytes(byte[] bytes, int offset, int length) {
+		if (this.payloadLength + length > this.payload.length)
+			this.payload = Arrays.copyOf(this.payload, Math.max(this.payload.length * 2, this.payloadLength + length));
+		System.arraycopy(bytes, offset, this.payload, this.payloadLength, length);
+		this.payloadLength += length;
+		return this;
+	}
+
+	Frame addBytes(byte[] bytes) {
+		return this.addBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * The payload array - only its first payloadLength() bytes belong to this frame
+	 */
+	byte[] payload() {
+		return this.payload;
+	}
+
+	int payloadLength() {
+		return this.payloadLength;
+	}
+
+	/**
+	 * Copies part of the payload into a new array
+	 */
+	byte[] bytes(int offset, int length) {
+		return Arrays.copyOfRange(this.payload, offset, offset + length);
+	}
+
+	/**
+	 * Makes this frame a copy of another one
+	 */
+	Frame copy(Frame other) {
+		this.reset(other.opcode, other.requestId);
+		for (int i=0; i<other.count; i++)
+			this.add(other.values[i]);
+		return this.addBytes(other.payload, 0, other.payloadLength);
+	}
+
+	/**
+	 * True for a request of a client that waits for its reply, which a node too busy to
+	 * take it may turn away with a busy reply - writes between nodes, and requests nobody
+	 * waits for, are always taken since nobody would send them again
+	 */
+	boolean isSheddable() {
+		if (this.requestId == 0)
+			return false;
+		switch (this.opcode) {
+			case STORE_BATCH:
+			case GET:
+			case CONTAINS:
+			case RANGE:
+			case FETCH:
+				return true;
+			case PUT:
+				return this.values[1] == FROM_CLIENT;
+			case DELETE:
+				return this.values[0] == FROM_CLIENT;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean hasPayload(byte opcode) {
+		return opcode == PUT || opcode == FETCH || opcode == DELETE || opcode == VALUE;
+	}
+
+	Frame add(int value) {
+		if (this.count == this.values.length)
+			this.values = Arrays.copyOf(this.values, this.values.length * 2);
+		this.values[this.count++] = value;
+		return this;
+	}
+
+	int get(int i) {
+		return this.values[i];
+	}
+
+	Frame set(int i, int value) {
+		this.values[i] = value;
+		return this;
+	}
+
+	int count() {
+		return this.count;
+	}
+
+	/**
+	 * Upper bound of the encoded size of this frame
+	 */
+	int maxEncodedSize() {
+		return HEADER_SIZE + 1 + 10 + 5 + 5 * this.count + 5 + this.payloadLength + TAG_SIZE;
+	}
+
+	/**
+	 * Writes this frame into a heap buffer, which must have maxEncodedSize() bytes left
+	 */
+	void encode(ByteBuffer out) {
+		byte[] array = out.array();
+		int start = out.arrayOffset() + out.position();
+		int p = start + HEADER_SIZE;
+		array[p++] = this.opcode;
+		p = putVarLong(array, p, this.requestId);
+		p = putVarLong(array, p, this.count);
+		for (int i=0; i<this.count; i++) {
+			int v = this.values[i];
+			p = putVarLong(array, p, ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+		}
+		if (hasPayload(this.opcode)) {
+			p = putVarLong(array, p, this.payloadLength);
+			System.arraycopy(this.payload, 0, array, p, this.payloadLength);
+			p += this.payloadLength;
+		}
+		long tag = sipHash(array, start + HEADER_SIZE, p - start - HEADER_SIZE);
+		for (int i=0; i<TAG_SIZE; i++)
+			array[p++] = (byte) (tag >>> (8 * i));
+		array[start] = MAGIC;
+		putInt(array, start + 1, p - start - HEADER_SIZE);
+		out.position(p - out.arrayOffset());
+	}
+
+	/**
+	 * Length of the frame body following the header that starts at array[offset]
+	 */
+	static int bodyLength(byte[] array, int offset) {
+		return ((array[offset + 1] & 0xFF) << 24) | ((array[offset + 2] & 0xFF) << 16)
+			| ((array[offset + 3] & 0xFF) << 8) | (array[offset + 4] & 0xFF);
+	}
+
+	static int headerSize() {
+		return HEADER_SIZE;
+	}
+
+	/**
+	 * Reads a complete frame starting at array[offset] into this object - false if it is
+	 * malformed or its tag does not match, in which case it must be disregarded
+	 */
+	boolean decode(byte[] array, int offset) {
+		int length = bodyLength(array, offset);
+		if (length < 1 + TAG_SIZE)
+			return false;
+		int body = offset + HEADER_SIZE;
+		int end = body + length - TAG_SIZE;
+		long tag = 0;
+		for (int i=0; i<TAG_SIZE; i++)
+			tag |= (array[end + i] & 0xFFL) << (8 * i);
+		if (tag != sipHash(array, body, length - TAG_SIZE))
+			return false;
+		int[] cursor = this.cursor;
+		cursor[0] = body;
+		this.opcode = array[cursor[0]++];
+		this.requestId = getVarLong(array, cursor, end);
+		long count = getVarLong(array, cursor, end);
+		if (count < 0 || count > length)
+			return false;
+		this.count = 0;
+		this.payloadLength = 0;
+		for (long i=0; i<count; i++) {
+			long zigzag = getVarLong(array, cursor, end);
+			if (zigzag < 0)
+				return false;
+			int v = (int) zigzag;
+			this.add((v >>> 1) ^ -(v & 1));
+		}
+		if (hasPayload(this.opcode)) {
+			long payloadLength = getVarLong(array, cursor, end);
+			if (payloadLength < 0 || payloadLength > end - cursor[0])
+				return false;
+			this.addBytes(array, cursor[0], (int) payloadLength);
+			cursor[0] += (int) payloadLength;
+		}
+		return cursor[0] == end;
+	}
+
+	private static int putVarLong(byte[] array, int p, long value) {
+		while ((value & ~0x7FL) != 0) {
+			array[p++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		array[p++] = (byte) value;
+		return p;
+	}
+
+	/**
+	 * Reads a varint at cursor[0], advancing it - -1 if it runs past end
+	 */
+	private static long getVarLong(byte[] array, int[] cursor, int end) {
+		long value = 0;
+		for (int shift=0; shift<64; shift+=7) {
+			if (cursor[0] >= end)
+				return -1;
+			byte b = array[cursor[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		return -1;
+	}
+
+	private static void putInt(byte[] array, int p, int value) {
+		array[p] = (byte) (value >>> 24);
+		array[p + 1] = (byte) (value >>> 16);
+		array[p + 2] = (byte) (value >>> 8);
+		array[p + 3] = (byte) value;
+	}
+
+	/**
+	 * SipHash-2-4 of array[offset, offset + length) under the shared key
+	 */
+	static long sipHash(byte[] array, int offset, int length) {
+		long v0 = 0x736f6d6570736575L ^ KEY0;
+		long v1 = 0x646f72616e646f6dL ^ KEY1;
+		long v2 = 0x6c7967656e657261L ^ KEY0;
+		long v3 = 0x7465646279746573L ^ KEY1;
+		int end = offset + length - (length % 8);
+		for (int p=offset; p<end; p+=8) {
+			long m = 0;
+			for (int i=0; i<8; i++)
+				m |= (array[p + i] & 0xFFL) << (8 * i);
+			v3 ^= m;
+			for (int round=0; round<2; round++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+		long last = (long) (length & 0xFF) << 56;
+		for (int i=0; i<length % 8; i++)
+			last |= (array[end + i] & 0xFFL) << (8 * i);
+		v3 ^= last;
+		for (int round=0; round<2; round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		v0 ^= last;
+		v2 ^= 0xFF;
+		for (int round=0; round<4; round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+
+	/**
+	 * Packs a dotted IPv4 address into an int
+	 */
+	static int packAddress(String ip) {
+		String[] octets = ip.split("\\.");
+		int address = 0;
+		for (String octet : octets)
+			address = (address << 8) | Integer.parseInt(octet);
+		return address;
+	}
+
+	static String unpackAddress(int address) {
+		return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF)
+			+ "." + (address & 0xFF);
+	}
+
+	/**
+	 * Fills this frame from the text form of a data path message - false if the text is
+	 * not one of them
+	 */
+	boolean parseText(String[] messageChunks) {
+		switch (messageChunks[1]) {
+			case "store":		// firefly store <data> <flag>
+				this.reset(STORE, 0).add(Integer.parseInt(messageChunks[2]))
+					.add(messageChunks.length > 3 && messageChunks[3].equals("true") ? 1 : 0);
+				return true;
+			case "storebatch":	// firefly storebatch <requestID|-> <data> ...
+			case "replicate": {	// firefly replicate <requestID|-> <data> ...
+				this.reset(messageChunks[1].equals("storebatch") ? STORE_BATCH : REPLICATE,
+					messageChunks[2].equals("-") ? 0 : Long.parseLong(messageChunks[2]));
+				for (int i=3; i<messageChunks.length; i++)
+					this.add(Integer.parseInt(messageChunks[i]));
+				return true;
+			}
+			case "get":			// firefly get <data>
+			case "contains":	// firefly contains <data>
+				this.reset(messageChunks[1].equals("get") ? GET : CONTAINS, 0).add(Integer.parseInt(messageChunks[2]));
+				return true;
+			case "range":		// firefly range <from> <to> <limit>
+				this.reset(RANGE, 0).add(Integer.parseInt(messageChunks[2])).add(Integer.parseInt(messageChunks[3]))
+					.add(Integer.parseInt(messageChunks[4]));
+				return true;
+			case "put": {		// firefly put <requestID|-> <key> <value> [owner|moved] - key and value in base64, - if empty
+				byte[] key = decodeBytes(messageChunks[3]);
+				this.reset(PUT, messageChunks[2].equals("-") ? 0 : Long.parseLong(messageChunks[2])).add(key.length)
+					.add(origin(messageChunks, 5)).addBytes(key).addBytes(decodeBytes(messageChunks[4]));
+				return true;
+			}
+			case "fetch":		// firefly fetch <key>
+				this.reset(FETCH, 0).addBytes(decodeBytes(messageChunks[2]));
+				return true;
+			case "delete":		// firefly delete <requestID|-> <key> [owner]
+				this.reset(DELETE, messageChunks[2].equals("-") ? 0 : Long.parseLong(messageChunks[2]))
+					.add(origin(messageChunks, 4)).addBytes(decodeBytes(messageChunks[3]));
+				return true;
+			case "value":		// firefly value <placement> <node> <value> [<cache ttl>]
+				this.reset(VALUE, 0).add(Integer.parseInt(messageChunks[2])).add(Integer.parseInt(messageChunks[3]))
+					.addBytes(decodeBytes(messageChunks[4]));
+				if (messageChunks.length > 5)
+					this.add(Integer.parseInt(messageChunks[5]));
+				return true;
+			case "page": {		// firefly page <next|end> <value> ...
+				boolean more = !messageChunks[2].equals("end");
+				this.reset(PAGE, 0).add(more ? Integer.parseInt(messageChunks[2]) : 0).add(more ? 1 : 0);
+				for (int i=3; i<messageChunks.length; i++)
+					this.add(Integer.parseInt(messageChunks[i]));
+				return true;
+			}
+			case "found":		// firefly found <data> <owner> <predecessor> [<cache ttl>]
+			case "missing":		// firefly missing <data> <owner> <predecessor> [<cache ttl>]
+				this.reset(messageChunks[1].equals("found") ? FOUND : MISSING, 0)
+					.add(Integer.parseInt(messageChunks[2])).add(Integer.parseInt(messageChunks[3]))
+					.add(Integer.parseInt(messageChunks[4]));
+				if (messageChunks.length > 5)
+					this.add(Integer.parseInt(messageChunks[5]));
+				return true;
+			case "redirect":	// firefly redirect <data> <node> <ip> <port>
+				this.reset(REDIRECT, 0).add(Integer.parseInt(messageChunks[2])).add(Integer.parseInt(messageChunks[3]))
+					.add(packAddress(messageChunks[4])).add(Integer.parseInt(messageChunks[5]));
+				return true;
+			case "stored":		// firefly stored <requestID> <count>
+				this.reset(STORED, Long.parseLong(messageChunks[2])).add(Integer.parseInt(messageChunks[3]));
+				return true;
+			case "busy":		// firefly busy <requestID>
+				this.reset(BUSY, Long.parseLong(messageChunks[2]));
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Base64 text of bytes, - for none
+	 */
+	private static String encodeBytes(byte[] bytes) {
+		return bytes.length == 0 ? "-" : Base64.getEncoder().encodeToString(bytes);
+	}
+
+	private static byte[] decodeBytes(String text) {
+		return text.equals("-") ? new byte[0] : Base64.getDecoder().decode(text);
+	}
+
+	private static int origin(String[] messageChunks, int i) {
+		if (messageChunks.length <= i)
+			return FROM_CLIENT;
+		return messageChunks[i].equals("owner") ? FROM_OWNER : messageChunks[i].equals("moved") ? MOVED : FROM_CLIENT;
+	}
+
+	private static String originName(int origin) {
+		return origin == FROM_OWNER ? " owner" : origin == MOVED ? " moved" : "";
+	}
+
+	/**
+	 * Name of the command of a request opcode, as in the text protocol
+	 */
+	static String commandName(byte opcode) {
+		switch (opcode) {
+			case STORE:
+				return "store";
+			case STORE_BATCH:
+				return "storebatch";
+			case REPLICATE:
+				return "replicate";
+			case GET:
+				return "get";
+			case CONTAINS:
+				return "contains";
+			case RANGE:
+				return "range";
+			case PUT:
+				return "put";
+			case FETCH:
+				return "fetch";
+			case DELETE:
+				return "delete";
+			default:
+				return "other";
+		}
+	}
+
+	/**
+	 * Text form of this frame
+	 */
+	String toText() {
+		StringBuilder text = new StringBuilder(SECRET_KEY);
+		switch (this.opcode) {
+			case STORE:
+				return text.append(" store ").append(this.values[0]).append(this.values[1] == 1 ? " true" : " false").toString();
+			case STORE_BATCH:
+			case REPLICATE:
+				text.append(this.opcode == STORE_BATCH ? " storebatch " : " replicate ").append(this.requestId == 0 ? "-" : Long.toString(this.requestId));
+				for (int i=0; i<this.count; i++)
+					text.append(' ').append(this.values[i]);
+				return text.toString();
+			case GET:
+				return text.append(" get ").append(this.values[0]).toString();
+			case CONTAINS:
+				return text.append(" contains ").append(this.values[0]).toString();
+			case RANGE:
+				return text.append(" range ").append(this.values[0]).append(' ').append(this.values[1]).append(' ')
+					.append(this.values[2]).toString();
+			case PUT:
+				return text.append(" put ").append(this.requestId == 0 ? "-" : Long.toString(this.requestId)).append(' ')
+					.append(encodeBytes(this.bytes(0, this.values[0]))).append(' ')
+					.append(encodeBytes(this.bytes(this.values[0], this.payloadLength - this.values[0])))
+					.append(originName(this.values[1])).toString();
+			case FETCH:
+				return text.append(" fetch ").append(encodeBytes(this.bytes(0, this.payloadLength)))
+					.toString();
+			case DELETE:
+				return text.append(" delete ").append(this.requestId == 0 ? "-" : Long.toString(this.requestId)).append(' ')
+					.append(encodeBytes(this.bytes(0, this.payloadLength)))
+					.append(originName(this.values[0])).toString();
+			case VALUE:
+				text.append(" value ").append(this.values[0]).append(' ').append(this.values[1]).append(' ')
+					.append(encodeBytes(this.bytes(0, this.payloadLength)));
+				return (this.count > 2 ? text.append(' ').append(this.values[2]) : text).toString();
+			case PAGE:
+				text.append(" page ").append(this.values[1] == 1 ? Integer.toString(this.values[0]) : "end");
+				for (int i=2; i<this.count; i++)
+					text.append(' ').append(this.values[i]);
+				return text.toString();
+			case FOUND:
+			case MISSING:
+				text.append(this.opcode == FOUND ? " found " : " missing ").append(this.values[0]).append(' ')
+					.append(this.values[1]).append(' ').append(this.values[2]);
+				return (this.count > 3 ? text.append(' ').append(this.values[3]) : text).toString();
+			case REDIRECT:
+				return text.append(" redirect ").append(this.values[0]).append(' ').append(this.values[1]).append(' ')
+					.append(unpackAddress(this.values[2])).append(' ').append(this.values[3]).toString();
+			case STORED:
+				return text.append(" stored ").append(this.requestId).append(' ').append(this.values[0]).toString();
+			case BUSY:
+				return text.append(" busy ").append(this.requestId).toString();
+			default:
+				return text.append(" unknown ").append(this.opcode).toString();
+		}
+	}
+
+}
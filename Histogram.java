@@ -0,0 +1,101 @@
+/**
+ * Histogram.java
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values such as latencies. Buckets are log-linear -
+ * 32 per power of two - so a recorded value is known to within about 3% at any magnitude,
+ * in a fixed 16KB of counters, and recording is a single atomic increment.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class Histogram {
+
+	private static int SUB_BITS = 5;
+	private static int SUB_BUCKETS = 1 << SUB_BITS;
+	private static int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private LongAdder total = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Bucket of a value - values below 2 * SUB_BUCKETS get one bucket each
+	 */
+	private static int bucketOf(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * Largest value that falls into a bucket
+	 */
+	private static long highestIn(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long mantissa = bucket - shift * SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	public void record(long value) {
+		value = Math.max(0, value);
+		this.counts.incrementAndGet(bucketOf(value));
+		this.total.increment();
+		this.sum.add(value);
+		this.max.accumulate(value);
+	}
+
+	public long count() {
+		return this.total.sum();
+	}
+
+	public long max() {
+		return this.max.get();
+	}
+
+	public double mean() {
+		long count = this.count();
+		return count == 0 ? 0 : (double) this.sum.sum() / count;
+	}
+
+	/**
+	 * Value below which the given fraction of the recorded values fall, e.g. 0.99 - exact
+	 * to within the width of its bucket
+	 */
+	public long percentile(double fraction) {
+		long count = 0;
+		for (int i=0; i<BUCKETS; i++)
+			count += this.counts.get(i);
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestIn(i), this.max());
+		}
+		return this.max();
+	}
+
+	/**
+	 * Forgets every recorded value, e.g. at the end of a warmup
+	 */
+	public void reset() {
+		for (int i=0; i<BUCKETS; i++)
+			this.counts.set(i, 0);
+		this.total.reset();
+		this.sum.reset();
+		this.max.reset();
+	}
+
+}
@@ -0,0 +1,246 @@
+/**
+ * HotKeys.java
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Heavy hitters among the reads a node answers, by the Space-Saving algorithm - a fixed
+ * number of counters, each the count of one item. An item that has no counter takes the
+ * smallest one over, inheriting its count as the most its own count may be overstated by,
+ * so every item read more often than once per capacity reads has a counter, and a
+ * counter's count less its error is never more than the item's true count. The counters
+ * are kept in a min-heap by count, found by item through an open addressing index, and
+ * all counts halve every window so the hot set follows the load as it shifts.
+ *
+ * Every read asks whether its item is hot, so the sketch is kept off the read path: only
+ * one read in sample, picked at random, is counted under the lock, and the hot items are
+ * published as a sorted array that reads search without it. A hot item has at least the
+ * given share of the reads, so sampling leaves the shares, and the hot set, as they were.
+ *
+ * Items are longs - int values as themselves, keys by their hash.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class HotKeys {
+
+	// reads counted over a window before anything counts as hot
+	private static int MIN_READS = 1000;
+	// counted reads after which the published hot items are brought up to date
+	private static int REFRESH = 64;
+
+	private int capacity;
+	private double share;
+	private long window;
+	private long nextDecay;
+	// counters, only the first size in use
+	private long[] items;
+	private long[] counts;
+	private long[] errors;
+	private int size = 0;
+	// counters by count, smallest first, and where each counter is in it
+	private int[] heap;
+	private int[] heapIndex;
+	// counter number plus one by item, 0 for an empty slot
+	private int[] index;
+	private int mask;
+	private long reads = 0;
+	private int sample;
+	// hot items, sorted, as of the last refresh - read without the lock
+	private volatile long[] hotItems = new long[0];
+	private int sinceRefresh = 0;
+
+	public HotKeys() {
+		this(Integer.getInteger("dht.hotKeys", 128), Double.parseDouble(System.getProperty("dht.hotShare", "0.01")),
+			Long.getLong("dht.hotWindow", 10_000), Integer.getInteger("dht.hotSample", 16));
+	}
+
+	/**
+	 * Sketch of capacity counters, calling an item hot once it has at least the given share
+	 * of the reads, with counts halving every window milliseconds, counting one read in sample
+	 */
+	public HotKeys(int capacity, double share, long windowMillis, int sample) {
+		this.capacity = Math.max(1, capacity);
+		this.sample = Math.max(1, sample);
+		this.share = share;
+		this.window = windowMillis * 1_000_000L;
+		this.nextDecay = System.nanoTime() + this.window;
+		this.items = new long[this.capacity];
+		this.counts = new long[this.capacity];
+		this.errors = new long[this.capacity];
+		this.heap = new int[this.capacity];
+		this.heapIndex = new int[this.capacity];
+		this.index = new int[Integer.highestOneBit(this.capacity * 2 - 1) << 1];
+		this.mask = this.index.length - 1;
+	}
+
+	/**
+	 * Counts a read of an item, if it is sampled - returns true if the item is hot
+	 */
+	public boolean offer(long item) {
+		if (this.sample == 1 || ThreadLocalRandom.current().nextInt(this.sample) == 0)
+			this.count(item);
+		return this.isHot(item);
+	}
+
+	/**
+	 * True if an item is hot, without counting a read of it
+	 */
+	public boolean isHot(long item) {
+		return Arrays.binarySearch(this.hotItems, item) >= 0;
+	}
+
+	/**
+	 * Counts a sampled read in the sketch, and publishes the hot items again every so
+	 * often, or right away if the item just became hot or stopped being hot
+	 */
+	private synchronized void count(long item) {
+		long now = System.nanoTime();
+		if (now - this.nextDecay >= 0) {
+			this.decay();
+			this.nextDecay = now + this.window;
+		}
+		this.reads++;
+		int slot = this.find(item);
+		int counter;
+		if (this.index[slot] != 0) {
+			counter = this.index[slot] - 1;
+		} else if (this.size < this.capacity) {
+			counter = this.size++;
+			this.items[counter] = item;
+			this.counts[counter] = 0;
+			this.errors[counter] = 0;
+			this.heap[counter] = counter;
+			this.heapIndex[counter] = counter;
+			this.siftUp(counter);
+			this.index[slot] = counter + 1;
+		} else {
+			// the item takes the smallest counter over, along with its count as error
+			counter = this.heap[0];
+			this.remove(this.items[counter]);
+			this.items[counter] = item;
+			this.errors[counter] = this.counts[counter];
+			this.index[this.find(item)] = counter + 1;
+		}
+		this.counts[counter]++;
+		this.siftDown(this.heapIndex[counter]);
+		if (++this.sinceRefresh >= REFRESH || this.isHot(counter) != this.isHot(item))
+			this.refresh();
+	}
+
+	private boolean isHot(int counter) {
+		return this.reads * this.sample >= MIN_READS && this.counts[counter] - this.errors[counter] >= this.share * this.reads;
+	}
+
+	/**
+	 * Publishes the items that are hot now
+	 */
+	private void refresh() {
+		long[] hot = new long[this.size];
+		int count = 0;
+		for (int counter=0; counter<this.size; counter++) {
+			if (this.isHot(counter))
+				hot[count++] = this.items[counter];
+		}
+		hot = Arrays.copyOf(hot, count);
+		Arrays.sort(hot);
+		this.hotItems = hot;
+		this.sinceRefresh = 0;
+	}
+
+	/**
+	 * Hot items, hottest first, each with the reads of it the sketch is sure of - scaled up
+	 * from the sampled ones
+	 */
+	public synchronized List<long[]> hot() {
+		List<long[]> hot = new ArrayList<>();
+		for (int counter=0; counter<this.size; counter++) {
+			if (this.isHot(counter))
+				hot.add(new long[] { this.items[counter], (this.counts[counter] - this.errors[counter]) * this.sample });
+		}
+		hot.sort((a, b) -> Long.compare(b[1], a[1]));
+		return hot;
+	}
+
+	/**
+	 * Halves every count - halving keeps the order of the counts, so the heap stays valid
+	 */
+	private void decay() {
+		for (int counter=0; counter<this.size; counter++) {
+			this.counts[counter] >>= 1;
+			this.errors[counter] >>= 1;
+		}
+		this.reads >>= 1;
+	}
+
+	/**
+	 * Slot of an item in the index, or the empty slot it would go in
+	 */
+	private int find(long item) {
+		int slot = (int) ((item * 0x9E3779B97F4A7C15L) >>> 32) & this.mask;
+		while (this.index[slot] != 0 && this.items[this.index[slot] - 1] != item)
+			slot = (slot + 1) & this.mask;
+		return slot;
+	}
+
+	/**
+	 * Removes an item from the index, shifting later entries of its probe chain back
+	 */
+	private void remove(long item) {
+		int hole = this.find(item);
+		this.index[hole] = 0;
+		for (int slot=(hole + 1) & this.mask; this.index[slot] != 0; slot=(slot + 1) & this.mask) {
+			long other = this.items[this.index[slot] - 1];
+			int home = (int) ((other * 0x9E3779B97F4A7C15L) >>> 32) & this.mask;
+			// the entry may move back to the hole unless its home lies between the hole and it
+			if (((slot - home) & this.mask) >= ((slot - hole) & this.mask)) {
+				this.index[hole] = this.index[slot];
+				this.index[slot] = 0;
+				hole = slot;
+			}
+		}
+	}
+
+	/**
+	 * Moves a new counter up the heap to its place
+	 */
+	private void siftUp(int position) {
+		int counter = this.heap[position];
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (this.counts[this.heap[parent]] <= this.counts[counter])
+				break;
+			this.heap[position] = this.heap[parent];
+			this.heapIndex[this.heap[position]] = position;
+			position = parent;
+		}
+		this.heap[position] = counter;
+		this.heapIndex[counter] = position;
+	}
+
+	/**
+	 * Moves a counter whose count grew down the heap to its place
+	 */
+	private void siftDown(int position) {
+		int counter = this.heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= this.size)
+				break;
+			if (child + 1 < this.size && this.counts[this.heap[child + 1]] < this.counts[this.heap[child]])
+				child++;
+			if (this.counts[this.heap[child]] >= this.counts[counter])
+				break;
+			this.heap[position] = this.heap[child];
+			this.heapIndex[this.heap[position]] = position;
+			position = child;
+		}
+		this.heap[position] = counter;
+		this.heapIndex[counter] = position;
+	}
+
+}
@@ -0,0 +1,188 @@
+/**
+ * IntHashSet.java
+ */
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive ints - stores each value in a single int slot
+ * instead of a boxed Integer and a HashMap node. Uses linear probing with backward
+ * shift deletion, so removals leave no tombstones behind.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class IntHashSet implements IntSet {
+
+	private static int EMPTY = 0;
+	private static float LOAD_FACTOR = 0.6f;
+
+	private int[] slots;
+	private int mask;
+	private int size = 0;
+	private int resizeAt;
+	// EMPTY marks a free slot, so the value 0 itself is tracked separately
+	private boolean hasEmptyValue = false;
+
+	/**
+	 * Interface to visit every value without boxing it
+	 */
+	interface IntVisitor {
+		void visit(int value);
+	}
+
+	public IntHashSet() {
+		this(16);
+	}
+
+	public IntHashSet(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+		this.allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.slots = new int[capacity];
+		this.mask = capacity - 1;
+		this.resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Spreads the bits of a value so sequential values do not cluster
+	 */
+	private static int slot(int value, int mask) {
+		int h = value * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	public boolean add(int value) {
+		if (value == EMPTY) {
+			if (this.hasEmptyValue)
+				return false;
+			this.hasEmptyValue = true;
+			this.size++;
+			return true;
+		}
+		int i = slot(value, this.mask);
+		while (this.slots[i] != EMPTY) {
+			if (this.slots[i] == value)
+				return false;
+			i = (i + 1) & this.mask;
+		}
+		this.slots[i] = value;
+		this.size++;
+		if (this.size >= this.resizeAt)
+			this.grow();
+		return true;
+	}
+
+	public boolean contains(int value) {
+		if (value == EMPTY)
+			return this.hasEmptyValue;
+		int i = slot(value, this.mask);
+		while (this.slots[i] != EMPTY) {
+			if (this.slots[i] == value)
+				return true;
+			i = (i + 1) & this.mask;
+		}
+		return false;
+	}
+
+	public boolean remove(int value) {
+		if (value == EMPTY) {
+			if (!this.hasEmptyValue)
+				return false;
+			this.hasEmptyValue = false;
+			this.size--;
+			return true;
+		}
+		int i = slot(value, this.mask);
+		while (this.slots[i] != value) {
+			if (this.slots[i] == EMPTY)
+				return false;
+			i = (i + 1) & this.mask;
+		}
+		// shift later entries of the probe chain back into the freed slot
+		int gap = i;
+		int j = (i + 1) & this.mask;
+		while (this.slots[j] != EMPTY) {
+			int home = slot(this.slots[j], this.mask);
+			if (((j - home) & this.mask) >= ((j - gap) & this.mask)) {
+				this.slots[gap] = this.slots[j];
+				gap = j;
+			}
+			j = (j + 1) & this.mask;
+		}
+		this.slots[gap] = EMPTY;
+		this.size--;
+		return true;
+	}
+
+	private void grow() {
+		int[] old = this.slots;
+		this.allocate(old.length * 2);
+		for (int value : old) {
+			if (value == EMPTY)
+				continue;
+			int i = slot(value, this.mask);
+			while (this.slots[i] != EMPTY)
+				i = (i + 1) & this.mask;
+			this.slots[i] = value;
+		}
+	}
+
+	public void forEach(IntVisitor visitor) {
+		if (this.hasEmptyValue)
+			visitor.visit(EMPTY);
+		for (int value : this.slots) {
+			if (value != EMPTY)
+				visitor.visit(value);
+		}
+	}
+
+	/**
+	 * Copies the values into a new array
+	 */
+	public int[] toArray() {
+		int[] values = new int[this.size];
+		int n = 0;
+		if (this.hasEmptyValue)
+			values[n++] = EMPTY;
+		for (int value : this.slots) {
+			if (value != EMPTY)
+				values[n++] = value;
+		}
+		return values;
+	}
+
+	public void clear() {
+		Arrays.fill(this.slots, EMPTY);
+		this.hasEmptyValue = false;
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Bytes held by the slot array
+	 */
+	public long footprint() {
+		return 4L * this.slots.length;
+	}
+
+	public String toString() {
+		StringBuilder values = new StringBuilder("[");
+		this.forEach(value -> {
+			if (values.length() > 1)
+				values.append(", ");
+			values.append(value);
+		});
+		return values.append("]").toString();
+	}
+
+}
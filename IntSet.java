@@ -0,0 +1,34 @@
+/**
+ * IntSet.java
+ */
+
+/**
+ * A set of primitive ints - the stripes of a PartitionedIntStore are hashed or sorted
+ * sets of this kind, depending on the placement of the DHT.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+interface IntSet {
+
+	boolean add(int value);
+
+	boolean remove(int value);
+
+	boolean contains(int value);
+
+	void forEach(IntHashSet.IntVisitor visitor);
+
+	int size();
+
+	/**
+	 * Copies the values into a new array
+	 */
+	int[] toArray();
+
+	/**
+	 * Bytes held by the arrays of the set
+	 */
+	long footprint();
+
+}
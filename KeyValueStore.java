@@ -0,0 +1,467 @@
+/**
+ * KeyValueStore.java
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Keys and values of any bytes held by a DHT node, off the heap. A key is hashed to 64 bits
+ * with SipHash under the shared secret - so nobody without it can pick keys that collide -
+ * and the top 32 bits of the hash place it on the ring like an int value, so keys are
+ * partitioned, routed and replicated just like the int data. As there, each partition is
+ * split into lock stripes.
+ *
+ * Each entry is a record - key length, value length, key, value - in a slot of a
+ * SlabAllocator, and so is the index: each stripe has an open addressing table of
+ * (hash, record handle) pairs, with linear probing on the low bits of the hash, in a slot
+ * that is doubled into a new one when the table is 3/4 full. Overwriting or deleting an
+ * entry frees its record right away. The heap holds one small object per stripe whatever
+ * the amount of data, so neither heap usage nor garbage collection grows with it.
+ *
+ * A delete leaves a tombstone in place of the key - a record with no value, holding when
+ * the key was deleted - so that a moved copy sent before the delete, which never replaces
+ * what is here, cannot bring the key back when it arrives after it. Tombstones count
+ * towards the 3/4, and the ones older than -Ddht.tombstoneTtl milliseconds (300000 by
+ * default, as long as a migration may take) are dropped whenever the table is rebuilt -
+ * into one of the same size if that leaves it half empty.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class KeyValueStore {
+
+	private static int STRIPE_BITS = 4;
+	private static int STRIPES = 1 << STRIPE_BITS;
+	private static int SLOT_BYTES = 16;
+	private static int MIN_SLOTS = 16;
+	// key length and value length
+	private static int HEADER_BYTES = 8;
+	// value length of a tombstone, which holds the time of the delete in place of a value
+	private static int TOMBSTONE = -1;
+	private static long TOMBSTONE_TTL = Long.getLong("dht.tombstoneTtl", 300_000) * 1_000_000L;
+
+	/**
+	 * The index of one stripe, and the lock held while it is read or changed
+	 */
+	private static class Stripe {
+		ReentrantLock lock = new ReentrantLock();
+		// handle of the table, 0 until the first entry
+		long table = 0;
+		int slots = 0;
+		int size = 0;
+		int tombstones = 0;
+		// bytes of the keys and values
+		long bytes = 0;
+	}
+
+	private int partitionCount;
+	private IntUnaryOperator partitioner;
+	private SlabAllocator slabs;
+	// STRIPES per partition, stripe s of partition p at index p * STRIPES + s
+	private Stripe[] stripes;
+
+	/**
+	 * A store whose partitioner maps the placement of a key to a partition below partitionCount
+	 */
+	public KeyValueStore(int partitionCount, IntUnaryOperator partitioner, SlabAllocator slabs) {
+		this.partitionCount = partitionCount;
+		this.partitioner = partitioner;
+		this.slabs = slabs;
+		this.stripes = new Stripe[partitionCount * STRIPES];
+		for (int i=0; i<this.stripes.length; i++)
+			this.stripes[i] = new Stripe();
+	}
+
+	/**
+	 * 64 bit hash of a key
+	 */
+	public static long hash(byte[] key, int offset, int length) {
+		return Frame.sipHash(key, offset, length);
+	}
+
+	/**
+	 * The int value a key is placed on the ring as
+	 */
+	public static int placement(long hash) {
+		return (int) (hash >>> 32);
+	}
+
+	public int partitionOf(long hash) {
+		return this.partitioner.applyAsInt(placement(hash));
+	}
+
+	private Stripe stripeOf(long hash) {
+		return this.stripes[this.partitionOf(hash) * STRIPES + (((int) hash) >>> (32 - STRIPE_BITS))];
+	}
+
+	/**
+	 * Stores a value under a key, replacing the value it had unless replace is false -
+	 * returns false if there was no memory for it
+	 */
+	public boolean put(long hash, byte[] key, int keyOffset, int keyLength, byte[] value, int valueOffset,
+					   int valueLength, boolean replace) {
+		int recordBytes = HEADER_BYTES + keyLength + valueLength;
+		if (recordBytes > this.slabs.maxSize())
+			return false;
+		Stripe stripe = this.stripeOf(hash);
+		stripe.lock.lock();
+		try {
+			int slot = this.find(stripe, hash, key, keyOffset, keyLength);
+			// a copy replaces neither a value nor a tombstone it may have been sent before
+			if (slot >= 0 && !replace && !this.expired(this.recordAt(stripe, slot), System.nanoTime()))
+				return true;
+			long record = this.slabs.allocate(recordBytes);
+			if (record == 0)
+				return false;
+			ByteBuffer slab = this.slabs.slab(record);
+			int at = SlabAllocator.offset(record);
+			slab.putInt(at, keyLength);
+			slab.putInt(at + 4, valueLength);
+			slab.put(at + HEADER_BYTES, key, keyOffset, keyLength);
+			slab.put(at + HEADER_BYTES + keyLength, value, valueOffset, valueLength);
+			if (slot >= 0) {
+				long old = this.recordAt(stripe, slot);
+				if (this.isTombstone(old)) {
+					stripe.tombstones--;
+					stripe.size++;
+				} else {
+					stripe.bytes -= this.recordBytes(old) - HEADER_BYTES;
+				}
+				this.slabs.free(old);
+				this.setSlot(stripe, slot, hash, record);
+			} else {
+				if (!this.makeRoom(stripe)) {
+					this.slabs.free(record);
+					return false;
+				}
+				slot = -this.find(stripe, hash, key, keyOffset, keyLength) - 1;
+				this.setSlot(stripe, slot, hash, record);
+				stripe.size++;
+			}
+			stripe.bytes += keyLength + valueLength;
+			return true;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Copy of the value of a key, null if it has none
+	 */
+	public byte[] get(long hash, byte[] key, int keyOffset, int keyLength) {
+		Stripe stripe = this.stripeOf(hash);
+		stripe.lock.lock();
+		try {
+			int slot = this.find(stripe, hash, key, keyOffset, keyLength);
+			if (slot < 0)
+				return null;
+			long record = this.recordAt(stripe, slot);
+			if (this.isTombstone(record))
+				return null;
+			ByteBuffer slab = this.slabs.slab(record);
+			int at = SlabAllocator.offset(record);
+			byte[] value = new byte[slab.getInt(at + 4)];
+			slab.get(at + HEADER_BYTES + keyLength, value);
+			return value;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a key, freeing its record, and leaves a tombstone for it whether it was there
+	 * or not - false if it was not there
+	 */
+	public boolean delete(long hash, byte[] key, int keyOffset, int keyLength) {
+		Stripe stripe = this.stripeOf(hash);
+		stripe.lock.lock();
+		try {
+			long now = System.nanoTime();
+			int slot = this.find(stripe, hash, key, keyOffset, keyLength);
+			long old = slot < 0 ? 0 : this.recordAt(stripe, slot);
+			if (old != 0 && this.isTombstone(old)) {
+				this.slabs.slab(old).putLong(SlabAllocator.offset(old) + HEADER_BYTES + keyLength, now);
+				return false;
+			}
+			long tombstone = this.slabs.allocate(HEADER_BYTES + keyLength + 8);
+			if (tombstone == 0 || (old == 0 && !this.makeRoom(stripe))) {
+				// no memory for a tombstone - the key goes all the same
+				if (tombstone != 0)
+					this.slabs.free(tombstone);
+				if (old == 0)
+					return false;
+				stripe.bytes -= this.recordBytes(old) - HEADER_BYTES;
+				this.slabs.free(old);
+				this.removeSlot(stripe, slot);
+				stripe.size--;
+				return true;
+			}
+			ByteBuffer slab = this.slabs.slab(tombstone);
+			int at = SlabAllocator.offset(tombstone);
+			slab.putInt(at, keyLength);
+			slab.putInt(at + 4, TOMBSTONE);
+			slab.put(at + HEADER_BYTES, key, keyOffset, keyLength);
+			slab.putLong(at + HEADER_BYTES + keyLength, now);
+			stripe.tombstones++;
+			if (old == 0) {
+				this.setSlot(stripe, -this.find(stripe, hash, key, keyOffset, keyLength) - 1, hash, tombstone);
+				return false;
+			}
+			stripe.bytes -= this.recordBytes(old) - HEADER_BYTES;
+			this.slabs.free(old);
+			this.setSlot(stripe, slot, hash, tombstone);
+			stripe.size--;
+			return true;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private boolean isTombstone(long record) {
+		return this.slabs.slab(record).getInt(SlabAllocator.offset(record) + 4) == TOMBSTONE;
+	}
+
+	/**
+	 * True if a record is a tombstone older than the time to live
+	 */
+	private boolean expired(long record, long now) {
+		if (!this.isTombstone(record))
+			return false;
+		ByteBuffer slab = this.slabs.slab(record);
+		int at = SlabAllocator.offset(record);
+		return now - slab.getLong(at + HEADER_BYTES + slab.getInt(at)) >= TOMBSTONE_TTL;
+	}
+
+	/**
+	 * Makes sure the table of a stripe has room for one more entry - false if it has not
+	 */
+	private boolean makeRoom(Stripe stripe) {
+		return 4L * (stripe.size + stripe.tombstones + 1) <= 3L * stripe.slots || this.rebuild(stripe);
+	}
+
+	/**
+	 * Slot of a key in the table of its stripe, or -(slot it would go in) - 1 if it is not there
+	 */
+	private int find(Stripe stripe, long hash, byte[] key, int keyOffset, int keyLength) {
+		if (stripe.table == 0)
+			return -1;
+		ByteBuffer table = this.slabs.slab(stripe.table);
+		int base = SlabAllocator.offset(stripe.table);
+		int mask = stripe.slots - 1;
+		for (int i=(int) hash & mask; ; i=(i + 1) & mask) {
+			long record = table.getLong(base + i * SLOT_BYTES + 8);
+			if (record == 0)
+				return -i - 1;
+			if (table.getLong(base + i * SLOT_BYTES) == hash && this.keyEquals(record, key, keyOffset, keyLength))
+				return i;
+		}
+	}
+
+	private boolean keyEquals(long record, byte[] key, int keyOffset, int keyLength) {
+		ByteBuffer slab = this.slabs.slab(record);
+		int at = SlabAllocator.offset(record);
+		if (slab.getInt(at) != keyLength)
+			return false;
+		for (int i=0; i<keyLength; i++) {
+			if (slab.get(at + HEADER_BYTES + i) != key[keyOffset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private long recordAt(Stripe stripe, int slot) {
+		return this.slabs.slab(stripe.table).getLong(SlabAllocator.offset(stripe.table) + slot * SLOT_BYTES + 8);
+	}
+
+	private int recordBytes(long record) {
+		ByteBuffer slab = this.slabs.slab(record);
+		int at = SlabAllocator.offset(record);
+		return HEADER_BYTES + slab.getInt(at) + slab.getInt(at + 4);
+	}
+
+	private void setSlot(Stripe stripe, int slot, long hash, long record) {
+		ByteBuffer table = this.slabs.slab(stripe.table);
+		int at = SlabAllocator.offset(stripe.table) + slot * SLOT_BYTES;
+		table.putLong(at, hash);
+		table.putLong(at + 8, record);
+	}
+
+	/**
+	 * Empties a slot, shifting later entries of its probe chain back so that none are lost
+	 */
+	private void removeSlot(Stripe stripe, int slot) {
+		ByteBuffer table = this.slabs.slab(stripe.table);
+		int base = SlabAllocator.offset(stripe.table);
+		int mask = stripe.slots - 1;
+		int gap = slot;
+		for (int j=(slot + 1) & mask; ; j=(j + 1) & mask) {
+			long record = table.getLong(base + j * SLOT_BYTES + 8);
+			if (record == 0)
+				break;
+			long hash = table.getLong(base + j * SLOT_BYTES);
+			int home = (int) hash & mask;
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				table.putLong(base + gap * SLOT_BYTES, hash);
+				table.putLong(base + gap * SLOT_BYTES + 8, record);
+				gap = j;
+			}
+		}
+		table.putLong(base + gap * SLOT_BYTES, 0);
+		table.putLong(base + gap * SLOT_BYTES + 8, 0);
+	}
+
+	/**
+	 * Moves the table of a stripe into a new one without the expired tombstones - twice the
+	 * size, unless that leaves it half empty - false if there is no memory for it, or it
+	 * would not fit in a slab
+	 */
+	private boolean rebuild(Stripe stripe) {
+		long now = System.nanoTime();
+		int expired = 0;
+		for (int i=0; i<stripe.slots; i++) {
+			long record = this.recordAt(stripe, i);
+			if (record != 0 && this.expired(record, now))
+				expired++;
+		}
+		int kept = stripe.size + stripe.tombstones - expired;
+		int slots = stripe.slots == 0 ? MIN_SLOTS : 2L * (kept + 1) <= stripe.slots ? stripe.slots : stripe.slots * 2;
+		if ((long) slots * SLOT_BYTES > this.slabs.maxSize())
+			return false;
+		long rebuilt = this.slabs.allocate(slots * SLOT_BYTES);
+		if (rebuilt == 0)
+			return false;
+		ByteBuffer to = this.slabs.slab(rebuilt);
+		int toBase = SlabAllocator.offset(rebuilt);
+		for (int i=0; i<slots * SLOT_BYTES; i+=8)
+			to.putLong(toBase + i, 0);
+		if (stripe.table != 0) {
+			ByteBuffer from = this.slabs.slab(stripe.table);
+			int fromBase = SlabAllocator.offset(stripe.table);
+			for (int i=0; i<stripe.slots; i++) {
+				long record = from.getLong(fromBase + i * SLOT_BYTES + 8);
+				if (record == 0)
+					continue;
+				if (this.expired(record, now)) {
+					this.slabs.free(record);
+					stripe.tombstones--;
+					continue;
+				}
+				long hash = from.getLong(fromBase + i * SLOT_BYTES);
+				int j = (int) hash & (slots - 1);
+				while (to.getLong(toBase + j * SLOT_BYTES + 8) != 0)
+					j = (j + 1) & (slots - 1);
+				to.putLong(toBase + j * SLOT_BYTES, hash);
+				to.putLong(toBase + j * SLOT_BYTES + 8, record);
+			}
+			this.slabs.free(stripe.table);
+		}
+		stripe.table = rebuilt;
+		stripe.slots = slots;
+		return true;
+	}
+
+	/**
+	 * Copies of the keys and values of a partition, each as { key, value }, leaving out
+	 * the tombstones - taken a stripe
+	 * at a time, so they can be sent on without holding up stores to the partition
+	 */
+	public List<byte[][]> entries(int partition) {
+		List<byte[][]> entries = new ArrayList<>();
+		for (int s=0; s<STRIPES; s++) {
+			Stripe stripe = this.stripes[partition * STRIPES + s];
+			stripe.lock.lock();
+			try {
+				for (int i=0; i<stripe.slots; i++) {
+					long record = this.recordAt(stripe, i);
+					if (record == 0 || this.isTombstone(record))
+						continue;
+					ByteBuffer slab = this.slabs.slab(record);
+					int at = SlabAllocator.offset(record);
+					byte[] key = new byte[slab.getInt(at)];
+					byte[] value = new byte[slab.getInt(at + 4)];
+					slab.get(at + HEADER_BYTES, key);
+					slab.get(at + HEADER_BYTES + key.length, value);
+					entries.add(new byte[][] { key, value });
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Drops every key of a partition, freeing their records and index tables
+	 */
+	public void dropPartition(int partition) {
+		for (int s=0; s<STRIPES; s++) {
+			Stripe stripe = this.stripes[partition * STRIPES + s];
+			stripe.lock.lock();
+			try {
+				for (int i=0; i<stripe.slots; i++) {
+					long record = this.recordAt(stripe, i);
+					if (record != 0)
+						this.slabs.free(record);
+				}
+				if (stripe.table != 0)
+					this.slabs.free(stripe.table);
+				stripe.table = 0;
+				stripe.slots = 0;
+				stripe.size = 0;
+				stripe.tombstones = 0;
+				stripe.bytes = 0;
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Number of keys in one partition
+	 */
+	public int partitionSize(int partition) {
+		int size = 0;
+		for (int s=0; s<STRIPES; s++)
+			size += this.stripes[partition * STRIPES + s].size;
+		return size;
+	}
+
+	/**
+	 * Number of keys - exact only while nothing is stored
+	 */
+	public long size() {
+		long size = 0;
+		for (Stripe stripe : this.stripes)
+			size += stripe.size;
+		return size;
+	}
+
+	/**
+	 * Number of tombstones kept for deleted keys
+	 */
+	public long tombstones() {
+		long tombstones = 0;
+		for (Stripe stripe : this.stripes)
+			tombstones += stripe.tombstones;
+		return tombstones;
+	}
+
+	/**
+	 * Bytes of all keys and values
+	 */
+	public long bytes() {
+		long bytes = 0;
+		for (Stripe stripe : this.stripes)
+			bytes += stripe.bytes;
+		return bytes;
+	}
+
+	public int partitionCount() {
+		return this.partitionCount;
+	}
+
+}
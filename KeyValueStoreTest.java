@@ -0,0 +1,155 @@
+/**
+ * KeyValueStoreTest.java
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips, replacement, tombstones and partitions of a KeyValueStore.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class KeyValueStoreTest {
+
+	private static KeyValueStore store() {
+		return new KeyValueStore(4, value -> Math.floorMod(value, 4), new SlabAllocator(1 << 16, 1L << 26));
+	}
+
+	private static byte[] key(int i) {
+		return ("key-" + i).getBytes();
+	}
+
+	private static byte[] value(int i) {
+		byte[] value = new byte[i % 3000];
+		new Random(i).nextBytes(value);
+		return value;
+	}
+
+	private static boolean put(KeyValueStore store, byte[] key, byte[] value, boolean replace) {
+		return store.put(KeyValueStore.hash(key, 0, key.length), key, 0, key.length, value, 0, value.length, replace);
+	}
+
+	private static byte[] get(KeyValueStore store, byte[] key) {
+		return store.get(KeyValueStore.hash(key, 0, key.length), key, 0, key.length);
+	}
+
+	private static boolean delete(KeyValueStore store, byte[] key) {
+		return store.delete(KeyValueStore.hash(key, 0, key.length), key, 0, key.length);
+	}
+
+	@Test
+	void valuesRoundTrip() {
+		KeyValueStore store = store();
+		long bytes = 0;
+		for (int i=0; i<5_000; i++) {
+			assertTrue(put(store, key(i), value(i), true));
+			bytes += key(i).length + value(i).length;
+		}
+		assertEquals(5_000, store.size());
+		assertEquals(bytes, store.bytes());
+		for (int i=0; i<5_000; i++)
+			assertArrayEquals(value(i), get(store, key(i)));
+		assertNull(get(store, key(5_000)));
+	}
+
+	@Test
+	void keysAreComparedByBytes() {
+		KeyValueStore store = store();
+		byte[] buffer = "xxkey-1yy".getBytes();
+		long hash = KeyValueStore.hash(buffer, 2, 5);
+		assertEquals(KeyValueStore.hash(key(1), 0, 5), hash);
+		assertTrue(store.put(hash, buffer, 2, 5, buffer, 7, 2, true));
+		assertArrayEquals("yy".getBytes(), get(store, key(1)));
+	}
+
+	@Test
+	void replaceOnlyWhenAsked() {
+		KeyValueStore store = store();
+		put(store, key(1), value(10), true);
+		put(store, key(1), value(20), false);
+		assertArrayEquals(value(10), get(store, key(1)));
+		put(store, key(1), value(30), true);
+		assertArrayEquals(value(30), get(store, key(1)));
+		assertEquals(1, store.size());
+		assertEquals(key(1).length + value(30).length, store.bytes());
+	}
+
+	@Test
+	void deleteFreesTheRecord() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 1L << 26);
+		KeyValueStore store = new KeyValueStore(4, value -> Math.floorMod(value, 4), slabs);
+		put(store, key(1), value(2000), true);
+		long used = slabs.used();
+		assertTrue(delete(store, key(1)));
+		assertFalse(delete(store, key(1)));
+		assertNull(get(store, key(1)));
+		assertEquals(0, store.size());
+		assertEquals(0, store.bytes());
+		assertTrue(slabs.used() < used - 1000);
+	}
+
+	@Test
+	void tombstoneKeepsOutMovedCopies() {
+		KeyValueStore store = store();
+		put(store, key(1), value(1), true);
+		delete(store, key(1));
+		// a key deleted before its copy arrives stays deleted too
+		delete(store, key(2));
+		assertEquals(2, store.tombstones());
+		put(store, key(1), value(1), false);
+		put(store, key(2), value(2), false);
+		assertNull(get(store, key(1)));
+		assertNull(get(store, key(2)));
+		assertEquals(0, store.size());
+		// a client write after the delete does replace the tombstone
+		put(store, key(1), value(3), true);
+		assertArrayEquals(value(3), get(store, key(1)));
+		assertEquals(1, store.size());
+		assertEquals(1, store.tombstones());
+	}
+
+	@Test
+	void entriesAndDropPartition() {
+		KeyValueStore store = store();
+		for (int i=0; i<2_000; i++)
+			put(store, key(i), value(i), true);
+		delete(store, key(0));
+		int total = 0;
+		for (int p=0; p<store.partitionCount(); p++) {
+			List<byte[][]> entries = store.entries(p);
+			assertEquals(store.partitionSize(p), entries.size());
+			for (byte[][] entry : entries) {
+				assertEquals(p, store.partitionOf(KeyValueStore.hash(entry[0], 0, entry[0].length)));
+				int i = Integer.parseInt(new String(entry[0]).substring(4));
+				assertTrue(Arrays.equals(value(i), entry[1]));
+			}
+			total += entries.size();
+		}
+		assertEquals(1_999, total);
+		int dropped = store.partitionSize(3);
+		store.dropPartition(3);
+		assertEquals(0, store.partitionSize(3));
+		assertEquals(1_999 - dropped, store.size());
+	}
+
+	@Test
+	void putFailsWhenMemoryIsUsedUp() {
+		KeyValueStore store = new KeyValueStore(1, value -> 0, new SlabAllocator(1 << 16, 4L << 16));
+		byte[] big = new byte[40_000];
+		int stored = 0;
+		for (int i=0; i<10; i++) {
+			if (put(store, key(i), big, true))
+				stored++;
+		}
+		assertTrue(stored > 0 && stored < 10);
+		assertFalse(put(store, key(99), new byte[1 << 16], true));
+		assertEquals(stored, store.size());
+	}
+
+}
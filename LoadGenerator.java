@@ -0,0 +1,260 @@
+/**
+ * LoadGenerator.java
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of stores and lookups against the Chord DHT and reports throughput and
+ * latency percentiles. In closed loop every thread issues its next request as soon as the
+ * last one is answered; in open loop requests are issued at a fixed rate whether or not
+ * earlier ones were answered, and latency counts from when a request was due, so a
+ * stalled DHT shows up as the queueing delay clients would really see.
+ *
+ * By default it starts an in-process cluster on loopback and can churn it, taking a node
+ * offline and bringing it back online at a fixed interval. Settings:
+ *
+ *   -Dload.mode=closed|open   -Dload.threads=8 (closed loop)   -Dload.rate=5000 (open loop, per second)
+ *   -Dload.duration=30 (s)    -Dload.warmup=5 (s)     -Dload.storeRatio=0.5
+ *   -Dload.keys=1000000       -Dload.churn=0 (s between churn events, 0 for none)
+ *   -Dload.hotKeys=0 (values that take -Dload.hotShare=0.5 of the requests, 0 for uniform load)
+ *   -Dload.crash=false (true to have churned nodes fail rather than go offline)
+ *   -Dload.join=0 (s between new nodes joining the ring, 0 for none)
+ *   -Dload.cluster=true (false to use the SuperNode at -Ddht.supernode.host/port)
+ *   -Dload.nodes=4            -Dload.dir=loadtest
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class LoadGenerator {
+
+	private static String MODE = System.getProperty("load.mode", "closed");
+	private static int THREADS = Integer.getInteger("load.threads", 8);
+	private static int RATE = Integer.getInteger("load.rate", 5000);
+	private static int DURATION = Integer.getInteger("load.duration", 30);
+	private static int WARMUP = Integer.getInteger("load.warmup", 5);
+	private static double STORE_RATIO = Double.parseDouble(System.getProperty("load.storeRatio", "0.5"));
+	private static int KEYS = Integer.getInteger("load.keys", 1_000_000);
+	// a few values drawing a share of all requests, as popular keys do
+	private static int HOT_KEYS = Integer.getInteger("load.hotKeys", 0);
+	private static double HOT_SHARE = Double.parseDouble(System.getProperty("load.hotShare", "0.5"));
+	private static int CHURN = Integer.getInteger("load.churn", 0);
+	// churned nodes fail instead of going offline cleanly
+	private static boolean CRASH = Boolean.getBoolean("load.crash");
+	// adds a node to the running ring this often
+	private static int JOIN = Integer.getInteger("load.join", 0);
+	private static boolean IN_PROCESS = !"false".equals(System.getProperty("load.cluster"));
+	private static int NODES = Integer.getInteger("load.nodes", 4);
+	private static String DIRECTORY = System.getProperty("load.dir", "loadtest");
+
+	private DHTClient client;
+	private Cluster cluster;
+	private Histogram storeLatency = new Histogram();
+	private Histogram getLatency = new Histogram();
+	private AtomicLong errors = new AtomicLong();
+	private volatile boolean running = true;
+
+	public LoadGenerator(DHTClient client, Cluster cluster) {
+		this.client = client;
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Issues one request and records its latency from the time it was due once it is
+	 * answered or has failed
+	 */
+	private CompletableFuture<DHTClient.Ack> request(long due) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int data = HOT_KEYS > 0 && random.nextDouble() < HOT_SHARE ? random.nextInt(HOT_KEYS) : random.nextInt(KEYS);
+		boolean store = random.nextDouble() < STORE_RATIO;
+		CompletableFuture<DHTClient.Ack> reply = store ? this.client.store(data) : this.client.get(data);
+		return reply.whenComplete((ack, failure) -> {
+			long latency = (System.nanoTime() - due) / 1000;
+			if (failure != null)
+				this.errors.incrementAndGet();
+			(store ? this.storeLatency : this.getLatency).record(latency);
+		});
+	}
+
+	/**
+	 * Every thread sends its next request once the last one is answered
+	 */
+	private void closedLoop(long end) throws InterruptedException {
+		List<Thread> threads = new ArrayList<>();
+		for (int t=0; t<THREADS; t++) {
+			Thread thread = new Thread(() -> {
+				while (this.running && System.nanoTime() < end) {
+					try {
+						this.request(System.nanoTime()).join();
+					} catch (CompletionException e) {
+						// counted as an error
+					}
+				}
+			}, "load-" + t);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+	}
+
+	/**
+	 * Requests are sent at a fixed rate without waiting for earlier ones to be answered -
+	 * they are all outstanding on the client's connections at once
+	 */
+	private void openLoop(long end) throws InterruptedException {
+		long interval = 1_000_000_000L / RATE;
+		long due = System.nanoTime();
+		List<CompletableFuture<DHTClient.Ack>> outstanding = new ArrayList<>();
+		while (this.running && due < end) {
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			outstanding.add(this.request(due));
+			outstanding.removeIf(CompletableFuture::isDone);
+			due += interval;
+		}
+		try {
+			CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+		} catch (ExecutionException | TimeoutException e) {
+			// failed requests are counted as errors
+		}
+	}
+
+	/**
+	 * Takes a random online node offline and brings it back online after half the churn
+	 * interval, over and over
+	 */
+	private void churn() {
+		Random random = new Random();
+		while (this.running) {
+			this.pause(CHURN * 500L);
+			List<Integer> ids = this.cluster.nodeIds();
+			int nodeId = ids.get(random.nextInt(ids.size()));
+			try {
+				long start = System.nanoTime();
+				boolean stopped = CRASH ? this.cluster.crash(nodeId) : this.cluster.offline(nodeId);
+				System.out.printf("churn: node %d %s in %.0f ms%n", nodeId,
+					stopped ? (CRASH ? "crashed" : "offline") : "did not go offline",
+					(System.nanoTime() - start) / 1e6);
+				this.pause(CHURN * 500L);
+				if (!this.running)
+					break;
+				start = System.nanoTime();
+				this.cluster.online(nodeId);
+				System.out.printf("churn: node %d back online in %.0f ms%n", nodeId, (System.nanoTime() - start) / 1e6);
+			} catch (IOException e) {
+				System.out.println("churn: could not cycle node " + nodeId);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Adds a new node to the ring at every join interval, to see how the DHT takes on
+	 * capacity under load
+	 */
+	private void grow() {
+		while (this.running) {
+			this.pause(JOIN * 1000L);
+			if (!this.running)
+				break;
+			try {
+				long start = System.nanoTime();
+				int nodeId = this.cluster.join();
+				System.out.printf("join: node %d online in %.0f ms%n", nodeId, (System.nanoTime() - start) / 1e6);
+			} catch (IOException e) {
+				System.out.println("join: " + e.getMessage());
+			}
+		}
+	}
+
+	private void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the warmup and then the measured load, and prints the results
+	 */
+	public void run() throws InterruptedException {
+		Thread churner = null;
+		if (CHURN > 0 && this.cluster != null) {
+			churner = new Thread(this::churn, "churn");
+			churner.setDaemon(true);
+			churner.start();
+		}
+		if (JOIN > 0 && this.cluster != null) {
+			Thread grower = new Thread(this::grow, "join");
+			grower.setDaemon(true);
+			grower.start();
+		}
+		System.out.println("Warming up for " + WARMUP + " s");
+		this.load(WARMUP);
+		this.storeLatency.reset();
+		this.getLatency.reset();
+		this.errors.set(0);
+		NearCache<Object, DHTClient.Ack> nearCache = this.client.nearCache();
+		long hits = nearCache.hits();
+		long misses = nearCache.misses();
+		long busy = this.client.busyReplies();
+		System.out.println("Measuring " + MODE + " loop load for " + DURATION + " s");
+		long start = System.nanoTime();
+		this.load(DURATION);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		this.running = false;
+		long requests = this.storeLatency.count() + this.getLatency.count();
+		System.out.printf("%d requests in %.1f s - %.0f requests/s, %d errors%n", requests, seconds,
+			requests / seconds, this.errors.get());
+		System.out.printf("%-6s %10s %10s %10s %10s %10s %10s%n", "op", "count", "mean us", "p50 us", "p99 us",
+			"p999 us", "max us");
+		report("store", this.storeLatency);
+		report("get", this.getLatency);
+		hits = nearCache.hits() - hits;
+		long lookups = hits + nearCache.misses() - misses;
+		System.out.printf("near cache: %d of %d lookups answered without asking a node (%.1f%%)%n", hits, lookups,
+			lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+		System.out.printf("busy replies: %d, requests in flight allowed: %d%n", this.client.busyReplies() - busy,
+			this.client.inFlightLimit());
+	}
+
+	private void load(int seconds) throws InterruptedException {
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		if (MODE.equals("open"))
+			this.openLoop(end);
+		else
+			this.closedLoop(end);
+	}
+
+	private static void report(String operation, Histogram latency) {
+		System.out.printf("%-6s %10d %10.0f %10d %10d %10d %10d%n", operation, latency.count(), latency.mean(),
+			latency.percentile(0.5), latency.percentile(0.99), latency.percentile(0.999), latency.max());
+	}
+
+	/**
+	 * Main method of the LoadGenerator class - starts a cluster unless told to use a
+	 * running one, and runs the load against it
+	 */
+	public static void main(String[] args) throws Exception {
+		Cluster cluster = null;
+		if (IN_PROCESS) {
+			cluster = new Cluster(NODES, new File(DIRECTORY), Integer.getInteger("dht.supernode.port", 5000));
+			cluster.start();
+			System.out.println("Started " + NODES + " nodes in " + new File(DIRECTORY).getAbsolutePath());
+		}
+		DHTClient client = new DHTClient();
+		new LoadGenerator(client, cluster).run();
+		client.close();
+		if (cluster != null)
+			cluster.stop();
+		System.exit(0);
+	}
+
+}
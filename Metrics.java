@@ -0,0 +1,172 @@
+/**
+ * Metrics.java
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Counters, gauges and per command latency histograms of a SuperNode or DHT node. Updating
+ * a counter or recording a latency is a few uncontended atomic adds, cheap enough for every
+ * request. The metrics are read through the "stats" command and as the attributes of a JMX
+ * MBean.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class Metrics implements DynamicMBean {
+
+	// commands come off the wire - past this many names the rest are counted as "other"
+	private static int MAX_COMMANDS = 64;
+
+	private Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+	private Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+	// latency in microseconds of each command type
+	private Map<String, Histogram> latencies = new ConcurrentSkipListMap<>();
+	private ObjectName registeredAs;
+
+	/**
+	 * Adds to a counter
+	 */
+	public void add(String name, long amount) {
+		LongAdder counter = this.counters.get(name);
+		if (counter == null)
+			counter = this.counters.computeIfAbsent(name, n -> new LongAdder());
+		counter.add(amount);
+	}
+
+	public void increment(String name) {
+		this.add(name, 1);
+	}
+
+	/**
+	 * Publishes a value that is read whenever the metrics are
+	 */
+	public void gauge(String name, LongSupplier value) {
+		this.gauges.put(name, value);
+	}
+
+	/**
+	 * Records the latency of a command that started at the given System.nanoTime()
+	 */
+	public void record(String command, long start) {
+		long micros = (System.nanoTime() - start) / 1000;
+		Histogram latency = this.latencies.get(command);
+		if (latency == null) {
+			if (this.latencies.size() >= MAX_COMMANDS)
+				command = "other";
+			latency = this.latencies.computeIfAbsent(command, c -> new Histogram());
+		}
+		latency.record(micros);
+	}
+
+	/**
+	 * Current value of every metric, by name - each command has <command>.count,
+	 * .mean_us, .p50_us, .p99_us, .p999_us and .max_us
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> values = new LinkedHashMap<>();
+		for (Map.Entry<String, LongAdder> counter : this.counters.entrySet())
+			values.put(counter.getKey(), counter.getValue().sum());
+		for (Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet())
+			values.put(gauge.getKey(), gauge.getValue().getAsLong());
+		for (Map.Entry<String, Histogram> entry : this.latencies.entrySet()) {
+			String command = entry.getKey();
+			Histogram latency = entry.getValue();
+			values.put(command + ".count", latency.count());
+			values.put(command + ".mean_us", Math.round(latency.mean()));
+			values.put(command + ".p50_us", latency.percentile(0.5));
+			values.put(command + ".p99_us", latency.percentile(0.99));
+			values.put(command + ".p999_us", latency.percentile(0.999));
+			values.put(command + ".max_us", latency.max());
+		}
+		return values;
+	}
+
+	/**
+	 * Every metric as "<name>=<value>" separated by spaces
+	 */
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Number> value : this.snapshot().entrySet()) {
+			if (text.length() > 0)
+				text.append(' ');
+			text.append(value.getKey()).append('=').append(value.getValue());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Exposes the metrics as an MBean named e.g. "dht:type=SuperNode" - failing to do so
+	 * only costs the JMX view
+	 */
+	public void register(String name) {
+		try {
+			ObjectName objectName = new ObjectName(name);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			this.registeredAs = objectName;
+		} catch (JMException e) {
+			System.out.println("Could not register metrics as " + name);
+		}
+	}
+
+	public void unregister() {
+		if (this.registeredAs == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredAs);
+		} catch (JMException e) {
+			// already gone
+		}
+		this.registeredAs = null;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = this.snapshot().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value.longValue();
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> values = this.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Number value = values.get(attribute);
+			if (value != null)
+				list.add(new Attribute(attribute, value.longValue()));
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	/**
+	 * One read only long attribute per metric - the set grows as new commands are seen
+	 */
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String name : this.snapshot().keySet())
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		return new MBeanInfo(Metrics.class.getName(), "Chord DHT metrics",
+			attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+
+}
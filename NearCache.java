@@ -0,0 +1,99 @@
+/**
+ * NearCache.java
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Answers a client keeps for the hot items nodes tell it about, each for as long as the
+ * node said it may. It holds capacity answers at most, evicting the least recently used
+ * one to make room, and counts its hits and misses - every hit is a request the nodes
+ * did not have to answer.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class NearCache<K, V> {
+
+	/**
+	 * A cached answer and when it expires
+	 */
+	private static class Entry<V> {
+		V value;
+		long expires;
+
+		Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private int capacity;
+	private LinkedHashMap<K, Entry<V>> entries;
+	private long hits = 0;
+	private long misses = 0;
+
+	public NearCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return this.size() > NearCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * The answer cached for a key, null if there is none or it expired
+	 */
+	public synchronized V get(K key) {
+		if (this.capacity == 0)
+			return null;
+		Entry<V> entry = this.entries.get(key);
+		if (entry != null && System.nanoTime() - entry.expires >= 0) {
+			this.entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Caches an answer for ttl milliseconds
+	 */
+	public synchronized void put(K key, V value, long ttlMillis) {
+		if (this.capacity > 0)
+			this.entries.put(key, new Entry<>(value, System.nanoTime() + ttlMillis * 1_000_000L));
+	}
+
+	/**
+	 * Forgets the answer for a key - this client just wrote it
+	 */
+	public synchronized void invalidate(K key) {
+		this.entries.remove(key);
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public synchronized long hits() {
+		return this.hits;
+	}
+
+	public synchronized long misses() {
+		return this.misses;
+	}
+
+	public String toString() {
+		long hits = this.hits();
+		long lookups = hits + this.misses();
+		return String.format("%d of %d lookups answered from the near cache (%.1f%%), %d entries", hits, lookups,
+			lookups == 0 ? 0.0 : 100.0 * hits / lookups, this.size());
+	}
+
+}
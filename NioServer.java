@@ -0,0 +1,472 @@
+/**
+ * NioServer.java
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking server core shared by the SuperNode and the DHT node listeners. A single
+ * selector thread accepts connections and decodes newline framed commands and binary
+ * frames out of one reusable direct buffer; the commands of each connection are handed in
+ * order to a bounded pool of worker threads, and replies are written back on the same
+ * connection. A binary frame is told apart from a text command by its first byte.
+ *
+ * The queues in between are bounded. Once -Ddht.maxQueued commands (4096 by default) wait
+ * for a worker, client requests that wait for a reply are answered busy right away rather
+ * than queued, for the client to send them again later; and a connection with
+ * -Ddht.connectionQueue commands (1024) waiting, or replies not yet written to it, is not
+ * read from until half of them are gone, so a peer streaming writes that must not be
+ * turned away, or not reading its replies, is held back by TCP flow control instead.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class NioServer implements Runnable {
+
+	private static int READ_BUFFER_SIZE = 64 * 1024;
+	private static int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+	private static int MAX_QUEUED = Integer.getInteger("dht.maxQueued", 4096);
+	private static int CONNECTION_QUEUE = Math.max(2, Integer.getInteger("dht.connectionQueue", 1024));
+
+	/**
+	 * Command dispatch plugged into the server - returns the reply to send back, if any,
+	 * or answers later through the responder
+	 */
+	interface Handler {
+		String handle(String message, InetAddress from, Responder later);
+	}
+
+	/**
+	 * Binary frame dispatch plugged into the server - fills in the reply frame and
+	 * returns true if there is one to send back, or answers later through the responder
+	 */
+	interface FrameHandler {
+		boolean handle(Frame request, Frame reply, Responder later);
+	}
+
+	/**
+	 * Sends the reply to a request once a handler has it, from any thread - so a handler
+	 * waiting on other nodes does not hold a worker meanwhile. Text commands are answered
+	 * with the text form of the frame.
+	 */
+	interface Responder {
+		void reply(Frame reply);
+	}
+
+	private int port;
+	private Handler handler;
+	private FrameHandler frameHandler;
+	private ExecutorService workers;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private volatile boolean running = true;
+	// connections that have replies waiting to be written by the selector thread
+	private Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+	// decoded frames are recycled once handled
+	private Queue<Frame> framePool = new ConcurrentLinkedQueue<>();
+	private ThreadLocal<Frame> replyFrame = ThreadLocal.withInitial(Frame::new);
+	// commands decoded but not handled yet, over all connections
+	private AtomicInteger queued = new AtomicInteger();
+	// requests turned away with a busy reply
+	private AtomicLong busyReplies = new AtomicLong();
+	// busy replies are encoded on the selector thread only
+	private Frame busyFrame = new Frame();
+
+	/**
+	 * State of one client connection
+	 */
+	private class Connection implements Runnable, Responder {
+		private SocketChannel channel;
+		private InetAddress address;
+		private byte[] line = new byte[256];
+		private int lineLength = 0;
+		// true while the bytes being collected belong to a binary frame
+		private boolean inFrame = false;
+		private Queue<Object> inbox = new ConcurrentLinkedQueue<>();
+		// commands in the inbox and replies in the outbox, and whether reading is paused
+		// until fewer of them are
+		private AtomicInteger waiting = new AtomicInteger();
+		private volatile boolean paused = false;
+		private Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+		private AtomicInteger unsent = new AtomicInteger();
+		private AtomicBoolean scheduled = new AtomicBoolean(false);
+		private Responder textResponder = reply -> this.reply(reply.toText());
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.address = channel.socket().getInetAddress();
+		}
+
+		/**
+		 * Splits the bytes just read into lines and frames - runs on the selector thread only
+		 */
+		boolean decode(ByteBuffer buffer) {
+			while (buffer.hasRemaining()) {
+				byte b = buffer.get();
+				if (this.lineLength == 0 && b == Frame.MAGIC)
+					this.inFrame = true;
+				if (this.inFrame) {
+					if (!this.append(b))
+						return false;
+					if (this.lineLength >= Frame.headerSize()) {
+						int length = Frame.bodyLength(this.line, 0);
+						if (length < 0 || length > MAX_LINE_LENGTH)
+							return false;
+						if (this.lineLength == Frame.headerSize() + length)
+							this.completeFrame();
+					}
+					continue;
+				}
+				if (b == '\n') {
+					int length = this.lineLength;
+					if (length > 0 && this.line[length - 1] == '\r')
+						length--;
+					this.enqueue(new String(this.line, 0, length, StandardCharsets.UTF_8));
+					this.lineLength = 0;
+					continue;
+				}
+				if (!this.append(b))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean append(byte b) {
+			if (this.lineLength == this.line.length) {
+				if (this.line.length >= MAX_LINE_LENGTH + Frame.headerSize())
+					return false;
+				this.line = Arrays.copyOf(this.line, this.line.length * 2);
+			}
+			this.line[this.lineLength++] = b;
+			return true;
+		}
+
+		/**
+		 * Decodes the collected frame into a recycled frame object - a frame whose tag does
+		 * not match is disregarded like a text command without the secret key, and a client
+		 * request is answered busy while too many commands wait
+		 */
+		private void completeFrame() {
+			Frame frame = framePool.poll();
+			if (frame == null)
+				frame = new Frame();
+			if (frameHandler == null || !frame.decode(this.line, 0)) {
+				framePool.add(frame);
+			} else if (queued.get() >= MAX_QUEUED && frame.isSheddable()) {
+				this.busy(frame.requestId);
+				framePool.add(frame);
+			} else {
+				this.enqueue(frame);
+			}
+			this.lineLength = 0;
+			this.inFrame = false;
+		}
+
+		private void enqueue(Object command) {
+			this.inbox.add(command);
+			this.waiting.incrementAndGet();
+			queued.incrementAndGet();
+		}
+
+		/**
+		 * Answers a request busy without handling it - runs on the selector thread only
+		 */
+		private void busy(long requestId) {
+			busyFrame.reset(Frame.BUSY, requestId);
+			ByteBuffer buffer = ByteBuffer.allocate(busyFrame.maxEncodedSize());
+			busyFrame.encode(buffer);
+			buffer.flip();
+			this.queue(buffer);
+			busyReplies.incrementAndGet();
+		}
+
+		/**
+		 * Commands waiting for a worker and replies waiting to be written
+		 */
+		private int backlog() {
+			return this.waiting.get() + this.unsent.get();
+		}
+
+		/**
+		 * Stops reading from the connection while too many of its commands or replies wait,
+		 * until half of them are handled or written - runs on the selector thread only
+		 */
+		void pauseIfFull(SelectionKey key) {
+			if (this.backlog() < CONNECTION_QUEUE)
+				return;
+			this.paused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			// the worker may have drained them before it could see the pause
+			if (this.backlog() <= CONNECTION_QUEUE / 2)
+				this.resume();
+		}
+
+		/**
+		 * Has the selector thread read from the connection again
+		 */
+		private void resume() {
+			this.paused = false;
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Hands queued commands to a worker unless one is already draining them
+		 */
+		void schedule() {
+			if (!this.inbox.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+				try {
+					workers.execute(this);
+				} catch (RejectedExecutionException e) {
+					// the server is closing - whatever is left goes unanswered
+				}
+			}
+		}
+
+		/**
+		 * Handles the queued commands in the order they arrived - runs on a worker
+		 */
+		public void run() {
+			Object next;
+			while ((next = this.inbox.poll()) != null) {
+				queued.decrementAndGet();
+				this.waiting.decrementAndGet();
+				if (this.paused && this.backlog() <= CONNECTION_QUEUE / 2)
+					this.resume();
+				if (next instanceof Frame) {
+					this.handleFrame((Frame) next);
+					continue;
+				}
+				String message = (String) next;
+				String reply = null;
+				try {
+					reply = handler.handle(message, this.address, this.textResponder);
+				} catch (Exception e) {
+					System.out.println("Could not handle message: " + message);
+					e.printStackTrace();
+				}
+				if (reply != null)
+					this.reply(reply);
+			}
+			this.scheduled.set(false);
+			// a command may have arrived after the last poll
+			this.schedule();
+		}
+
+		private void handleFrame(Frame request) {
+			Frame reply = replyFrame.get();
+			try {
+				if (frameHandler.handle(request, reply, this))
+					this.reply(reply);
+			} catch (Exception e) {
+				System.out.println("Could not handle frame: " + request.toText());
+				e.printStackTrace();
+			}
+			framePool.add(request);
+		}
+
+		/**
+		 * Queues a reply and wakes the selector thread to write it
+		 */
+		void reply(String reply) {
+			this.queue(ByteBuffer.wrap((reply + "\n").getBytes(StandardCharsets.UTF_8)));
+		}
+
+		public void reply(Frame reply) {
+			ByteBuffer buffer = ByteBuffer.allocate(reply.maxEncodedSize());
+			reply.encode(buffer);
+			buffer.flip();
+			this.queue(buffer);
+		}
+
+		private void queue(ByteBuffer buffer) {
+			this.unsent.incrementAndGet();
+			this.outbox.add(buffer);
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Writes as much of the queued replies as the socket accepts, and reads on unless
+		 * reading is paused - runs on the selector thread only
+		 */
+		void flush(SelectionKey key) throws IOException {
+			ByteBuffer buffer;
+			int write = 0;
+			while ((buffer = this.outbox.peek()) != null) {
+				this.channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					write = SelectionKey.OP_WRITE;
+					break;
+				}
+				this.outbox.poll();
+				this.unsent.decrementAndGet();
+			}
+			// the peer read enough of its replies for the connection to be read again
+			if (this.paused && this.backlog() <= CONNECTION_QUEUE / 2)
+				this.paused = false;
+			key.interestOps((this.paused ? 0 : SelectionKey.OP_READ) | write);
+		}
+	}
+
+	/**
+	 * Constructor - binds the port right away so peers can connect as soon as it returns,
+	 * connections are served once the server thread is started
+	 */
+	public NioServer(int port, Handler handler, int workerThreads) throws IOException {
+		this(port, handler, null, workerThreads);
+	}
+
+	/**
+	 * Constructor for a server that also takes binary frames
+	 */
+	public NioServer(int port, Handler handler, FrameHandler frameHandler, int workerThreads) throws IOException {
+		this.port = port;
+		this.handler = handler;
+		this.frameHandler = frameHandler;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		this.server.socket().setReuseAddress(true);
+		this.server.bind(new InetSocketAddress(port), 1024);
+		this.server.configureBlocking(false);
+		this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+		this.workers = Executors.newFixedThreadPool(workerThreads);
+	}
+
+	/**
+	 * Selector loop - accepts connections, reads commands and writes replies
+	 */
+	public void run() {
+		ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		try (ServerSocketChannel server = this.server) {
+			while (this.running) {
+				this.selector.select();
+				this.registerWrites();
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							this.accept(server);
+						else {
+							if (key.isReadable())
+								this.read(key, readBuffer);
+							if (key.isValid() && key.isWritable())
+								((Connection) key.attachment()).flush(key);
+						}
+					} catch (IOException | CancelledKeyException e) {
+						this.close(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Server on port " + this.port + " stopped");
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : this.selector.keys())
+				this.close(key);
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	/**
+	 * Number of commands received and waiting to be handled
+	 */
+	public int queuedCommands() {
+		return this.queued.get();
+	}
+
+	/**
+	 * Number of requests answered busy so far
+	 */
+	public long busyReplies() {
+		return this.busyReplies.get();
+	}
+
+	/**
+	 * Stops the server - the selector loop closes the port and every connection on its
+	 * way out, and workers finish the commands they already took
+	 */
+	public void close() {
+		this.running = false;
+		this.selector.wakeup();
+		this.workers.shutdown();
+	}
+
+	/**
+	 * Accepts every pending connection
+	 */
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(this.selector, SelectionKey.OP_READ, new Connection(channel));
+		}
+	}
+
+	/**
+	 * Reads available bytes from a connection and schedules the complete commands
+	 */
+	private void read(SelectionKey key, ByteBuffer readBuffer) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		readBuffer.clear();
+		int read = connection.channel.read(readBuffer);
+		if (read == -1) {
+			this.close(key);
+			return;
+		}
+		readBuffer.flip();
+		if (!connection.decode(readBuffer)) {
+			System.out.println("Message too long from " + connection.address + " - closing connection");
+			this.close(key);
+			return;
+		}
+		connection.schedule();
+		connection.pauseIfFull(key);
+	}
+
+	/**
+	 * Flushes the connections workers queued replies for
+	 */
+	private void registerWrites() {
+		Connection connection;
+		while ((connection = this.pendingWrites.poll()) != null) {
+			SelectionKey key = connection.channel.keyFor(this.selector);
+			if (key == null || !key.isValid())
+				continue;
+			try {
+				connection.flush(key);
+			} catch (IOException e) {
+				this.close(key);
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+}
@@ -0,0 +1,387 @@
+/**
+ * PartitionedIntStore.java
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Data held by a DHT node - one primitive int set per partition, where the partition of a
+ * value is given by the placement of the DHT, or is value % partitionCount. A whole
+ * partition can be detached in one step when it is handed off or dropped, without
+ * touching the other partitions.
+ *
+ * Each partition is split into lock stripes by a hash of the value, so concurrent stores
+ * only contend when they hit the same stripe, and moving a partition locks only the
+ * stripes of that partition.
+ *
+ * The stripes are split further into digest leaves, about 2^14 over the whole store. The
+ * digest of a leaf is the sum of a 64 bit hash of each of its values, kept up to date as
+ * values come and go, so it only depends on which values the leaf holds - two nodes holding
+ * the same values of a partition have the same digests, and comparing them finds the leaves
+ * where they differ without sending any values.
+ *
+ * An ordered store is one whose partitions are equal ranges of the values in signed order,
+ * as the ordered placement of the DHT makes them. Its stripes and leaves are the next equal
+ * ranges within each partition instead of hashes, and each stripe is a SortedIntSet, so the
+ * values of a partition can be visited in order, from any value on.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class PartitionedIntStore {
+
+	private static int STRIPE_BITS = 4;
+	private static int STRIPES = 1 << STRIPE_BITS;
+	private static int LEAF_BITS_TOTAL = 14;
+	// keeps digests apart from the positions of the same values on the ring
+	private static long DIGEST_SEED = 0x2545F4914F6CDD1DL;
+
+	private int partitionCount;
+	private IntUnaryOperator partitioner;
+	private boolean ordered;
+	private int partitionBits;
+	// STRIPES sets per partition, stripe s of partition p at index p * STRIPES + s
+	private IntSet[] stripes;
+	private ReentrantLock[] locks;
+	// digest leaves per partition, a power of two of at least STRIPES
+	private int leafBits;
+	// digest of leaf l of partition p at index p * leaves + l, changed under its stripe's lock
+	private long[] digests;
+
+	public PartitionedIntStore(int partitionCount) {
+		this(partitionCount, value -> Math.floorMod(value, partitionCount));
+	}
+
+	/**
+	 * A store whose partitioner maps every value to a partition below partitionCount
+	 */
+	public PartitionedIntStore(int partitionCount, IntUnaryOperator partitioner) {
+		this(partitionCount, partitioner, false);
+	}
+
+	/**
+	 * A store that is ordered if asked to - partitionCount must then be a power of two, and
+	 * the partitioner must map values to partitions by their top bits with the sign flipped
+	 */
+	public PartitionedIntStore(int partitionCount, IntUnaryOperator partitioner, boolean ordered) {
+		this.partitionCount = partitionCount;
+		this.partitioner = partitioner;
+		this.ordered = ordered;
+		this.stripes = new IntSet[partitionCount * STRIPES];
+		this.locks = new ReentrantLock[partitionCount * STRIPES];
+		for (int i=0; i<this.stripes.length; i++) {
+			this.stripes[i] = this.newStripe();
+			this.locks[i] = new ReentrantLock();
+		}
+		this.partitionBits = 32 - Integer.numberOfLeadingZeros(partitionCount - 1);
+		this.leafBits = Math.max(STRIPE_BITS, LEAF_BITS_TOTAL - this.partitionBits);
+		this.digests = new long[partitionCount << this.leafBits];
+	}
+
+	/**
+	 * Partition a value belongs to
+	 */
+	public int partitionOf(int value) {
+		return this.partitioner.applyAsInt(value);
+	}
+
+	private IntSet newStripe() {
+		return this.ordered ? new SortedIntSet() : new IntHashSet();
+	}
+
+	/**
+	 * Bits that pick the stripe and leaf of a value within its partition, from the top - a
+	 * hash of the value, or in an ordered store the bits of the value below its partition
+	 */
+	private int spread(int value) {
+		return this.ordered ? (value ^ Integer.MIN_VALUE) << this.partitionBits : value * 0x9E3779B9;
+	}
+
+	private int stripeOf(int value) {
+		return this.stripeOf(this.partitionOf(value), value);
+	}
+
+	private int stripeOf(int partition, int value) {
+		return partition * STRIPES + (this.spread(value) >>> (32 - STRIPE_BITS));
+	}
+
+	/**
+	 * Digest leaf of a value within its partition - the same bits as its stripe, and more
+	 * of them, so every leaf lies within one stripe
+	 */
+	private int leafOf(int value) {
+		return this.spread(value) >>> (32 - this.leafBits);
+	}
+
+	private static long digestOf(int value) {
+		return Placement.mix(value ^ DIGEST_SEED);
+	}
+
+	public boolean add(int value) {
+		return this.add(value, null);
+	}
+
+	/**
+	 * Adds a value and, if it is new, passes it to whenAdded while still holding its
+	 * stripe - so e.g. logging the value cannot interleave with moving its partition
+	 */
+	public boolean add(int value, IntHashSet.IntVisitor whenAdded) {
+		int partition = this.partitionOf(value);
+		int stripe = this.stripeOf(partition, value);
+		this.locks[stripe].lock();
+		try {
+			if (!this.stripes[stripe].add(value))
+				return false;
+			this.digests[(partition << this.leafBits) + this.leafOf(value)] += digestOf(value);
+			if (whenAdded != null)
+				whenAdded.visit(value);
+			return true;
+		} finally {
+			this.locks[stripe].unlock();
+		}
+	}
+
+	public boolean remove(int value) {
+		int partition = this.partitionOf(value);
+		int stripe = this.stripeOf(partition, value);
+		this.locks[stripe].lock();
+		try {
+			if (!this.stripes[stripe].remove(value))
+				return false;
+			this.digests[(partition << this.leafBits) + this.leafOf(value)] -= digestOf(value);
+			return true;
+		} finally {
+			this.locks[stripe].unlock();
+		}
+	}
+
+	public boolean contains(int value) {
+		int stripe = this.stripeOf(value);
+		this.locks[stripe].lock();
+		try {
+			return this.stripes[stripe].contains(value);
+		} finally {
+			this.locks[stripe].unlock();
+		}
+	}
+
+	/**
+	 * Adds every value of some sets, e.g. to put back a partition whose hand-off failed
+	 */
+	public void addAll(IntSet... sets) {
+		for (IntSet values : sets)
+			values.forEach(this::add);
+	}
+
+	/**
+	 * Number of values in some detached stripes
+	 */
+	public static long size(IntSet... sets) {
+		long size = 0;
+		for (IntSet values : sets)
+			size += values.size();
+		return size;
+	}
+
+	/**
+	 * Locks every stripe of a partition, always in the same order
+	 */
+	public void lockPartition(int partition) {
+		for (int s=0; s<STRIPES; s++)
+			this.locks[partition * STRIPES + s].lock();
+	}
+
+	public void unlockPartition(int partition) {
+		for (int s=STRIPES-1; s>=0; s--)
+			this.locks[partition * STRIPES + s].unlock();
+	}
+
+	/**
+	 * Locks the whole store, e.g. to write a consistent snapshot of it
+	 */
+	public void lockAll() {
+		for (int p=0; p<this.partitionCount; p++)
+			this.lockPartition(p);
+	}
+
+	public void unlockAll() {
+		for (int p=this.partitionCount-1; p>=0; p--)
+			this.unlockPartition(p);
+	}
+
+	/**
+	 * Detaches a whole partition from the store and returns its stripes as they are - the
+	 * stripes are swapped for empty ones, whatever their size, so stores to the partition
+	 * wait only for that, and the values are not copied unless the caller visits them
+	 */
+	public IntSet[] takePartition(int partition) {
+		IntSet[] taken = new IntSet[STRIPES];
+		this.lockPartition(partition);
+		try {
+			for (int s=0; s<STRIPES; s++) {
+				taken[s] = this.stripes[partition * STRIPES + s];
+				this.stripes[partition * STRIPES + s] = this.newStripe();
+			}
+			Arrays.fill(this.digests, partition << this.leafBits, (partition + 1) << this.leafBits, 0);
+		} finally {
+			this.unlockPartition(partition);
+		}
+		return taken;
+	}
+
+	/**
+	 * Detaches every partition, leaving the store empty
+	 */
+	public IntSet[][] takeAll() {
+		IntSet[][] taken = new IntSet[this.partitionCount][];
+		for (int p=0; p<this.partitionCount; p++)
+			taken[p] = this.takePartition(p);
+		return taken;
+	}
+
+	/**
+	 * Visits the values of one partition, holding each stripe while it is visited
+	 */
+	public void forEachInPartition(int partition, IntHashSet.IntVisitor visitor) {
+		for (int s=0; s<STRIPES; s++)
+			this.forEachInStripe(partition * STRIPES + s, visitor);
+	}
+
+	/**
+	 * Visits the values from..to of one partition of an ordered store in order, limit of them
+	 * at most, holding each stripe while it is visited - returns the number visited
+	 */
+	public int forEachInRange(int partition, int from, int to, int limit, IntHashSet.IntVisitor visitor) {
+		int first = this.partitionOf(from) == partition ? this.spread(from) >>> (32 - STRIPE_BITS) : 0;
+		int last = this.partitionOf(to) == partition ? this.spread(to) >>> (32 - STRIPE_BITS) : STRIPES - 1;
+		int visited = 0;
+		for (int s=first; s<=last && visited<limit; s++) {
+			int stripe = partition * STRIPES + s;
+			this.locks[stripe].lock();
+			try {
+				visited += ((SortedIntSet) this.stripes[stripe]).forEachInRange(from, to, limit - visited, visitor);
+			} finally {
+				this.locks[stripe].unlock();
+			}
+		}
+		return visited;
+	}
+
+	public boolean isOrdered() {
+		return this.ordered;
+	}
+
+	/**
+	 * Visits the values of the given digest leaves of one partition, scanning each stripe
+	 * that holds any of them once
+	 */
+	public void forEachInLeaves(int partition, BitSet leaves, IntHashSet.IntVisitor visitor) {
+		int leavesPerStripe = 1 << (this.leafBits - STRIPE_BITS);
+		for (int s=0; s<STRIPES; s++) {
+			int next = leaves.nextSetBit(s * leavesPerStripe);
+			if (next == -1 || next >= (s + 1) * leavesPerStripe)
+				continue;
+			this.forEachInStripe(partition * STRIPES + s, value -> {
+				if (leaves.get(this.leafOf(value)))
+					visitor.visit(value);
+			});
+		}
+	}
+
+	/**
+	 * Number of digest leaves each partition is split into
+	 */
+	public int leaves() {
+		return 1 << this.leafBits;
+	}
+
+	/**
+	 * Digest of a partition - the sum of the digests of its leaves
+	 */
+	public long partitionDigest(int partition) {
+		long digest = 0;
+		for (long leaf : this.leafDigests(partition))
+			digest += leaf;
+		return digest;
+	}
+
+	/**
+	 * Digests of the leaves of a partition, each read under the lock of its stripe
+	 */
+	public long[] leafDigests(int partition) {
+		long[] leaves = new long[this.leaves()];
+		int leavesPerStripe = leaves.length / STRIPES;
+		for (int s=0; s<STRIPES; s++) {
+			this.locks[partition * STRIPES + s].lock();
+			try {
+				System.arraycopy(this.digests, (partition << this.leafBits) + s * leavesPerStripe, leaves,
+					s * leavesPerStripe, leavesPerStripe);
+			} finally {
+				this.locks[partition * STRIPES + s].unlock();
+			}
+		}
+		return leaves;
+	}
+
+	public void forEach(IntHashSet.IntVisitor visitor) {
+		for (int i=0; i<this.stripes.length; i++)
+			this.forEachInStripe(i, visitor);
+	}
+
+	private void forEachInStripe(int stripe, IntHashSet.IntVisitor visitor) {
+		this.locks[stripe].lock();
+		try {
+			this.stripes[stripe].forEach(visitor);
+		} finally {
+			this.locks[stripe].unlock();
+		}
+	}
+
+	/**
+	 * Number of values - exact only while the store is locked
+	 */
+	public int size() {
+		int size = 0;
+		for (IntSet stripe : this.stripes)
+			size += stripe.size();
+		return size;
+	}
+
+	/**
+	 * Number of values in one partition
+	 */
+	public int partitionSize(int partition) {
+		int size = 0;
+		for (int s=0; s<STRIPES; s++)
+			size += this.stripes[partition * STRIPES + s].size();
+		return size;
+	}
+
+	public int partitionCount() {
+		return this.partitionCount;
+	}
+
+	/**
+	 * Bytes held by the arrays of all stripes
+	 */
+	public long footprint() {
+		long bytes = 0;
+		for (IntSet stripe : this.stripes)
+			bytes += stripe.footprint();
+		return bytes;
+	}
+
+	public String toString() {
+		StringBuilder values = new StringBuilder("[");
+		this.forEach(value -> {
+			if (values.length() > 1)
+				values.append(", ");
+			values.append(value);
+		});
+		return values.append("]").toString();
+	}
+
+}
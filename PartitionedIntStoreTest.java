@@ -0,0 +1,165 @@
+/**
+ * PartitionedIntStoreTest.java
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Stripes, detached partitions and digests of a PartitionedIntStore.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class PartitionedIntStoreTest {
+
+	private static int[] randomValues(int count, long seed) {
+		Random random = new Random(seed);
+		int[] values = new int[count];
+		for (int i=0; i<count; i++)
+			values[i] = random.nextInt();
+		return values;
+	}
+
+	@Test
+	void addsRemovesAndCountsPerPartition() {
+		PartitionedIntStore store = new PartitionedIntStore(4);
+		for (int value=-100; value<100; value++)
+			assertTrue(store.add(value));
+		assertFalse(store.add(7));
+		assertEquals(200, store.size());
+		for (int p=0; p<4; p++)
+			assertEquals(50, store.partitionSize(p));
+		assertTrue(store.remove(7));
+		assertFalse(store.remove(7));
+		assertFalse(store.contains(7));
+		assertTrue(store.contains(-100));
+		assertEquals(199, store.size());
+	}
+
+	@Test
+	void takePartitionDetachesOnlyThatPartition() {
+		PartitionedIntStore store = new PartitionedIntStore(4);
+		int[] values = randomValues(10_000, 1);
+		for (int value : values)
+			store.add(value);
+		int before = store.size();
+		int partitionSize = store.partitionSize(2);
+		long otherDigest = store.partitionDigest(1);
+		IntSet[] taken = store.takePartition(2);
+		assertEquals(partitionSize, PartitionedIntStore.size(taken));
+		assertEquals(0, store.partitionSize(2));
+		assertEquals(0, store.partitionDigest(2));
+		assertEquals(before - partitionSize, store.size());
+		assertEquals(otherDigest, store.partitionDigest(1));
+		for (IntSet stripe : taken)
+			stripe.forEach(value -> assertEquals(2, store.partitionOf(value)));
+		// stores to the partition go to the fresh stripes, and putting it back merges them
+		int fresh = 0;
+		while (store.partitionOf(fresh) != 2 || containsValue(taken, fresh))
+			fresh++;
+		assertTrue(store.add(fresh));
+		assertEquals(1, store.partitionSize(2));
+		store.addAll(taken);
+		assertEquals(before + 1, store.size());
+		for (int value : values)
+			assertTrue(store.contains(value));
+	}
+
+	private static boolean containsValue(IntSet[] sets, int value) {
+		for (IntSet set : sets) {
+			if (set.contains(value))
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	void takeAllEmptiesTheStore() {
+		PartitionedIntStore store = new PartitionedIntStore(8);
+		for (int value : randomValues(5_000, 2))
+			store.add(value);
+		int size = store.size();
+		IntSet[][] taken = store.takeAll();
+		long total = 0;
+		for (IntSet[] partition : taken)
+			total += PartitionedIntStore.size(partition);
+		assertEquals(size, total);
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void digestsDependOnlyOnTheValuesHeld() {
+		int[] values = randomValues(20_000, 3);
+		PartitionedIntStore forwards = new PartitionedIntStore(4);
+		PartitionedIntStore backwards = new PartitionedIntStore(4);
+		for (int value : values)
+			forwards.add(value);
+		for (int i=values.length-1; i>=0; i--)
+			backwards.add(values[i]);
+		// values that came and went leave no trace
+		for (int value : randomValues(1_000, 4)) {
+			if (backwards.add(value))
+				backwards.remove(value);
+		}
+		for (int p=0; p<4; p++) {
+			assertArrayEquals(forwards.leafDigests(p), backwards.leafDigests(p));
+			assertEquals(forwards.partitionDigest(p), backwards.partitionDigest(p));
+		}
+	}
+
+	@Test
+	void differingLeavesHoldTheMissingValues() {
+		PartitionedIntStore full = new PartitionedIntStore(4);
+		PartitionedIntStore partial = new PartitionedIntStore(4);
+		int[] values = randomValues(20_000, 5);
+		for (int value : values) {
+			full.add(value);
+			partial.add(value);
+		}
+		int missing = values[123];
+		partial.remove(missing);
+		int partition = full.partitionOf(missing);
+		long[] fullLeaves = full.leafDigests(partition);
+		long[] partialLeaves = partial.leafDigests(partition);
+		BitSet differing = new BitSet();
+		for (int leaf=0; leaf<full.leaves(); leaf++) {
+			if (fullLeaves[leaf] != partialLeaves[leaf])
+				differing.set(leaf);
+		}
+		assertEquals(1, differing.cardinality());
+		List<Integer> found = new ArrayList<>();
+		full.forEachInLeaves(partition, differing, value -> {
+			if (!partial.contains(value))
+				found.add(value);
+		});
+		assertEquals(List.of(missing), found);
+		for (int p=0; p<4; p++) {
+			if (p != partition)
+				assertEquals(full.partitionDigest(p), partial.partitionDigest(p));
+		}
+	}
+
+	@Test
+	void orderedStoreVisitsRangesInOrder() {
+		PartitionedIntStore store = new PartitionedIntStore(4, value -> (value ^ Integer.MIN_VALUE) >>> 30, true);
+		for (int value : randomValues(10_000, 6))
+			store.add(value);
+		// partition 1 is the values from -2^30 up to 0
+		int partition = 1;
+		int from = -(1 << 30);
+		List<Integer> visited = new ArrayList<>();
+		int count = store.forEachInRange(partition, from, Integer.MAX_VALUE, 500, visited::add);
+		assertEquals(500, count);
+		for (int i=1; i<visited.size(); i++)
+			assertTrue(visited.get(i - 1) < visited.get(i));
+		for (int value : visited)
+			assertEquals(partition, store.partitionOf(value));
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Placement.java
+ */
+
+import java.util.*;
+
+/**
+ * Decides where values live. Values are grouped into partitions - the unit data is stored,
+ * moved and replicated in - and each partition belongs to the node holding the first token
+ * at or after the start of the partition on the ring, wrapping around. The replicas of a
+ * partition are that node and the next distinct nodes met walking the tokens on from it.
+ *
+ * -Ddht.placement picks the layout, and must be the same on every process of a DHT:
+ *
+ *   hashed (default) - values are hashed onto a ring of 2^-Ddht.ringBits positions (32 by
+ *     default, up to 64) split into 2^-Ddht.partitionBits equal partitions (10 by default,
+ *     12 at most), and every node holds -Ddht.vnodes tokens (128 by default) hashed from its
+ *     id. Sequential values spread over the whole ring, each node owns many small arcs of it,
+ *     and a node joining or leaving only moves the arcs next to its own tokens - about 1/N
+ *     of the data. More tokens per node spread the data more evenly.
+ *   ordered - the position of a value is the value itself, with the sign flipped so that
+ *     signed order is ring order, on a ring of 2^32 positions split into partitions as
+ *     above, with tokens hashed from node ids as above. Each partition is a range of values
+ *     and the partitions follow each other in value order, so the values between two
+ *     bounds are found on the nodes of the partitions in between - at the price of skewed
+ *     data, e.g. small sequential values, landing on few partitions and nodes.
+ *   chord - the original ring of DHT_SIZE positions, where value v sits at v mod DHT_SIZE,
+ *     every position is a partition and node k holds the single token k.
+ *
+ * An instance is the token ring of one set of nodes, and never changes.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class Placement {
+
+	static final String HASHED = "hashed";
+	static final String CHORD = "chord";
+	static final String ORDERED = "ordered";
+
+	private static int DHT_SIZE = (int)Math.pow(2, 2);
+	private static String MODE = mode(System.getProperty("dht.placement", HASHED));
+	private static int RING_BITS = MODE.equals(CHORD) ? Integer.numberOfTrailingZeros(DHT_SIZE)
+		: MODE.equals(ORDERED) ? 32 : Math.max(1, Math.min(64, Integer.getInteger("dht.ringBits", 32)));
+	private static int PARTITION_BITS = MODE.equals(CHORD) ? RING_BITS
+		: Math.max(0, Math.min(Math.min(RING_BITS, 12), Integer.getInteger("dht.partitionBits", 10)));
+	private static int VNODES = MODE.equals(CHORD) ? 1 : Math.max(1, Integer.getInteger("dht.vnodes", 128));
+	// keeps the tokens of node ids apart from the positions of the same values
+	private static long TOKEN_SEED = 0x5DEECE66DL;
+
+	// tokens in ring order, with the sign bit flipped so that signed order is ring order
+	// even on a 2^64 ring
+	private long[] tokens;
+	// node holding each token
+	private int[] holders;
+	// index of the first token at or after the start of each partition
+	private int[] first;
+	private int nodeCount;
+
+	/**
+	 * Builds the token ring of the given nodes
+	 */
+	Placement(Collection<Integer> nodes) {
+		this.nodeCount = nodes.size();
+		Integer[] order = new Integer[this.nodeCount * VNODES];
+		long[] position = new long[order.length];
+		int[] holder = new int[order.length];
+		int t = 0;
+		for (int node : nodes) {
+			for (int v=0; v<VNODES; v++) {
+				order[t] = t;
+				position[t] = token(node, v) ^ Long.MIN_VALUE;
+				holder[t++] = node;
+			}
+		}
+		// two nodes on the same position are ordered by id, so every process agrees
+		Arrays.sort(order, (a, b) -> position[a] != position[b] ? Long.compare(position[a], position[b])
+			: Integer.compare(holder[a], holder[b]));
+		this.tokens = new long[order.length];
+		this.holders = new int[order.length];
+		for (int i=0; i<order.length; i++) {
+			this.tokens[i] = position[order[i]];
+			this.holders[i] = holder[order[i]];
+		}
+		// partitions start in ring order as well, so one pass finds the first token of each
+		this.first = new int[partitions()];
+		t = 0;
+		for (int p=0; p<this.first.length; p++) {
+			long start = start(p) ^ Long.MIN_VALUE;
+			while (t < this.tokens.length && this.tokens[t] < start)
+				t++;
+			this.first[p] = t == this.tokens.length ? 0 : t;
+		}
+	}
+
+	private static String mode(String name) {
+		return name.equals(CHORD) || name.equals(ORDERED) ? name : HASHED;
+	}
+
+	public static boolean isChord() {
+		return MODE.equals(CHORD);
+	}
+
+	/**
+	 * True if partitions are ranges of values in order, so the DHT can answer range scans
+	 */
+	public static boolean isOrdered() {
+		return MODE.equals(ORDERED);
+	}
+
+	/**
+	 * Number of partitions of the ring
+	 */
+	public static int partitions() {
+		return 1 << PARTITION_BITS;
+	}
+
+	/**
+	 * Position of a value on the ring
+	 */
+	public static long position(int data) {
+		if (isChord())
+			return Math.floorMod(data, DHT_SIZE);
+		if (isOrdered())
+			return (data ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+		return mix((long) data) >>> (64 - RING_BITS);
+	}
+
+	/**
+	 * Partition a value belongs to - the top bits of its position
+	 */
+	public static int partitionOf(int data) {
+		return (int) (position(data) >>> (RING_BITS - PARTITION_BITS));
+	}
+
+	/**
+	 * First position of a partition
+	 */
+	static long start(int partition) {
+		return (long) partition << (RING_BITS - PARTITION_BITS);
+	}
+
+	/**
+	 * Smallest value of a partition of an ordered ring
+	 */
+	public static int firstValue(int partition) {
+		return (int) start(partition) ^ Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Largest value of a partition of an ordered ring
+	 */
+	public static int lastValue(int partition) {
+		return partition == partitions() - 1 ? Integer.MAX_VALUE : firstValue(partition + 1) - 1;
+	}
+
+	/**
+	 * Position of virtual node v of a node - derived from the id alone, so a node keeps its
+	 * tokens when it comes back at another address
+	 */
+	static long token(int nodeId, int v) {
+		if (isChord())
+			return nodeId;
+		return mix((((long) nodeId << 32) | v) ^ TOKEN_SEED) >>> (64 - RING_BITS);
+	}
+
+	/**
+	 * The layout as "<mode>/<ringBits>/<partitionBits>/<vnodes>", sent along with the ring
+	 * so that processes set up differently notice
+	 */
+	public static String describe() {
+		return MODE + "/" + RING_BITS + "/" + PARTITION_BITS + "/" + VNODES;
+	}
+
+	/**
+	 * Finalizer of MurmurHash3 - every bit of the input affects every bit of the output
+	 */
+	static long mix(long x) {
+		x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+		x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return x ^ (x >>> 33);
+	}
+
+	/**
+	 * Node that owns a partition, -1 if there are no nodes
+	 */
+	public int owner(int partition) {
+		return this.nodeCount == 0 ? -1 : this.holders[this.first[partition]];
+	}
+
+	/**
+	 * Replicas of a partition - its owner followed by the next distinct nodes on the ring,
+	 * replicas of them at most
+	 */
+	public List<Integer> replicas(int partition, int replicas) {
+		List<Integer> set = new ArrayList<>();
+		int limit = Math.min(replicas, this.nodeCount);
+		for (int t=this.first[partition]; set.size() < limit; t=(t + 1) % this.tokens.length) {
+			if (!set.contains(this.holders[t]))
+				set.add(this.holders[t]);
+		}
+		return set;
+	}
+
+	/**
+	 * Number of partitions each node owns
+	 */
+	public Map<Integer, Integer> ownedPartitions() {
+		Map<Integer, Integer> owned = new TreeMap<>();
+		for (int p=0; p<this.first.length; p++)
+			owned.merge(this.owner(p), 1, Integer::sum);
+		return owned;
+	}
+
+	public int size() {
+		return this.nodeCount;
+	}
+
+}
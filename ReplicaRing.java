@@ -0,0 +1,193 @@
+/**
+ * ReplicaRing.java
+ */
+
+import java.util.*;
+
+/**
+ * Immutable view of the online ring as published by the SuperNode in
+ * "firefly ring <replicas> <writeAck> <placement> <nodeID>:<ip>:<port> ...", used by nodes and
+ * clients to find the replicas of a value. The replicas of a partition are its owner followed
+ * by the next online nodes on the token ring, as many as the replication factor and at most
+ * every online node - so when a node fails, the next replica is already the owner of its
+ * partitions.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class ReplicaRing {
+
+	// write acknowledgement levels - how many replicas must have a write, the owner included
+	static final String ONE = "one";
+	static final String QUORUM = "quorum";
+	static final String ALL = "all";
+
+	private int replicas;
+	private String writeAck;
+	private Placement placement;
+	// replicas of each partition, owner first
+	private int[][] replicaSets;
+	private Map<Integer, String> ip = new HashMap<>();
+	private Map<Integer, Integer> port = new HashMap<>();
+
+	/**
+	 * Parses a ring out of "firefly ring <replicas> <writeAck> <placement> <nodeID>:<ip>:<port> ..."
+	 */
+	static ReplicaRing parse(String[] messageChunks) {
+		ReplicaRing ring = new ReplicaRing();
+		ring.replicas = Integer.parseInt(messageChunks[2]);
+		ring.writeAck = messageChunks[3];
+		if (!messageChunks[4].equals(Placement.describe()))
+			System.out.println("The DHT places data by " + messageChunks[4] + " but this process by "
+				+ Placement.describe() + " - set the same -Ddht.placement, ringBits, partitionBits and vnodes everywhere");
+		TreeSet<Integer> online = new TreeSet<>();
+		for (int i=5; i<messageChunks.length; i++) {
+			String[] node = messageChunks[i].split(":");
+			int nodeId = Integer.parseInt(node[0]);
+			online.add(nodeId);
+			ring.ip.put(nodeId, node[1]);
+			ring.port.put(nodeId, Integer.parseInt(node[2]));
+		}
+		ring.place(online);
+		return ring;
+	}
+
+	/**
+	 * The same ring with a node taken out - what a node going offline routes by while it
+	 * hands off its data
+	 */
+	ReplicaRing without(int nodeId) {
+		ReplicaRing ring = new ReplicaRing();
+		ring.replicas = this.replicas;
+		ring.writeAck = this.writeAck;
+		ring.ip.putAll(this.ip);
+		ring.port.putAll(this.port);
+		ring.ip.remove(nodeId);
+		ring.port.remove(nodeId);
+		ring.place(new TreeSet<>(ring.ip.keySet()));
+		return ring;
+	}
+
+	private void place(Set<Integer> online) {
+		this.placement = new Placement(online);
+		this.replicaSets = new int[Placement.partitions()][];
+		for (int p=0; p<this.replicaSets.length; p++)
+			this.replicaSets[p] = this.placement.replicas(p, this.replicas).stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Number of replicas, the owner included, that must hold a write before it is
+	 * acknowledged - never more than there are online
+	 */
+	static int acksNeeded(String writeAck, int replicas, int online) {
+		int needed;
+		switch (writeAck) {
+			case ONE:
+				needed = 1;
+				break;
+			case ALL:
+				needed = replicas;
+				break;
+			default:
+				needed = replicas / 2 + 1;
+		}
+		return Math.min(needed, Math.max(1, Math.min(replicas, online)));
+	}
+
+	/**
+	 * Replicas of the partition of the given data, owner first
+	 */
+	public int[] replicasOf(int data) {
+		return this.replicaSets[Placement.partitionOf(data)];
+	}
+
+	/**
+	 * Replicas of a partition, owner first
+	 */
+	public int[] replicasOfPartition(int partition) {
+		return this.replicaSets[partition];
+	}
+
+	/**
+	 * Node that owns the given data, -1 if no node is online
+	 */
+	public int ownerOf(int data) {
+		int[] replicas = this.replicasOf(data);
+		return replicas.length == 0 ? -1 : replicas[0];
+	}
+
+	/**
+	 * True if the node holds a replica of the partition of the given data
+	 */
+	public boolean isReplica(int nodeId, int data) {
+		return this.isPartitionReplica(nodeId, Placement.partitionOf(data));
+	}
+
+	/**
+	 * True if the node holds a replica of the partition
+	 */
+	public boolean isPartitionReplica(int nodeId, int partition) {
+		for (int node : this.replicaSets[partition]) {
+			if (node == nodeId)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Online nodes strictly between two nodes, going round the ring in node id order from
+	 * the first - the most hops a message forwarded from one towards the other can take on
+	 * a chord ring besides the last one
+	 */
+	public int nodesBetween(int from, int to) {
+		if (from == to)
+			return 0;
+		TreeSet<Integer> nodes = new TreeSet<>(this.ip.keySet());
+		if (from < to)
+			return nodes.subSet(from, false, to, false).size();
+		return nodes.tailSet(from, false).size() + nodes.headSet(to, false).size();
+	}
+
+	/**
+	 * True if the node is online in this ring
+	 */
+	public boolean contains(int nodeId) {
+		return this.ip.containsKey(nodeId);
+	}
+
+	public int acksNeeded() {
+		return acksNeeded(this.writeAck, this.replicas, this.ip.size());
+	}
+
+	public int getReplicas() {
+		return this.replicas;
+	}
+
+	public String ip(int nodeId) {
+		return this.ip.get(nodeId);
+	}
+
+	public int port(int nodeId) {
+		return this.port.getOrDefault(nodeId, -1);
+	}
+
+	/**
+	 * Number of online nodes
+	 */
+	public int size() {
+		return this.ip.size();
+	}
+
+	/**
+	 * Online node ids
+	 */
+	public Set<Integer> nodes() {
+		return new TreeSet<>(this.ip.keySet());
+	}
+
+	public String toString() {
+		return this.replicas + " replicas, " + this.writeAck + " acks, partitions owned by node "
+			+ this.placement.ownedPartitions();
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * ReplicaRingTest.java
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Replica sets and write acknowledgement counts of a ReplicaRing.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class ReplicaRingTest {
+
+	private static ReplicaRing ring(int replicas, String writeAck, int... nodes) {
+		StringBuilder message = new StringBuilder("firefly ring " + replicas + " " + writeAck + " " + Placement.describe());
+		for (int node : nodes)
+			message.append(' ').append(node).append(":127.0.0.1:").append(9000 + node);
+		return ReplicaRing.parse(message.toString().split("\\s+"));
+	}
+
+	@Test
+	void acksNeededByLevel() {
+		assertEquals(1, ReplicaRing.acksNeeded(ReplicaRing.ONE, 3, 5));
+		assertEquals(2, ReplicaRing.acksNeeded(ReplicaRing.QUORUM, 3, 5));
+		assertEquals(3, ReplicaRing.acksNeeded(ReplicaRing.QUORUM, 5, 5));
+		assertEquals(3, ReplicaRing.acksNeeded(ReplicaRing.ALL, 3, 5));
+	}
+
+	@Test
+	void acksNeededNeverExceedOnlineNodes() {
+		assertEquals(2, ReplicaRing.acksNeeded(ReplicaRing.ALL, 3, 2));
+		assertEquals(1, ReplicaRing.acksNeeded(ReplicaRing.ALL, 3, 1));
+		assertEquals(1, ReplicaRing.acksNeeded(ReplicaRing.QUORUM, 3, 0));
+		assertEquals(2, ring(3, ReplicaRing.ALL, 1, 2).acksNeeded());
+		assertEquals(2, ring(3, ReplicaRing.QUORUM, 1, 2, 3, 4).acksNeeded());
+	}
+
+	@Test
+	void replicasAreDistinctOnlineNodesOwnerFirst() {
+		ReplicaRing ring = ring(3, ReplicaRing.QUORUM, 0, 1, 2, 3, 4);
+		for (int p=0; p<Placement.partitions(); p++) {
+			int[] replicas = ring.replicasOfPartition(p);
+			assertEquals(3, replicas.length);
+			assertEquals(3, Arrays.stream(replicas).distinct().count());
+			for (int node : replicas) {
+				assertTrue(ring.contains(node));
+				assertTrue(ring.isPartitionReplica(node, p));
+			}
+		}
+		for (int data=-1000; data<1000; data+=7)
+			assertEquals(ring.replicasOf(data)[0], ring.ownerOf(data));
+	}
+
+	@Test
+	void replicasAreCappedByOnlineNodes() {
+		ReplicaRing ring = ring(3, ReplicaRing.ALL, 5, 6);
+		for (int p=0; p<Placement.partitions(); p++)
+			assertEquals(2, ring.replicasOfPartition(p).length);
+	}
+
+	@Test
+	void nextReplicaTakesOverWhenANodeLeaves() {
+		ReplicaRing ring = ring(2, ReplicaRing.QUORUM, 0, 1, 2, 3);
+		ReplicaRing rest = ring.without(2);
+		assertFalse(rest.contains(2));
+		assertEquals(3, rest.size());
+		assertEquals(-1, rest.port(2));
+		for (int p=0; p<Placement.partitions(); p++) {
+			int[] before = ring.replicasOfPartition(p);
+			if (before[0] == 2)
+				assertEquals(before[1], rest.replicasOfPartition(p)[0]);
+			Set<Integer> after = new HashSet<>();
+			for (int node : rest.replicasOfPartition(p))
+				after.add(node);
+			assertFalse(after.contains(2));
+		}
+	}
+
+	@Test
+	void nodesBetweenGoRoundTheRing() {
+		ReplicaRing ring = ring(1, ReplicaRing.ONE, 1, 3, 5, 7);
+		assertEquals(0, ring.nodesBetween(3, 3));
+		assertEquals(0, ring.nodesBetween(3, 5));
+		assertEquals(2, ring.nodesBetween(1, 7));
+		assertEquals(1, ring.nodesBetween(5, 1));
+		assertEquals(2, ring.nodesBetween(3, 1));
+	}
+
+	@Test
+	void emptyRingHasNoOwner() {
+		ReplicaRing ring = ring(3, ReplicaRing.QUORUM);
+		assertEquals(0, ring.size());
+		assertEquals(-1, ring.ownerOf(42));
+	}
+
+}
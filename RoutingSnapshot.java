@@ -0,0 +1,73 @@
+/**
+ * RoutingSnapshot.java
+ */
+
+import java.util.*;
+
+/**
+ * Immutable view of the Chord DHT membership used to route data without locking. The
+ * SuperNode builds a new snapshot on every membership change and swaps it in atomically,
+ * so routing a value is a single array lookup on whatever snapshot is current.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class RoutingSnapshot {
+
+	// node that owns each partition of the ring, -1 if every node is offline
+	private int[] owner;
+	// address of each node id
+	private String[] ip;
+	private int[] port;
+	private boolean[] online;
+	// false until the first -Ddht.minNodes nodes have registered
+	private boolean started;
+
+	/**
+	 * Builds a snapshot out of the current online ring and node addresses - dhtSize is the
+	 * number of node ids
+	 */
+	RoutingSnapshot(int dhtSize, NavigableSet<Integer> onlineRing, Map<Integer, List<String>> ipMap,
+					boolean started) {
+		this.owner = new int[Placement.partitions()];
+		this.ip = new String[dhtSize];
+		this.port = new int[dhtSize];
+		this.online = new boolean[dhtSize];
+		this.started = started;
+		Placement placement = new Placement(onlineRing);
+		for (int p=0; p<this.owner.length; p++)
+			this.owner[p] = placement.owner(p);
+		for (int nodeId=0; nodeId<dhtSize; nodeId++) {
+			this.online[nodeId] = onlineRing.contains(nodeId);
+			List<String> node_address = ipMap.get(nodeId);
+			if (node_address != null) {
+				this.ip[nodeId] = node_address.get(0);
+				this.port[nodeId] = Integer.parseInt(node_address.get(1));
+			}
+		}
+	}
+
+	/**
+	 * Node that owns the given data
+	 */
+	public int ownerOf(int data) {
+		return this.owner[Placement.partitionOf(data)];
+	}
+
+	public String ip(int nodeId) {
+		return this.ip[nodeId];
+	}
+
+	public int port(int nodeId) {
+		return this.port[nodeId];
+	}
+
+	public boolean isOnline(int nodeId) {
+		return this.online[nodeId];
+	}
+
+	public boolean isStarted() {
+		return this.started;
+	}
+
+}
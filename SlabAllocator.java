@@ -0,0 +1,240 @@
+/**
+ * SlabAllocator.java
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap memory of the key/value store, handed out in slots of fixed size classes carved
+ * out of slabs - direct buffers of -Ddht.slabSize bytes (1 MB by default) allocated as they
+ * are needed, up to -Ddht.offHeapMB megabytes in all (1024 by default, and no more than
+ * -XX:MaxDirectMemorySize allows). The size classes grow in quarter steps from one power of
+ * two to the next, from 16 bytes up to a whole slab, so a slot is at most a fifth larger
+ * than what it holds. A slab serves one size class at a time, and a freed slot goes on the
+ * free list of its slab for the next allocation of that size to reuse. The free lists are
+ * kept in the free slots themselves, so apart from one small object per slab nothing of the
+ * stored data is on the heap, however much of it there is.
+ *
+ * A slab whose slots are all free again goes back to a pool shared by all size classes, and
+ * is carved afresh by the next class that needs a slab before any new one is allocated - so
+ * memory freed in one size is reused by the others once whole slabs of it are free. Slots
+ * freed here and there over many slabs still only serve their own size, which reserved()
+ * against used() shows. Slabs are not given back to the JVM.
+ *
+ * A slot is named by a handle - the number of its slab plus one in the high 32 bits and its
+ * offset in the slab in the low ones - and 0 is never a handle.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class SlabAllocator {
+
+	private static int MIN_SIZE = 16;
+
+	/**
+	 * The slots of one size, the slabs of them with free slots, and the slab they are
+	 * being carved out of
+	 */
+	private static class SizeClass {
+		int size;
+		Deque<Slab> partial = new ArrayDeque<>();
+		Slab slab = null;
+		int carved;
+
+		SizeClass(int size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A slab, the size class it serves and its slots in use - guarded by the lock of its
+	 * size class while it serves one
+	 */
+	private static class Slab {
+		ByteBuffer buffer;
+		int number;
+		volatile int sizeClass;
+		// first free slot, 0 if there is none - each free slot holds the handle of the next
+		long free = 0;
+		int live = 0;
+
+		Slab(ByteBuffer buffer, int number) {
+			this.buffer = buffer;
+			this.number = number;
+		}
+	}
+
+	private int slabSize;
+	private long capacity;
+	private SizeClass[] classes;
+	private int[] sizes;
+	// slabs allocated so far, only the first slabCount in use, and those with no slot in use
+	private volatile Slab[] slabs = new Slab[16];
+	private int slabCount = 0;
+	private Deque<Slab> empty = new ArrayDeque<>();
+	private AtomicLong used = new AtomicLong();
+
+	public SlabAllocator() {
+		this(Integer.getInteger("dht.slabSize", 1 << 20), Long.getLong("dht.offHeapMB", 1024) << 20);
+	}
+
+	/**
+	 * An allocator of slabs of slabSize bytes, rounded to a power of two of at least 64 KB,
+	 * and of capacity bytes at most
+	 */
+	public SlabAllocator(int slabSize, long capacity) {
+		this.slabSize = Integer.highestOneBit(Math.max(1 << 16, slabSize));
+		this.capacity = capacity;
+		List<Integer> sizes = new ArrayList<>();
+		for (int power=MIN_SIZE; power<this.slabSize; power<<=1) {
+			for (int quarter=0; quarter<4; quarter++)
+				sizes.add((power + quarter * (power / 4) + 7) & ~7);
+		}
+		sizes.add(this.slabSize);
+		this.sizes = sizes.stream().distinct().mapToInt(Integer::intValue).toArray();
+		this.classes = new SizeClass[this.sizes.length];
+		for (int c=0; c<this.sizes.length; c++)
+			this.classes[c] = new SizeClass(this.sizes[c]);
+	}
+
+	/**
+	 * Largest slot an allocation can get
+	 */
+	public int maxSize() {
+		return this.slabSize;
+	}
+
+	/**
+	 * Handle of a free slot of at least the given size, 0 if the memory is used up
+	 */
+	public long allocate(int bytes) {
+		int c = Arrays.binarySearch(this.sizes, Math.max(bytes, MIN_SIZE));
+		if (c < 0)
+			c = -c - 1;
+		if (c == this.sizes.length)
+			throw new IllegalArgumentException(bytes + " bytes do not fit in a slab of " + this.slabSize);
+		SizeClass sizeClass = this.classes[c];
+		synchronized (sizeClass) {
+			long handle;
+			Slab slab = sizeClass.partial.peek();
+			if (slab != null) {
+				handle = slab.free;
+				slab.free = slab.buffer.getLong(offset(handle));
+				if (slab.free == 0)
+					sizeClass.partial.poll();
+			} else {
+				if (sizeClass.slab == null || sizeClass.carved + sizeClass.size > this.slabSize) {
+					Slab next = this.takeSlab(c);
+					if (next == null)
+						return 0;
+					sizeClass.slab = next;
+					sizeClass.carved = 0;
+				}
+				slab = sizeClass.slab;
+				handle = ((long) (slab.number + 1) << 32) | sizeClass.carved;
+				sizeClass.carved += sizeClass.size;
+			}
+			slab.live++;
+			this.used.addAndGet(sizeClass.size);
+			return handle;
+		}
+	}
+
+	/**
+	 * Returns a slot to the free list of its slab, and the slab to the shared pool once
+	 * none of its slots is in use
+	 */
+	public void free(long handle) {
+		Slab slab = this.slabs[(int) (handle >>> 32) - 1];
+		SizeClass sizeClass = this.classes[slab.sizeClass];
+		synchronized (sizeClass) {
+			this.used.addAndGet(-sizeClass.size);
+			if (--slab.live == 0) {
+				if (slab.free != 0)
+					sizeClass.partial.remove(slab);
+				if (sizeClass.slab == slab)
+					sizeClass.slab = null;
+				slab.free = 0;
+				this.release(slab);
+				return;
+			}
+			slab.buffer.putLong(offset(handle), slab.free);
+			if (slab.free == 0)
+				sizeClass.partial.add(slab);
+			slab.free = handle;
+		}
+	}
+
+	/**
+	 * A slab for a size class - one of the pool if there is any, else a new one, null once
+	 * the capacity or the direct memory of the JVM is used up
+	 */
+	private synchronized Slab takeSlab(int sizeClass) {
+		Slab slab = this.empty.poll();
+		if (slab == null)
+			slab = this.newSlab();
+		if (slab != null)
+			slab.sizeClass = sizeClass;
+		return slab;
+	}
+
+	/**
+	 * Puts a slab none of whose slots is in use in the shared pool
+	 */
+	private synchronized void release(Slab slab) {
+		this.empty.push(slab);
+	}
+
+	private Slab newSlab() {
+		if ((long) (this.slabCount + 1) * this.slabSize > this.capacity)
+			return null;
+		ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.allocateDirect(this.slabSize);
+		} catch (OutOfMemoryError e) {
+			return null;
+		}
+		Slab[] slabs = this.slabs;
+		if (this.slabCount == slabs.length)
+			slabs = Arrays.copyOf(slabs, slabs.length * 2);
+		Slab slab = new Slab(buffer, this.slabCount);
+		slabs[this.slabCount++] = slab;
+		// publish the new slab before any handle into it
+		this.slabs = slabs;
+		return slab;
+	}
+
+	/**
+	 * Slab a handle points into - read and write it with the absolute get and put methods
+	 * at offset(handle), which leave the buffer's position alone and so are safe to use
+	 * from several threads on different slots
+	 */
+	public ByteBuffer slab(long handle) {
+		return this.slabs[(int) (handle >>> 32) - 1].buffer;
+	}
+
+	public static int offset(long handle) {
+		return (int) handle;
+	}
+
+	/**
+	 * Bytes of all slots in use
+	 */
+	public long used() {
+		return this.used.get();
+	}
+
+	/**
+	 * Bytes of all slabs allocated so far, those in the shared pool among them
+	 */
+	public synchronized long reserved() {
+		return (long) this.slabCount * this.slabSize;
+	}
+
+}
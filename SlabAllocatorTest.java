@@ -0,0 +1,103 @@
+/**
+ * SlabAllocatorTest.java
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Slots, size classes and capacity of a SlabAllocator.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class SlabAllocatorTest {
+
+	@Test
+	void slotsHoldWhatIsWrittenToThem() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 1L << 24);
+		long[] handles = new long[1000];
+		for (int i=0; i<handles.length; i++) {
+			handles[i] = slabs.allocate(8 + i % 200);
+			assertNotEquals(0, handles[i]);
+			ByteBuffer slab = slabs.slab(handles[i]);
+			slab.putLong(SlabAllocator.offset(handles[i]), i * 31L);
+		}
+		for (int i=0; i<handles.length; i++)
+			assertEquals(i * 31L, slabs.slab(handles[i]).getLong(SlabAllocator.offset(handles[i])));
+	}
+
+	@Test
+	void slotsDoNotOverlap() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 1L << 24);
+		Set<Long> handles = new HashSet<>();
+		for (int i=0; i<10_000; i++)
+			assertTrue(handles.add(slabs.allocate(24)));
+		long previous = -1;
+		for (long handle : new TreeSet<>(handles)) {
+			if (previous != -1 && (previous >>> 32) == (handle >>> 32))
+				assertTrue(SlabAllocator.offset(handle) - SlabAllocator.offset(previous) >= 24);
+			previous = handle;
+		}
+	}
+
+	@Test
+	void freedSlotIsReusedBySameSize() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 1L << 24);
+		long handle = slabs.allocate(100);
+		long used = slabs.used();
+		assertTrue(used >= 100 && used <= 128);
+		slabs.free(handle);
+		assertEquals(0, slabs.used());
+		assertEquals(handle, slabs.allocate(100));
+		assertEquals(used, slabs.used());
+	}
+
+	@Test
+	void allocationFailsOnceCapacityIsUsed() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 2L << 16);
+		assertEquals(1 << 16, slabs.maxSize());
+		assertNotEquals(0, slabs.allocate(1 << 16));
+		assertNotEquals(0, slabs.allocate(1 << 16));
+		assertEquals(0, slabs.allocate(1 << 16));
+		assertEquals(0, slabs.allocate(16));
+		assertEquals(2L << 16, slabs.reserved());
+		assertThrows(IllegalArgumentException.class, () -> slabs.allocate((1 << 16) + 1));
+	}
+
+	@Test
+	void emptySlabIsCarvedAgainByAnotherSizeClass() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 1L << 24);
+		long small = slabs.allocate(16);
+		long kept = slabs.allocate(16);
+		slabs.free(small);
+		slabs.allocate(4096);
+		// a slab with a slot in use stays with its size class
+		assertEquals(2L << 16, slabs.reserved());
+		slabs.free(kept);
+		long large = slabs.allocate(1 << 16);
+		assertEquals(kept >>> 32, large >>> 32);
+		assertEquals(2L << 16, slabs.reserved());
+	}
+
+	@Test
+	void freedSizesMakeRoomForOthersAtCapacity() {
+		SlabAllocator slabs = new SlabAllocator(1 << 16, 4L << 16);
+		long[] handles = new long[4 * (1 << 16) / 64];
+		for (int i=0; i<handles.length; i++)
+			assertNotEquals(0, handles[i] = slabs.allocate(64));
+		assertEquals(0, slabs.allocate(1024));
+		for (long handle : handles)
+			slabs.free(handle);
+		assertEquals(0, slabs.used());
+		for (int i=0; i<4 * (1 << 16) / 1024; i++)
+			assertNotEquals(0, slabs.allocate(1024));
+		assertEquals(4L << 16, slabs.reserved());
+	}
+
+}
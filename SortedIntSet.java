@@ -0,0 +1,171 @@
+/**
+ * SortedIntSet.java
+ */
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of primitive ints, kept as a list of sorted runs of at most BLOCK_SIZE values
+ * each - the leaves of a one level B+-tree, found by a binary search over the first value
+ * of every run. A new value shifts at most one run, a full run splits in two, and values
+ * can be visited in order from any starting value, which is what range scans need.
+ *
+ * Values added in ascending or descending order fill each run before starting the next, so
+ * sequential data does not leave half empty runs behind.
+ *
+ * @author	Sanchitha Seshadri
+ *
+ */
+class SortedIntSet implements IntSet {
+
+	private static int BLOCK_SIZE = 256;
+
+	// runs in order, only the first blockCount of them in use and none empty unless the set is
+	private int[][] blocks = new int[][] { new int[BLOCK_SIZE] };
+	private int[] sizes = new int[1];
+	private int blockCount = 1;
+	private int size = 0;
+
+	/**
+	 * Run a value belongs in - the last one starting at or below it
+	 */
+	private int blockOf(int value) {
+		int low = 1;
+		int high = this.blockCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this.blocks[middle][0] <= value)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return low - 1;
+	}
+
+	public boolean add(int value) {
+		int b = this.blockOf(value);
+		int i = Arrays.binarySearch(this.blocks[b], 0, this.sizes[b], value);
+		if (i >= 0)
+			return false;
+		i = -i - 1;
+		if (this.sizes[b] == BLOCK_SIZE) {
+			// a value past either end of the set starts a new run, others split theirs in half
+			int keep = i == BLOCK_SIZE && b == this.blockCount - 1 ? BLOCK_SIZE : i == 0 && b == 0 ? 0 : BLOCK_SIZE / 2;
+			this.insertBlock(b + 1);
+			System.arraycopy(this.blocks[b], keep, this.blocks[b + 1], 0, BLOCK_SIZE - keep);
+			this.sizes[b + 1] = BLOCK_SIZE - keep;
+			this.sizes[b] = keep;
+			if (i > keep || i == BLOCK_SIZE) {
+				b++;
+				i -= keep;
+			}
+		}
+		int[] block = this.blocks[b];
+		System.arraycopy(block, i, block, i + 1, this.sizes[b] - i);
+		block[i] = value;
+		this.sizes[b]++;
+		this.size++;
+		return true;
+	}
+
+	private void insertBlock(int b) {
+		if (this.blockCount == this.blocks.length) {
+			this.blocks = Arrays.copyOf(this.blocks, this.blockCount * 2);
+			this.sizes = Arrays.copyOf(this.sizes, this.blockCount * 2);
+		}
+		System.arraycopy(this.blocks, b, this.blocks, b + 1, this.blockCount - b);
+		System.arraycopy(this.sizes, b, this.sizes, b + 1, this.blockCount - b);
+		this.blocks[b] = new int[BLOCK_SIZE];
+		this.sizes[b] = 0;
+		this.blockCount++;
+	}
+
+	public boolean remove(int value) {
+		int b = this.blockOf(value);
+		int i = Arrays.binarySearch(this.blocks[b], 0, this.sizes[b], value);
+		if (i < 0)
+			return false;
+		int[] block = this.blocks[b];
+		System.arraycopy(block, i + 1, block, i, this.sizes[b] - i - 1);
+		this.sizes[b]--;
+		this.size--;
+		if (this.sizes[b] == 0 && this.blockCount > 1) {
+			System.arraycopy(this.blocks, b + 1, this.blocks, b, this.blockCount - b - 1);
+			System.arraycopy(this.sizes, b + 1, this.sizes, b, this.blockCount - b - 1);
+			this.blocks[--this.blockCount] = null;
+		}
+		return true;
+	}
+
+	public boolean contains(int value) {
+		int b = this.blockOf(value);
+		return Arrays.binarySearch(this.blocks[b], 0, this.sizes[b], value) >= 0;
+	}
+
+	/**
+	 * Visits the values in ascending order
+	 */
+	public void forEach(IntHashSet.IntVisitor visitor) {
+		for (int b=0; b<this.blockCount; b++) {
+			int[] block = this.blocks[b];
+			for (int i=0; i<this.sizes[b]; i++)
+				visitor.visit(block[i]);
+		}
+	}
+
+	/**
+	 * Visits the values from..to in ascending order, limit of them at most - returns the
+	 * number visited
+	 */
+	public int forEachInRange(int from, int to, int limit, IntHashSet.IntVisitor visitor) {
+		int visited = 0;
+		int b = this.blockOf(from);
+		int i = Arrays.binarySearch(this.blocks[b], 0, this.sizes[b], from);
+		for (i = i < 0 ? -i - 1 : i; b < this.blockCount; b++, i = 0) {
+			int[] block = this.blocks[b];
+			for (; i<this.sizes[b]; i++) {
+				if (block[i] > to || visited == limit)
+					return visited;
+				visitor.visit(block[i]);
+				visited++;
+			}
+		}
+		return visited;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Copies the values into a new array, in ascending order
+	 */
+	public int[] toArray() {
+		int[] values = new int[this.size];
+		int n = 0;
+		for (int b=0; b<this.blockCount; b++) {
+			System.arraycopy(this.blocks[b], 0, values, n, this.sizes[b]);
+			n += this.sizes[b];
+		}
+		return values;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public long footprint() {
+		return 4L * BLOCK_SIZE * this.blockCount + 12L * this.blocks.length;
+	}
+
+	public String toString() {
+		StringBuilder values = new StringBuilder("[");
+		this.forEach(value -> {
+			if (values.length() > 1)
+				values.append(", ");
+			values.append(value);
+		});
+		return values.append("]").toString();
+	}
+
+}
@@ -7,8 +7,6 @@ import java.util.*;
 import java.lang.Math;
 import java.math.BigInteger;
 
-import java.net.Socket;
-import java.net.ServerSocket;
 import java.net.InetAddress;
 
 import java.security.MessageDigest;
@@ -18,6 +16,11 @@ import java.net.ConnectException;
 import java.security.NoSuchAlgorithmException;
 import java.net.UnknownHostException;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Class representing the super node in the DHT that will keep track of
  * all the DHT nodes and their status (online or not), and the finger
@@ -31,34 +34,112 @@ public class SuperNode {
 	private static int DHT_SIZE = (int)Math.pow(2, 2);
 	private static String SECRET_KEY = new String("firefly");
 
-	private int PORT = 5000;
+	// port to listen on - -Ddht.supernode.port changes it
+	private int PORT = Integer.getInteger("dht.supernode.port", 5000);
+	private static int WORKER_THREADS = 16;
+	// nodes push a heartbeat this often, and may stall this long on top before being suspected
+	private static long HEARTBEAT_INTERVAL = 1000;
+	private static long ACCEPTABLE_PAUSE = 2000;
+	private static double PHI_THRESHOLD = 8.0;
+	// per message console lines, turned on with -Ddht.verbose=true
+	private static boolean VERBOSE = Boolean.getBoolean("dht.verbose");
+	// data goes to the nodes in binary frames - "-Ddht.protocol=text" sends the text form,
+	// which the nodes then take too
+	private static boolean TEXT = System.getProperty("dht.protocol", "binary").equals("text");
+	// messages waiting for a node at most - a message to a node with a full outbox is dropped
+	private static int OUTBOX_LIMIT = Math.max(1, Integer.getInteger("dht.outboxLimit", 4096));
+	// most nodes the DHT takes - every position of a chord ring, -Ddht.maxNodes on a hashed one
+	private static int MAX_NODES = Placement.isChord() ? DHT_SIZE : Math.max(1, Integer.getInteger("dht.maxNodes", 1024));
+	// the ring starts serving once this many nodes have registered, and nodes join it from then on
+	private static int MIN_NODES = Math.max(1, Math.min(MAX_NODES, Integer.getInteger("dht.minNodes", 1)));
+	// copies of each value - the owner and its next online successors - and how many of them
+	// must have a write before it is acknowledged: one, quorum or all
+	private static int REPLICAS = Math.max(1, Math.min(MAX_NODES, Integer.getInteger("dht.replicas", 1)));
+	private static String WRITE_ACK = System.getProperty("dht.writeAck", ReplicaRing.QUORUM);
+	// times a join is tried again after the ring changed or a copy failed under it
+	private static int JOIN_ATTEMPTS = 3;
 	private static int registeredNodes = 0;
+	private static boolean started = false;
+	// bumped on every change of the online ring, so a join can tell its plan went stale
+	private static int ringVersion = 0;
 	// mapping of each node to its status - true if online, false otherwise0
-	private static Map<Integer, Boolean> nodeStatus = new HashMap<>();
+	private static Map<Integer, Boolean> nodeStatus = new ConcurrentHashMap<>();
 	// mapping of node id to its ip address and port number
-	private static Map<Integer, List<String>> ipMap = new HashMap<>();
+	private static Map<Integer, List<String>> ipMap = new ConcurrentHashMap<>();
 	// mapping of node id to its finger table
-	private static Map<Integer, List<List<Integer>>> fingerTables = new HashMap<>();
+	private static Map<Integer, List<List<Integer>>> fingerTables = new ConcurrentHashMap<>();
+	// ids of the online nodes in ring order
+	private static TreeSet<Integer> onlineRing = new TreeSet<>();
+	// routing view read without locks - replaced as a whole on every membership change
+	private static AtomicReference<RoutingSnapshot> routing = new AtomicReference<>(
+		new RoutingSnapshot(MAX_NODES, new TreeSet<>(), new HashMap<>(), false));
+	// nodes the failure detector marked offline without them asking to go offline
+	private static Set<Integer> suspectedNodes = ConcurrentHashMap.newKeySet();
+	// nodes being copied the data of their partitions before they enter the ring
+	private static Set<Integer> joiningNodes = ConcurrentHashMap.newKeySet();
+	// joins run one at a time, away from the threads serving requests and heartbeats
+	private ExecutorService membership = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "membership");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// messages waiting to go out to each node, and the threads sending them - one per node at most
+	private Map<Integer, Deque<Outgoing>> outboxes = new HashMap<>();
+	private ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "outbox");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// persistent connections to the DHT nodes - a migrate is answered once the whole copy
+	// is done, so they wait up to -Ddht.migrateTimeout milliseconds for a reply
+	private ConnectionPool connections = new ConnectionPool(Integer.getInteger("dht.migrateTimeout", 300_000));
+	private FailureDetector failureDetector = new FailureDetector(HEARTBEAT_INTERVAL,
+		ACCEPTABLE_PAUSE, PHI_THRESHOLD, this::nodeSuspected);
+	private Metrics metrics = new Metrics();
+
+
+	/**
+	 * A message waiting in the outbox of a node - its command tells which messages a newer
+	 * one makes stale
+	 */
+	private static class Outgoing {
+		String command;
+		Runnable delivery;
+
+		Outgoing(String command, Runnable delivery) {
+			this.command = command;
+			this.delivery = delivery;
+		}
+
+		/**
+		 * True if this message makes an older one waiting to go out stale - the whole ring
+		 * replaces a ring, and a whole finger table replaces a table and its deltas
+		 */
+		boolean supersedes(Outgoing older) {
+			if (this.command.equals("ring"))
+				return older.command.equals("ring");
+			if (this.command.equals("fingers"))
+				return older.command.equals("fingers") || older.command.equals("fingerdelta");
+			return false;
+		}
+	}
 
 
 	/**
-	 * Register all nodes part of the DHT in the beginning
+	 * Register all nodes part of the DHT in the beginning - every connection is served
+	 * by the non-blocking server core
 	 */
-	private void startDHT() {
+	void startDHT() {
+		this.failureDetector.start();
 		try {
-			ServerSocket serverSocket = new ServerSocket(PORT);
-			while (true) {
-				Socket nodeSocket = serverSocket.accept();
-				Thread nodeHandler = new Thread(new Runnable() {
-					public void run() {
-						/*if (registeredNodes == DHT_SIZE)
-							checkStatus();*/
-						handleInput(nodeSocket);
-					}
-				});
-				nodeHandler.start();
-			}
-			
+			NioServer server = new NioServer(PORT, (message, from, later) -> this.timedInput(message, from), WORKER_THREADS);
+			this.metrics.gauge("nodes.registered", () -> registeredNodes);
+			this.metrics.gauge("nodes.online", () -> nodeStatus.values().stream().filter(s -> s).count());
+			this.metrics.gauge("nodes.suspected", suspectedNodes::size);
+			this.metrics.gauge("nodes.joining", joiningNodes::size);
+			this.metrics.gauge("queue.requests", server::queuedCommands);
+			this.metrics.register("dht:type=SuperNode");
+			server.run();
 		} catch (IOException e) {
 			System.out.println("Could not start server on port " + PORT);
 		}
@@ -68,7 +149,24 @@ public class SuperNode {
   	 * Updates the status of a node to given status
   	 */
 	private synchronized void nodeStatusUpdate(int id, boolean val) {
-		this.nodeStatus.put(id, val);
+		boolean changed = this.setStatus(id, val);
+		this.publishRouting();
+		// once the ring has started, only the finger entries the change affects are updated
+		if (changed)
+			this.updateFingerTables(id);
+	}
+
+	/**
+	 * Sets the status of a node without publishing it - returns true if it changed
+	 */
+	private synchronized boolean setStatus(int id, boolean val) {
+		Boolean previous = nodeStatus.put(id, val);
+		if (val)
+			onlineRing.add(id);
+		else
+			onlineRing.remove(id);
+		ringVersion++;
+		return previous == null ? val : previous != val;
 	}
 
 
@@ -77,32 +175,67 @@ public class SuperNode {
 	 */
 	private synchronized void ipMapUpdate(int id, List<String> address) {
 		this.ipMap.put(id, address);
+		this.publishRouting();
+	}
+
+	/**
+	 * Swaps in a routing snapshot of the current membership - the ring goes out to the
+	 * nodes through their outboxes, so no node is waited on under the lock
+	 */
+	private synchronized void publishRouting() {
+		routing.set(new RoutingSnapshot(MAX_NODES, onlineRing, ipMap, started));
+		// nodes find the replicas of their data from the ring once it has started
+		if (started) {
+			String ring = this.ringMessage();
+			for (int k : onlineRing)
+				this.sendMessage(k, ring);
+		}
+	}
+
+	/**
+	 * Builds "firefly ring <replicas> <writeAck> <placement> <nodeID>:<ip>:<port> ..." out of
+	 * the online nodes
+	 */
+	private synchronized String ringMessage() {
+		StringBuilder msg = new StringBuilder(SECRET_KEY + " ring " + REPLICAS + " " + WRITE_ACK + " "
+			+ Placement.describe());
+		RoutingSnapshot snapshot = routing.get();
+		if (!snapshot.isStarted())
+			return msg.toString();
+		for (int k : onlineRing)
+			msg.append(" " + k + ":" + snapshot.ip(k) + ":" + snapshot.port(k));
+		return msg.toString();
 	}
 
 
 	/**
-	 * Registers Chord DHT node
+	 * Registers Chord DHT node - on a chord ring the id is the node's position, on a hashed
+	 * ring its tokens are hashed from the id, so any free id will do. Until the ring starts
+	 * a node is online right away, after that it joins the running ring.
 	 */
 	private synchronized int registerNode(String ip, String port) {
-		// hash the ip and port to generate a node id
-		String hash_text = new String(ip+port);
 		int hash_value = 0;
 		try {
-			MessageDigest hash = MessageDigest.getInstance("SHA-1");
-			hash.update(hash_text.getBytes());
-			BigInteger big_hash = new BigInteger(1, hash.digest());
-			BigInteger hash_mod = new BigInteger(Integer.toString(DHT_SIZE));
 			// if another node's hash value is repeated, find closest available nodeID
-			hash_value = big_hash.mod(hash_mod).intValue();
+			if (Placement.isChord())
+				hash_value = hashId(ip, port, DHT_SIZE);
 			while (this.ipMap.containsKey(hash_value)) {
-				hash_value = (hash_value + 1) % DHT_SIZE;
+				hash_value = (hash_value + 1) % MAX_NODES;
 			}
 			List<String> node_address = new ArrayList<>();
 			node_address.add(ip);
 			node_address.add(port);
-			this.ipMapUpdate(hash_value, node_address);
-			this.nodeStatusUpdate(hash_value, true);
+			ipMap.put(hash_value, node_address);
 			this.registeredNodes += 1;
+			if (started) {
+				this.startJoin(hash_value);
+			} else {
+				// finger tables are handed out once the ring starts, so there are none to update
+				this.setStatus(hash_value, true);
+				started = registeredNodes >= MIN_NODES;
+			}
+			// one ring for the address, the status and the start together
+			this.publishRouting();
 			// send this id back to the DHTNode
 			return hash_value;
 		} catch (NoSuchAlgorithmException e) {
@@ -112,262 +245,709 @@ public class SuperNode {
 	}
 
 	/**
-	 * Checks the status of each node in the Chord DHT
+	 * Position on a ring of the given size that the SHA-1 hash of a node's ip and port
+	 * falls on
 	 */
-	private void checkStatus() {
-		// if a node is offline, report it as offline and update finger tables
-		boolean deltas = false;
-		System.out.println("Checking status of nodes..");
-		try {
-			for (Integer nodeId : ipMap.keySet()) {
-				List<String> nodeAddress = ipMap.get(nodeId);
-				String ip = nodeAddress.get(0);
-				int port = Integer.parseInt(nodeAddress.get(1));
-				boolean status = this.isNodeOnline(ip, port);
-				if (status != this.nodeStatus.get(nodeId)) {
-					deltas = true;
-					this.nodeStatusUpdate(nodeId, status);
-					System.out.println("node " + nodeId + " status: " + status);
+	static int hashId(String ip, String port, int dhtSize) throws NoSuchAlgorithmException {
+		// hash the ip and port to generate a node id
+		String hash_text = new String(ip+port);
+		MessageDigest hash = MessageDigest.getInstance("SHA-1");
+		hash.update(hash_text.getBytes());
+		BigInteger big_hash = new BigInteger(1, hash.digest());
+		BigInteger hash_mod = new BigInteger(Integer.toString(dhtSize));
+		return big_hash.mod(hash_mod).intValue();
+	}
+
+	/**
+	 * Marks a node offline once the failure detector stops hearing from it - the routing
+	 * view is only ever updated here and on node requests, never by probing nodes
+	 */
+	private synchronized void nodeSuspected(int id) {
+		if (joiningNodes.remove(id)) {
+			// its join fails - it joins again once it is heard from
+			System.out.println("node " + id + " stopped sending heartbeats while joining");
+			suspectedNodes.add(id);
+			return;
+		}
+		if (!nodeStatus.getOrDefault(id, false))
+			return;
+		System.out.println("node " + id + " stopped sending heartbeats - marking offline");
+		suspectedNodes.add(id);
+		this.nodeStatusUpdate(id, false);
+		// the next replicas already serve its data - only the lost copies are made again
+		this.rebalance(id);
+	}
+
+	/**
+	 * Records a heartbeat without taking the lock, so heartbeats are never held up by a
+	 * membership change - a node that was wrongly suspected joins the ring again, from
+	 * the membership thread, and takes back the data stored on other nodes in the meantime
+	 */
+	private void heartbeat(int id) {
+		this.failureDetector.heartbeat(id);
+		if (!suspectedNodes.remove(id))
+			return;
+		System.out.println("node " + id + " is sending heartbeats again");
+		this.membership.execute(() -> this.startJoin(id));
+	}
+
+	/**
+	 * Queues a join of a node that is registered but not in the ring
+	 */
+	private synchronized void startJoin(int id) {
+		if (nodeStatus.getOrDefault(id, false) || !joiningNodes.add(id))
+			return;
+		this.membership.execute(() -> this.join(id));
+	}
+
+	/**
+	 * Brings a node into the running ring without a moment where it owns data it does not
+	 * have yet. The replicas it is about to join copy it the data of those partitions, and
+	 * pass on the stores that arrive meanwhile; once every copy is acknowledged, the ring
+	 * switches over in one step and nodes the newcomer pushed out of a replica set drop
+	 * their copy. Runs on the membership thread, so heartbeats and requests go on during
+	 * the copies.
+	 */
+	private void join(int id) {
+		for (int attempt=1; attempt<=JOIN_ATTEMPTS; attempt++) {
+			long start = System.nanoTime();
+			int version;
+			int moved = 0;
+			List<String> node_address;
+			// partitions each current replica copies to the newcomer
+			Map<Integer, StringBuilder> transfers = new TreeMap<>();
+			synchronized (this) {
+				if (!joiningNodes.contains(id))
+					return;
+				version = ringVersion;
+				node_address = ipMap.get(id);
+				// the ring without it - until it sees the ring it joined, it passes stores on
+				this.sendMessage(id, this.ringMessage());
+				TreeSet<Integer> after = new TreeSet<>(onlineRing);
+				after.add(id);
+				Placement current = new Placement(onlineRing);
+				Placement next = new Placement(after);
+				for (int partition=0; partition<Placement.partitions(); partition++) {
+					List<Integer> was = current.replicas(partition, REPLICAS);
+					List<Integer> now = next.replicas(partition, REPLICAS);
+					if (was.isEmpty() || !now.contains(id))
+						continue;
+					moved++;
+					// the node pushed out of the replica set if there is one, the owner otherwise
+					int source = was.get(0);
+					for (int node : was) {
+						if (!now.contains(node))
+							source = node;
+					}
+					StringBuilder partitions = transfers.computeIfAbsent(source, n -> new StringBuilder());
+					partitions.append(partitions.length() == 0 ? "" : ",").append(partition);
+				}
+			}
+			List<Integer> copied = new ArrayList<>();
+			long values = 0;
+			for (Map.Entry<Integer, StringBuilder> transfer : transfers.entrySet()) {
+				RoutingSnapshot snapshot = routing.get();
+				try {
+					// firefly migrated <values>, -1 if the copy failed
+					String reply = this.connections.request(snapshot.ip(transfer.getKey()), snapshot.port(transfer.getKey()),
+						SECRET_KEY + " migrate " + transfer.getValue() + " " + id + " " + node_address.get(0) + " "
+						+ node_address.get(1));
+					long count = Long.parseLong(reply.split("\\s+")[2]);
+					if (count < 0)
+						break;
+					copied.add(transfer.getKey());
+					values += count;
+				} catch (IOException | RuntimeException e) {
+					System.out.println("Could not copy data of joining node " + id + " from node " + transfer.getKey());
+					break;
+				}
+			}
+			synchronized (this) {
+				boolean complete = copied.size() == transfers.size() && version == ringVersion
+					&& joiningNodes.remove(id);
+				if (complete) {
+					// the ring switches over - sources drop what they no longer replicate once they see it
+					this.nodeStatusUpdate(id, true);
+					this.metrics.increment("joins");
+					this.metrics.add("join.partitions", moved);
+					this.metrics.add("join.values", values);
+					this.metrics.record("join", start);
+					System.out.printf("node %d joined in %.0f ms - %d of %d partitions (%.1f%%) moved, %d values copied "
+						+ "from %d node(s)%n", id, (System.nanoTime() - start) / 1e6, moved, Placement.partitions(),
+						100.0 * moved / Placement.partitions(), values, transfers.size());
+					return;
 				}
+				// sources stop passing on stores to the newcomer
+				for (int source : copied)
+					this.sendMessage(source, SECRET_KEY + " release " + transfers.get(source) + " " + id);
+				if (!joiningNodes.contains(id))
+					return;
+			}
+			this.metrics.increment("join.failures");
+			System.out.println("Join of node " + id + " interrupted - " + (attempt < JOIN_ATTEMPTS ? "trying again" : "giving up"));
+			try {
+				Thread.sleep(HEARTBEAT_INTERVAL * attempt);
+			} catch (InterruptedException e) {
+				return;
 			}
-			// if changes detected, recompute all finger tables
-			if (deltas)
-				this.UpdateFingerTables();
 		}
-		 catch (ConcurrentModificationException e) {
-			System.out.println("Status of some node(s) changed. ");
-		} catch (Exception e) {
-			e.printStackTrace();
+		joiningNodes.remove(id);
+	}
+
+	/**
+	 * Brings the replicas of every partition up to date after a node left the ring - a
+	 * node that became a replica of a partition gets its data copied by a replica that
+	 * stays in the set, each source sending each target all of its partitions in one transfer
+	 */
+	private synchronized void rebalance(int left) {
+		if (!started)
+			return;
+		TreeSet<Integer> before = new TreeSet<>(onlineRing);
+		before.add(left);
+		Placement previous = new Placement(before);
+		Placement current = new Placement(onlineRing);
+		// partitions to copy, by source and target
+		Map<List<Integer>, StringBuilder> transfers = new LinkedHashMap<>();
+		int moved = 0;
+		for (int partition=0; partition<Placement.partitions(); partition++) {
+			List<Integer> was = previous.replicas(partition, REPLICAS);
+			List<Integer> now = current.replicas(partition, REPLICAS);
+			if (!was.equals(now))
+				moved++;
+			for (int target : now) {
+				if (was.contains(target))
+					continue;
+				int source = -1;
+				for (int node : was) {
+					if (source == -1 && now.contains(node))
+						source = node;
+				}
+				if (source == -1)
+					continue;
+				StringBuilder partitions = transfers.computeIfAbsent(Arrays.asList(source, target), t -> new StringBuilder());
+				partitions.append(partitions.length() == 0 ? "" : ",").append(partition);
+			}
 		}
+		// every source streams the data of its partitions straight to the new replica
+		for (Map.Entry<List<Integer>, StringBuilder> transfer : transfers.entrySet()) {
+			List<String> node_address = ipMap.get(transfer.getKey().get(1));
+			this.sendMessage(transfer.getKey().get(0), SECRET_KEY + " rehash " + transfer.getValue() + " "
+				+ node_address.get(0) + " " + node_address.get(1));
+		}
+		this.metrics.add("rebalance.partitions", moved);
+		this.metrics.add("rebalance.transfers", transfers.size());
+		System.out.printf("node %d left - replicas of %d of %d partitions (%.1f%%) changed, %d transfer(s)%n", left,
+			moved, Placement.partitions(), 100.0 * moved / Placement.partitions(), transfers.size());
 	}
 
 	/**
-	 * Checks whether a node is online by trying to connect to it on the given ip and port
+	 * Sends a message to a particular node over its pooled connection
 	 */
-	private boolean isNodeOnline(String ip, int port) {
-		try {
-			Socket nodeSocket = new Socket(InetAddress.getByName(ip), port);
-			nodeSocket.close();
-			return true;
-		} catch (ConnectException e) {
-			System.out.println("Could not connect - node offline");
-			return false;
-		} catch (IOException e) {
-			System.out.println("Could not connect - node offline");
-			return false;
+	private void sendMessage(int nodeId, String message) {
+		this.sendMessage(routing.get(), nodeId, message);
+	}
+
+	/**
+	 * Queues a message to a node at its address in the given routing snapshot - every
+	 * node has an outbox its messages go out of in order, on a thread of their own, so
+	 * neither a caller holding the lock nor the other nodes wait on a slow or dead node
+	 */
+	private boolean sendMessage(RoutingSnapshot snapshot, int nodeId, String message) {
+		String command = message.split("\\s+", 3)[1];
+		return this.enqueue(nodeId, new Outgoing(command, () -> this.deliver(snapshot, nodeId, message, null)));
+	}
+
+	/**
+	 * Queues a frame to a node at its address in the given routing snapshot, in its text
+	 * form when the nodes run with -Ddht.protocol=text - returns false if it was dropped
+	 */
+	private boolean sendFrame(RoutingSnapshot snapshot, int nodeId, Frame frame) {
+		if (TEXT)
+			return this.sendMessage(snapshot, nodeId, frame.toText());
+		return this.enqueue(nodeId, new Outgoing(Frame.commandName(frame.opcode),
+			() -> this.deliver(snapshot, nodeId, null, frame)));
+	}
+
+	/**
+	 * Adds a message to the outbox of a node, starting a thread on it if it was idle -
+	 * waiting messages the new one makes stale are taken out, and the message is dropped
+	 * if -Ddht.outboxLimit of them still wait, returning false
+	 */
+	private boolean enqueue(int nodeId, Outgoing message) {
+		Deque<Outgoing> outbox;
+		boolean idle;
+		int superseded = 0;
+		synchronized (this.outboxes) {
+			outbox = this.outboxes.computeIfAbsent(nodeId, n -> new ArrayDeque<>());
+			idle = outbox.isEmpty();
+			Iterator<Outgoing> waiting = outbox.iterator();
+			// the first one may be going out already
+			if (waiting.hasNext())
+				waiting.next();
+			while (waiting.hasNext()) {
+				if (message.supersedes(waiting.next())) {
+					waiting.remove();
+					superseded++;
+				}
+			}
+			if (outbox.size() >= OUTBOX_LIMIT) {
+				this.metrics.increment("outbox.dropped");
+				System.out.println("Outbox of node " + nodeId + " full - dropped " + message.command);
+				return false;
+			}
+			outbox.add(message);
 		}
+		if (superseded > 0)
+			this.metrics.add("outbox.superseded", superseded);
+		if (!idle)
+			return true;
+		this.senders.execute(() -> {
+			while (true) {
+				Outgoing next;
+				synchronized (this.outboxes) {
+					next = outbox.peek();
+				}
+				try {
+					next.delivery.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				synchronized (this.outboxes) {
+					outbox.poll();
+					if (outbox.isEmpty()) {
+						this.outboxes.remove(nodeId);
+						return;
+					}
+				}
+			}
+		});
+		return true;
 	}
 
 	/**
-	 * Sends the appropriate socket for a given node
+	 * Sends a message, or a frame if there is one, to a node at its address in the given
+	 * routing snapshot
 	 */
-	private Socket getResponseSocket(int nodeId) {
-		List<String> node_address = ipMap.get(nodeId);
-		int port = Integer.parseInt(node_address.get(1));
-		Socket nodeSocket = null;
+	private void deliver(RoutingSnapshot snapshot, int nodeId, String message, Frame frame) {
 		try {
-			InetAddress ip = InetAddress.getByName(node_address.get(0));
-			nodeSocket = new Socket(ip, port);
+			if (frame != null)
+				this.connections.send(snapshot.ip(nodeId), snapshot.port(nodeId), frame);
+			else
+				this.connections.send(snapshot.ip(nodeId), snapshot.port(nodeId), message);
+			if (VERBOSE)
+				System.out.println("Sent response to " + nodeId);
 		} catch (ConnectException e) {
 			System.out.println("Node " + nodeId + " not online.");
 		} catch (UnknownHostException e) {
 			System.out.println("Unknown node.");
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Node offline. Cannot send response.");
 		}
-		return nodeSocket;
 	}
 
 	/**
-	 * Sends a message to a particular node
+	 * Finds the next online successor of a given node
 	 */
-	private void sendMessage(int nodeId, String message) {
-		Socket nodeSocket = this.getResponseSocket(nodeId);
-		try {
-			PrintWriter out = new PrintWriter(nodeSocket.getOutputStream(), true);
-			out.println(message);
-			out.close();
-			nodeSocket.close();
-			System.out.println("Sent response to " + nodeId);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (NullPointerException e) {
-			System.out.println("Node offline. Cannot send response.");
-		}
+	private synchronized int nextOnlineSuccessor(int id) {
+		int successor = this.onlineSuccessor((id + 1) % MAX_NODES);
+		// no online node except id itself
+		return successor == id ? -1 : successor;
 	}
 
 	/**
-	 * Finds the next online successor of a given node
+	 * Handles a message and records how long it took under its command name
 	 */
-	private int nextOnlineSuccessor(int id) {
-		// find next online successor of node id
-		int key = (id + 1) % DHT_SIZE;
-		while (key != id) {
-			List<String> node_address = this.ipMap.get(id);
-			String ip = node_address.get(0);
-			int port = Integer.parseInt(node_address.get(1));
-			if (this.isNodeOnline(ip, port))
-				return key;
-			key = (key + 1) % DHT_SIZE;
-		}
-		// no online node except id itself
-		return -1;
+	private String timedInput(String message, InetAddress ip) {
+		long start = System.nanoTime();
+		String reply = this.handleInput(message, ip);
+		int from = message.indexOf(' ') + 1;
+		int to = message.indexOf(' ', from);
+		this.metrics.record(from == 0 ? "other" : message.substring(from, to < 0 ? message.length() : to), start);
+		return reply;
 	}
 
 	/**
-	 * Handles messages from other nodes and clients and calls appropriate subroutines
+	 * Handles messages from other nodes and clients and calls appropriate subroutines,
+	 * returns the reply to send back on the same connection, if any
 	 */
-	private void handleInput(Socket nodeSocket) {
-		System.out.println("Handling input from " + nodeSocket.getInetAddress());
-		try (
-			BufferedReader in = new BufferedReader(
-				new InputStreamReader(nodeSocket.getInputStream()));
-		) {
-			String message = in.readLine();
-			String[] messageChunked = message.split("\\s+");
+	private String handleInput(String message, InetAddress ip) {
+		String[] messageChunked = message.split("\\s+");
+		if (VERBOSE)
 			System.out.println("message from node : " + message);
-			// invalid DHTnode - doesn't have the required secret key
-			if (!messageChunked[0].equals(SECRET_KEY)) 
-				return;
+		// invalid DHTnode - doesn't have the required secret key
+		if (!messageChunked[0].equals(SECRET_KEY)) 
+			return null;
 
-			switch(messageChunked[1]) {
-				case "register": {	// firefly register <port>
-					if (this.registeredNodes == DHT_SIZE)	// extra nodes not allowed
-						break;
-					InetAddress ip = nodeSocket.getInetAddress();
-					String port = messageChunked[2];
-					int id = this.registerNode(ip.getHostAddress(), port);
-					String msg = SECRET_KEY + " id " + id;
-					this.sendMessage(id, msg);
-					this.checkStatus();
+		switch(messageChunked[1]) {
+			case "register": {	// firefly register <port>
+				if (registeredNodes >= MAX_NODES) {	// extra nodes not allowed
+					System.out.println("The DHT is full - " + MAX_NODES + " nodes");
 					break;
 				}
-				case "online": {	// firefly online <nodeID> <port>
-					// update its ip and port in ipMap, and status in nodeStatus
-					InetAddress ip = nodeSocket.getInetAddress();
-					int id = Integer.parseInt(messageChunked[2]);
-					String port = messageChunked[3];
-					List<String> node_address = new ArrayList<>();
-					node_address.add(ip.getHostAddress());
-					node_address.add(port);
-					this.ipMapUpdate(id, node_address);
-					this.nodeStatusUpdate(id, true);
-					System.out.println("node back online - retrieving data..");
-					if (this.registeredNodes == DHT_SIZE) {
-					// find next online successor of current node
-						int source = this.nextOnlineSuccessor(id);
-						if (source == -1) {
-							System.out.println("All other nodes offline - unable to retrieve data at the moment");
-							break;
-						}
-						// retrieve data belonging to the current node
-						String msg = SECRET_KEY + " rehash " + id;
-						this.sendMessage(source, msg);
-					}
-					this.checkStatus();
+				boolean starting = !started;
+				String port = messageChunked[2];
+				int id = this.registerNode(ip.getHostAddress(), port);
+				String msg = SECRET_KEY + " id " + id;
+				this.sendMessage(id, msg);
+				this.failureDetector.heartbeat(id);
+				// the ring has started - hand out the first finger tables
+				if (starting && started)
+					this.UpdateFingerTables();
+				break;
+			}
+			case "online": {	// firefly online <nodeID> <port>
+				// update its ip and port in ipMap, and status in nodeStatus
+				int id = Integer.parseInt(messageChunked[2]);
+				String port = messageChunked[3];
+				List<String> node_address = new ArrayList<>();
+				node_address.add(ip.getHostAddress());
+				node_address.add(port);
+				// drop pooled connections to the node's previous process, even at the same address
+				List<String> old_address = ipMap.get(id);
+				if (old_address != null)
+					this.connections.invalidate(old_address.get(0), Integer.parseInt(old_address.get(1)));
+				this.ipMapUpdate(id, node_address);
+				suspectedNodes.remove(id);
+				this.failureDetector.heartbeat(id);
+				if (nodeStatus.getOrDefault(id, false)) {
+					// a node that restarted before it was noticed offline only changed address
+					if (old_address != null && !old_address.equals(node_address))
+						this.republishAddress(id);
 					break;
 				}
-				case "store": {		// firefly store <data> <flag>
-					if (this.registeredNodes != DHT_SIZE) {
-						System.out.println("Waiting for Chord to start up. Try again.");
-						break;
-					}
-					int data = Integer.parseInt(messageChunked[2]);
-					String flag = messageChunked[3];
-					if (flag.equals("false"))
-						this.checkStatus();
-					this.routeData(data, flag);
+				System.out.println("node " + id + " back online - retrieving data..");
+				if (started)
+					this.startJoin(id);
+				else
+					this.nodeStatusUpdate(id, true);
+				break;
+			}
+			case "heartbeat": {	// firefly heartbeat <nodeID>
+				this.heartbeat(Integer.parseInt(messageChunked[2]));
+				break;
+			}
+			case "stats": {		// firefly stats
+				return SECRET_KEY + " stats " + this.metrics;
+			}
+			case "ring": {		// firefly ring
+				// the online nodes and how data is replicated on them
+				return this.ringMessage();
+			}
+			case "nodes": {		// firefly nodes
+				// bootstrap - tell a client which nodes it can send data to
+				return this.onlineNodes();
+			}
+			case "store": {		// firefly store <data> <flag>
+				if (!routing.get().isStarted()) {
+					System.out.println("Waiting for Chord to start up. Try again.");
 					break;
 				}
-				case "off": {		// firefly off <nodeID>
-					if (this.registeredNodes < DHT_SIZE) {
-						System.out.println("Cannot go offline now - initializing Chord.");
-						break;
-					}
-					int off = Integer.parseInt(messageChunked[2]);
-					if ((off < 0) || (off > DHT_SIZE-1)) {
-						System.out.println("Invalid node supplied");
-						break;
-					}
-					this.nodeStatusUpdate(off, false);
-					this.UpdateFingerTables();
-					// send a move message to node
-					String msg = SECRET_KEY + " off ";
-					this.sendMessage(off, msg);
+				int data = Integer.parseInt(messageChunked[2]);
+				String flag = messageChunked[3];
+				this.routeData(data, flag);
+				break;
+			}
+			case "storebatch": {	// firefly storebatch <requestID> <data> ...
+				if (!routing.get().isStarted()) {
+					System.out.println("Waiting for Chord to start up. Try again.");
+					return SECRET_KEY + " stored " + messageChunked[2] + " 0";
+				}
+				int count = this.routeBatch(messageChunked, 3);
+				return SECRET_KEY + " stored " + messageChunked[2] + " " + count;
+			}
+			case "off":			// firefly off <nodeID>
+			case "leave": {		// firefly leave <nodeID>
+				if (!started) {
+					System.out.println("Cannot go offline now - initializing Chord.");
 					break;
 				}
-				default: {
+				int off = Integer.parseInt(messageChunked[2]);
+				if (!ipMap.containsKey(off)) {
+					System.out.println("Invalid node supplied");
 					break;
 				}
+				this.takeOffline(off, messageChunked[1].equals("leave"));
+				break;
 			}
-			
-			nodeSocket.close();
+			default: {
+				break;
+			}
+		}
+		return null;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Takes a node out of the ring, naming the successor it streams its data to - the node
+	 * hands each partition to its next owner itself once it knows the ring. A node that
+	 * leaves for good is forgotten as well, and deletes its id and data once they are handed off.
+	 */
+	private synchronized void takeOffline(int off, boolean leave) {
+		boolean online = nodeStatus.getOrDefault(off, false);
+		// an offline node could not hand off the data it kept on disk - unless other replicas have it
+		if (!online && !joiningNodes.contains(off) && !(leave && REPLICAS > 1)) {
+			System.out.println("Node " + off + " is not online");
+			return;
+		}
+		this.failureDetector.remove(off);
+		suspectedNodes.remove(off);
+		boolean joining = joiningNodes.remove(off);
+		if (online) {
+			this.nodeStatusUpdate(off, false);
+			this.rebalance(off);
 		}
+		String msg = SECRET_KEY + (leave ? " leave " : " off ");
+		int successor = this.nextOnlineSuccessor(off);
+		if (successor != -1 && REPLICAS > 1 && !joining) {
+			// every value of the node has a copy on another online node already
+			msg += "replicas";
+		} else if (successor != -1) {
+			List<String> node_address = ipMap.get(successor);
+			msg += successor + " " + node_address.get(0) + " " + node_address.get(1);
+		}
+		this.sendMessage(off, msg);
+		if (!leave)
+			return;
+		// its id is free for the next node to register
+		ipMap.remove(off);
+		nodeStatus.remove(off);
+		registeredNodes -= 1;
+		// nodes holding values it lent them must not keep them from a new node given its id
+		for (int node : onlineRing)
+			this.sendMessage(node, SECRET_KEY + " forget " + off);
+		this.metrics.increment("leaves");
+		this.publishRouting();
+		System.out.println("node " + off + " left the DHT - " + registeredNodes + " node(s) registered");
+	}
 
+	/**
+	 * Lists the online nodes as "firefly nodes <nodeID>:<ip>:<port> ..." - empty until
+	 * the Chord DHT has started up
+	 */
+	private String onlineNodes() {
+		RoutingSnapshot snapshot = routing.get();
+		StringBuilder reply = new StringBuilder(SECRET_KEY + " nodes");
+		if (!snapshot.isStarted())
+			return reply.toString();
+		for (int nodeId=0; nodeId<MAX_NODES; nodeId++) {
+			if (snapshot.isOnline(nodeId))
+				reply.append(" " + nodeId + ":" + snapshot.ip(nodeId) + ":" + snapshot.port(nodeId));
+		}
+		return reply.toString();
 	}
 
 	/**
-	 * Routes given data to the right node using finger tables
+	 * Routes given data to the right node - reads the current routing snapshot only, so
+	 * routing takes no lock and does no I/O besides sending the data
 	 */
-	private synchronized void routeData(int data, String flag) {
+	private void routeData(int data, String flag) {
 		// send data to appropriate node in the DHT
-		int key = data % DHT_SIZE;	// ideal location of key
-		int destination = -1;
-		// ideal case - place data at key if nodeID = key is online
-		if (this.nodeStatus.get(key)) {
-			destination = key;
-		} else {	//must route to nodeID closest to key
-			List<List<Integer>> table = this.fingerTables.get(key);
-			List<Integer> entry = table.get(0);	// get successor of closest node
-			destination = entry.get(1);	// closest online node to key
+		RoutingSnapshot snapshot = routing.get();
+		int destination = snapshot.ownerOf(data);
+		Frame store = new Frame().reset(Frame.STORE, 0).add(data).add(flag.equals("true") ? 1 : 0);
+		if (!this.sendFrame(snapshot, destination, store))
+			return;
+		this.metrics.increment("routed.values");
+		if (VERBOSE)
+			System.out.println("routed data " + data + " to node " + destination);
+	}
+
+	/**
+	 * Routes a batch of data, sending each destination node a single message with all of
+	 * its values - returns the number of values routed, those to a node whose outbox is
+	 * full not among them
+	 */
+	private int routeBatch(String[] messageChunked, int first) {
+		RoutingSnapshot snapshot = routing.get();
+		// request id 0 - the nodes send no reply
+		Map<Integer, Frame> batches = new HashMap<>();
+		for (int i=first; i<messageChunked.length; i++) {
+			int data = Integer.parseInt(messageChunked[i]);
+			batches.computeIfAbsent(snapshot.ownerOf(data), d -> new Frame().reset(Frame.STORE_BATCH, 0)).add(data);
+		}
+		int routed = 0;
+		for (Map.Entry<Integer, Frame> batch : batches.entrySet()) {
+			if (this.sendFrame(snapshot, batch.getKey(), batch.getValue()))
+				routed += batch.getValue().count();
 		}
-		String msg = SECRET_KEY + " store " + data + " " + flag;
-		this.sendMessage(destination, msg);
-		System.out.println("routed data " + data + " to node " + destination);
+		this.metrics.add("routed.values", routed);
+		if (VERBOSE)
+			System.out.println("routed " + routed + " values to " + batches.size() + " node(s)");
+		return routed;
+	}
+
+	/**
+	 * Number of entries in each finger table - log2 of the size of the ring
+	 */
+	private static int tableSize() {
+		return Integer.numberOfTrailingZeros(DHT_SIZE);
+	}
+
+	/**
+	 * First online node at or after a position on the ring, -1 if every node is offline
+	 */
+	private int onlineSuccessor(int position) {
+		return successorOf(onlineRing, position);
+	}
+
+	/**
+	 * First node of a ring at or after a position, -1 if the ring is empty
+	 */
+	static int successorOf(NavigableSet<Integer> ring, int position) {
+		Integer successor = ring.ceiling(position);
+		if (successor == null && !ring.isEmpty())
+			successor = ring.first();
+		return successor == null ? -1 : successor;
+	}
+
+	/**
+	 * Finger table of node k on a ring of the given size - entry i is [start, successor]
+	 * with start k + 2^i
+	 */
+	static List<List<Integer>> fingerTable(int dhtSize, NavigableSet<Integer> ring, int k) {
+		int tableSize = Integer.numberOfTrailingZeros(dhtSize);	// entries in each finger table
+		List<List<Integer>> table = new ArrayList<>();
+		for (int i=0; i<tableSize; i++) {
+			List<Integer> entry = new ArrayList<>();
+			int inode = ((1 << i) + k) % dhtSize;
+			entry.add(inode);
+			entry.add(successorOf(ring, inode));
+			table.add(entry);
+		}
+		return table;
 	}
 
 	/**
 	 * Updates finger tables of all nodes in the Chord DHT
 	 */
 	private synchronized void UpdateFingerTables() {
-		System.out.println("Updating finger tables");
-		if (this.registeredNodes < DHT_SIZE)
+		// fingers route by node id, which only a chord ring is ordered by
+		if (!started || !Placement.isChord())
 			return;
+		System.out.println("Updating finger tables");
 		// update finger tables of all nodes
-		int tableSize = (int) Math.pow(DHT_SIZE, 0.5);	// entries in each finger table
 		for (int k=0; k<DHT_SIZE; k++) {
-			List<List<Integer>> table = new ArrayList<>();
-			for (int i=0; i<tableSize; i++) {
-				List<Integer> entry = new ArrayList<>();
-				int inode = ((int) Math.pow(2, i) + k) % DHT_SIZE;
-				int successor = -1;
-				if (this.nodeStatus.get(inode))
-					successor = inode;
-				else {
-					int temp = (inode + 1) % DHT_SIZE;
-					while(temp != inode) {
-						if (this.nodeStatus.get(temp)) {
-							successor = temp;
-							break;
-						}
-						temp = (temp + 1) % DHT_SIZE;
-					}
-				}
-				entry.add(inode);
-				entry.add(successor);
-				table.add(entry);
-			}
+			List<List<Integer>> table = fingerTable(DHT_SIZE, onlineRing, k);
 			this.fingerTables.put(k, table); 
 			// uncomment below to see finger table of each node
-			System.out.println("Finger table of node " + k);
-			for(int c=0; c<tableSize; c++)
-				System.out.println(table.get(c));
+			// System.out.println("Finger table of node " + k);
+			// for(int c=0; c<table.size(); c++)
+			// 	System.out.println(table.get(c));
 		}
+		// hand every online node its own finger table so it can route data itself
+		for (int k : onlineRing)
+			this.sendMessage(k, this.fingerMessage(k));
 	} 
 
+	/**
+	 * Updates only the finger entries affected by a node joining or leaving the ring and
+	 * sends each online node the entries of its table that changed
+	 */
+	private synchronized void updateFingerTables(int changed) {
+		if (!started || !Placement.isChord())
+			return;
+		if (fingerTables.isEmpty()) {
+			this.UpdateFingerTables();
+			return;
+		}
+		// only entries starting in (predecessor, changed] have changed node as their successor,
+		// before a leave or after a join
+		int predecessor = this.onlinePredecessor(changed);
+		int span = Math.floorMod(changed - predecessor, DHT_SIZE);
+		if (span == 0)
+			span = DHT_SIZE;
+		Map<Integer, Set<Integer>> deltas = new TreeMap<>();
+		int tableSize = tableSize();
+		for (int i=0; i<tableSize; i++) {
+			for (int d=1; d<=span; d++) {
+				int start = (predecessor + d) % DHT_SIZE;
+				int k = Math.floorMod(start - (1 << i), DHT_SIZE);
+				List<Integer> entry = fingerTables.get(k).get(i);
+				int successor = this.onlineSuccessor(start);
+				if (entry.get(1) != successor) {
+					entry.set(1, successor);
+					deltas.computeIfAbsent(k, n -> new TreeSet<>()).add(i);
+				}
+			}
+		}
+		// the next online node has a new predecessor as well
+		int next = this.onlineSuccessor((changed + 1) % DHT_SIZE);
+		if (next != -1)
+			deltas.computeIfAbsent(next, n -> new TreeSet<>());
+		System.out.println("Updated finger entries of " + deltas.size() + " node(s) after change of node " + changed);
+		// a joining node gets its whole table instead
+		boolean joined = nodeStatus.getOrDefault(changed, false);
+		if (joined)
+			deltas.remove(changed);
+		this.publishDeltas(deltas);
+		if (joined)
+			this.sendMessage(changed, this.fingerMessage(changed));
+	}
+
+	/**
+	 * Sends again every finger entry that points to a node whose address changed
+	 */
+	private synchronized void republishAddress(int changed) {
+		if (fingerTables.isEmpty())
+			return;
+		Map<Integer, Set<Integer>> deltas = new TreeMap<>();
+		for (int k=0; k<DHT_SIZE; k++) {
+			List<List<Integer>> table = fingerTables.get(k);
+			for (int i=0; i<table.size(); i++) {
+				if (table.get(i).get(1) == changed)
+					deltas.computeIfAbsent(k, n -> new TreeSet<>()).add(i);
+			}
+		}
+		this.publishDeltas(deltas);
+	}
+
+	/**
+	 * Sends "firefly fingerdelta <nodeID> <predecessor> <index>:<start>:<successor>:<ip>:<port> ..."
+	 * to every online node whose table changed
+	 */
+	private void publishDeltas(Map<Integer, Set<Integer>> deltas) {
+		for (Map.Entry<Integer, Set<Integer>> delta : deltas.entrySet()) {
+			int k = delta.getKey();
+			if (!nodeStatus.getOrDefault(k, false))
+				continue;
+			List<List<Integer>> table = fingerTables.get(k);
+			StringBuilder msg = new StringBuilder(SECRET_KEY + " fingerdelta " + k + " " + this.onlinePredecessor(k));
+			for (int i : delta.getValue())
+				msg.append(" " + i + ":" + this.fingerEntry(table.get(i)));
+			this.sendMessage(k, msg.toString());
+		}
+	}
+
+	/**
+	 * Finds the closest online node preceding a given node
+	 */
+	private int onlinePredecessor(int id) {
+		Integer predecessor = onlineRing.lower(id);
+		if (predecessor == null)
+			predecessor = onlineRing.isEmpty() ? id : onlineRing.last();
+		return predecessor;
+	}
+
+	/**
+	 * Formats a finger entry as "<start>:<successor>:<ip>:<port>"
+	 */
+	private String fingerEntry(List<Integer> entry) {
+		List<String> node_address = ipMap.get(entry.get(1));
+		return entry.get(0) + ":" + entry.get(1) + ":" + node_address.get(0) + ":" + node_address.get(1);
+	}
+
+	/**
+	 * Builds "firefly fingers <nodeID> <predecessor> <start>:<successor>:<ip>:<port> ..."
+	 * for a node out of its finger table
+	 */
+	private String fingerMessage(int id) {
+		StringBuilder msg = new StringBuilder(SECRET_KEY + " fingers " + id + " " + this.onlinePredecessor(id));
+		for (List<Integer> entry : fingerTables.get(id))
+			msg.append(" " + this.fingerEntry(entry));
+		return msg.toString();
+	}
+
 	/**
 	 * Main method of the SuperNode class - starts the DHT
 	 */